@@ -37,14 +37,12 @@ import android.graphics.Bitmap;
 import android.hardware.SensorManager;
 import android.media.AudioManager;
 import android.media.AudioManager.OnAudioFocusChangeListener;
-import android.media.MediaDescription;
 import android.media.MediaMetadata;
 import android.media.MediaPlayer;
 import android.media.audiofx.AudioEffect;
 import android.media.session.MediaSession;
 import android.media.session.PlaybackState;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.IBinder;
@@ -58,7 +56,6 @@ import android.provider.MediaStore.Audio.AlbumColumns;
 import android.provider.MediaStore.Audio.AudioColumns;
 import android.text.TextUtils;
 import android.util.Log;
-import android.util.LongSparseArray;
 import android.view.KeyEvent;
 
 import com.cyanogenmod.eleven.Config.IdType;
@@ -70,18 +67,25 @@ import com.cyanogenmod.eleven.cache.ImageFetcher;
 import com.cyanogenmod.eleven.provider.MusicPlaybackState;
 import com.cyanogenmod.eleven.provider.RecentStore;
 import com.cyanogenmod.eleven.provider.SongPlayCount;
+import com.cyanogenmod.eleven.service.MediaSessionQueuePublisher;
 import com.cyanogenmod.eleven.service.MusicPlaybackTrack;
+import com.cyanogenmod.eleven.service.PlaybackSnapshot;
+import com.cyanogenmod.eleven.service.QueueChanges;
 import com.cyanogenmod.eleven.utils.BitmapWithColors;
 import com.cyanogenmod.eleven.utils.Lists;
 import com.cyanogenmod.eleven.utils.PreferenceUtils;
 import com.cyanogenmod.eleven.utils.ShakeDetector;
+import com.cyanogenmod.eleven.utils.SidecarFileIndex;
 import com.cyanogenmod.eleven.utils.SrtManager;
 
 import java.io.File;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
@@ -108,6 +112,13 @@ public class MusicPlaybackService extends Service {
      */
     public static final String POSITION_CHANGED = "com.cyanogenmod.eleven.positionchanged";
 
+    /**
+     * Indicates the current track was prepared, so its duration is known and
+     * its position starts moving. Unlike {@link #META_CHANGED} it isn't sticky
+     * and doesn't count as a play.
+     */
+    public static final String TRACK_PREPARED_CHANGED = "com.cyanogenmod.eleven.trackprepared";
+
     /**
      * Indicates the meta data has changed in some way, like a track change
      */
@@ -319,6 +330,21 @@ public class MusicPlaybackService extends Service {
      */
     private static final int HEADSET_HOOK_MULTI_CLICK_TIMEOUT = 9;
 
+    /**
+     * Indicates the current track finished preparing
+     */
+    private static final int TRACK_PREPARED = 10;
+
+    /**
+     * Indicates the current track couldn't be prepared
+     */
+    private static final int TRACK_PREPARE_FAILED = 11;
+
+    /**
+     * Number of tracks in a row that may fail to prepare before giving up
+     */
+    private static final int MAX_PREPARE_FAILURES = 10;
+
     /**
      * Idle time before stopping the foreground notfication (5 minutes)
      */
@@ -339,6 +365,32 @@ public class MusicPlaybackService extends Service {
      */
     public static final int MAX_HISTORY_SIZE = 1000;
 
+    /**
+     * Number of upcoming tracks whose artwork is warmed for the notification
+     */
+    private static final int PREFETCH_TRACK_COUNT = 3;
+
+    /**
+     * Number of upcoming tracks kept prepared by the player
+     */
+    private static final int LOOKAHEAD_TRACK_COUNT = 2;
+
+    /**
+     * Most track ids sent in one binder transaction, well under its 1 MB limit
+     */
+    public static final int MAX_QUEUE_TRANSFER = 4096;
+
+    /**
+     * Number of earlier versions of the queue kept to send changes against
+     */
+    private static final int MAX_QUEUE_VERSIONS = 4;
+
+    /**
+     * Largest edge of the album art handed to the media session, it scales anything
+     * bigger down to about this size anyway
+     */
+    private static final int SESSION_ARTWORK_MAX_SIZE_DP = 320;
+
     public interface TrackErrorExtra {
         /**
          * Name of the track that was unable to play
@@ -484,6 +536,8 @@ public class MusicPlaybackService extends Service {
 
     private int mOpenFailedCounter = 0;
 
+    private int mPrepareFailedCounter = 0;
+
     private int mMediaMountedCount = 0;
 
     private int mShuffleMode = SHUFFLE_NONE;
@@ -507,7 +561,26 @@ public class MusicPlaybackService extends Service {
     private String mCachedKey;
     private BitmapWithColors[] mCachedBitmapWithColors = new BitmapWithColors[2];
 
-    private QueueUpdateTask mQueueUpdateTask;
+    // the album art handed to the media session, scaled down once per album. It is shared
+    // by the metadata updates of the album, never recycle it
+    private String mSessionArtworkKey;
+    private Bitmap mSessionArtwork;
+
+    // the metadata last handed to the media session, and the track it was built for
+    private MediaMetadata mSessionMetadata;
+    private long mSessionMetadataAudioId = -1;
+
+    // the tracks whose artwork was last handed to the prefetcher
+    private long[] mPrefetchedAudioIds;
+
+    // publishes the window of the queue around the current track to the media session
+    private MediaSessionQueuePublisher mQueuePublisher;
+
+    // the state read by the binder getters, swapped on every change so they don't take the lock
+    private volatile PlaybackSnapshot mSnapshot = PlaybackSnapshot.EMPTY;
+
+    // the last few snapshots with a different queue, newest last, guarded by itself
+    private final ArrayDeque<PlaybackSnapshot> mQueueVersions = new ArrayDeque<PlaybackSnapshot>();
 
     /**
      * Image cache
@@ -710,6 +783,8 @@ public class MusicPlaybackService extends Service {
 
     private void setUpMediaSession() {
         mSession = new MediaSession(this, "Eleven");
+        mQueuePublisher = new MediaSessionQueuePublisher(this, mSession,
+                MediaSessionQueuePublisher.DEFAULT_WINDOW_SIZE);
         mSession.setCallback(new MediaSession.Callback() {
             @Override
             public void onPause() {
@@ -1290,6 +1365,35 @@ public class MusicPlaybackService extends Service {
         }
     }
 
+    /**
+     * Called when the current track was opened but couldn't be prepared, moves
+     * on to the next track the same way a track that can't be opened does
+     */
+    private void onPrepareFailed() {
+        synchronized (this) {
+            final boolean wasPlaying = mIsSupposedToBePlaying;
+            if (mPrepareFailedCounter++ < MAX_PREPARE_FAILURES && mPlaylist.size() > 1) {
+                final int pos = getNextPosition(false);
+                if (pos >= 0) {
+                    setAndRecordPlayPos(pos);
+                    openCurrentAndNext();
+                    if (wasPlaying) {
+                        play();
+                    }
+                    notifyChange(META_CHANGED);
+                    return;
+                }
+            }
+            mPrepareFailedCounter = 0;
+            Log.w(TAG, "Failed to prepare file for playback");
+            scheduleDelayedShutdown();
+            if (mIsSupposedToBePlaying) {
+                mIsSupposedToBePlaying = false;
+                notifyChange(PLAYSTATE_CHANGED);
+            }
+        }
+    }
+
     private void sendErrorMessage(final String trackName) {
         final Intent i = new Intent(TRACK_ERROR);
         i.putExtra(TrackErrorExtra.TRACK_NAME, trackName);
@@ -1410,8 +1514,45 @@ public class MusicPlaybackService extends Service {
         if (mNextPlayPos >= 0 && mPlaylist != null && mNextPlayPos < mPlaylist.size()) {
             final long id = mPlaylist.get(mNextPlayPos).mId;
             mPlayer.setNextDataSource(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI + "/" + id);
+            prepareUpcomingTracks();
+            prefetchUpcomingArtwork();
         } else {
             mPlayer.setNextDataSource(null);
+            mPlayer.setLookahead(new ArrayList<String>(0));
+        }
+    }
+
+    /**
+     * Keeps the next few tracks prepared, starting with the next pick which
+     * may be a shuffle pick, so skipping ahead doesn't wait for the player
+     */
+    private void prepareUpcomingTracks() {
+        final int count = mShuffleMode != SHUFFLE_NORMAL && mRepeatMode != REPEAT_CURRENT
+                ? Math.min(LOOKAHEAD_TRACK_COUNT, mPlaylist.size() - mNextPlayPos) : 1;
+        final List<String> paths = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            paths.add(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI + "/"
+                    + mPlaylist.get(mNextPlayPos + i).mId);
+        }
+        mPlayer.setLookahead(paths);
+    }
+
+    /**
+     * Warms the artwork of the next few tracks, starting with the next pick which may be a
+     * shuffle pick, so the notification and lock screen don't decode on a track change
+     */
+    private void prefetchUpcomingArtwork() {
+        final int count = mShuffleMode == SHUFFLE_NONE
+                ? Math.min(PREFETCH_TRACK_COUNT, mPlaylist.size() - mNextPlayPos) : 1;
+        final long[] ids = new long[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = mPlaylist.get(mNextPlayPos + i).mId;
+        }
+
+        // queue changes call this over and over with the same upcoming tracks
+        if (!Arrays.equals(ids, mPrefetchedAudioIds)) {
+            mPrefetchedAudioIds = ids;
+            mImageFetcher.prefetchArtwork(ids);
         }
     }
 
@@ -1503,10 +1644,29 @@ public class MusicPlaybackService extends Service {
     private void notifyChange(final String what) {
         if (D) Log.d(TAG, "notifyChange: what = " + what);
 
+        if (what.equals(QUEUE_CHANGED) && isPlaying()) {
+            // pick the next track first, so the snapshot doesn't carry a stale one
+            // if we are in shuffle mode and our next track is still valid,
+            // try to re-use the track
+            // We need to reimplement the queue to prevent hacky solutions like this
+            // https://cyanogen.atlassian.net/browse/MUSIC-175
+            // https://cyanogen.atlassian.net/browse/MUSIC-44
+            if (mNextPlayPos >= 0 && mNextPlayPos < mPlaylist.size()
+                    && getShuffleMode() != SHUFFLE_NONE) {
+                setNextTrack(mNextPlayPos);
+            } else {
+                setNextTrack();
+            }
+        }
+
+        publishSnapshot();
+
         // Update the lockscreen controls
         updateMediaSession(what);
 
-        if (what.equals(POSITION_CHANGED)) {
+        if (what.equals(POSITION_CHANGED) || what.equals(TRACK_PREPARED_CHANGED)) {
+            // not sticky, it only tells the UI to pick up the new position anchor
+            sendBroadcast(new Intent(what));
             return;
         }
 
@@ -1534,19 +1694,6 @@ public class MusicPlaybackService extends Service {
             mSongPlayCountCache.bumpSongCount(getAudioId());
         } else if (what.equals(QUEUE_CHANGED)) {
             saveQueue(true);
-            if (isPlaying()) {
-                // if we are in shuffle mode and our next track is still valid,
-                // try to re-use the track
-                // We need to reimplement the queue to prevent hacky solutions like this
-                // https://cyanogen.atlassian.net/browse/MUSIC-175
-                // https://cyanogen.atlassian.net/browse/MUSIC-44
-                if (mNextPlayPos >= 0 && mNextPlayPos < mPlaylist.size()
-                        && getShuffleMode() != SHUFFLE_NONE) {
-                    setNextTrack(mNextPlayPos);
-                } else {
-                    setNextTrack();
-                }
-            }
         } else {
             saveQueue(false);
         }
@@ -1574,37 +1721,21 @@ public class MusicPlaybackService extends Service {
                 PlaybackState.ACTION_SKIP_TO_PREVIOUS |
                 PlaybackState.ACTION_STOP;
 
-        if (what.equals(PLAYSTATE_CHANGED) || what.equals(POSITION_CHANGED)) {
+        if (what.equals(PLAYSTATE_CHANGED) || what.equals(POSITION_CHANGED)
+                || what.equals(TRACK_PREPARED_CHANGED)) {
+            if (what.equals(TRACK_PREPARED_CHANGED)) {
+                updateMediaSessionDuration();
+            }
             mSession.setPlaybackState(new PlaybackState.Builder()
                     .setActions(playBackStateActions)
                     .setActiveQueueItemId(getAudioId())
                     .setState(playState, position(), 1.0f).build());
         } else if (what.equals(META_CHANGED) || what.equals(QUEUE_CHANGED)) {
-            Bitmap albumArt = getAlbumArt(false).getBitmap();
-            if (albumArt != null) {
-                // RemoteControlClient wants to recycle the bitmaps thrown at it, so we need
-                // to make sure not to hand out our cache copy
-                Bitmap.Config config = albumArt.getConfig();
-                if (config == null) {
-                    config = Bitmap.Config.ARGB_8888;
-                }
-                albumArt = albumArt.copy(config, false);
-            }
-
-            mSession.setMetadata(new MediaMetadata.Builder()
-                    .putString(MediaMetadata.METADATA_KEY_ARTIST, getArtistName())
-                    .putString(MediaMetadata.METADATA_KEY_ALBUM_ARTIST, getAlbumArtistName())
-                    .putString(MediaMetadata.METADATA_KEY_ALBUM, getAlbumName())
-                    .putString(MediaMetadata.METADATA_KEY_TITLE, getTrackName())
-                    .putLong(MediaMetadata.METADATA_KEY_DURATION, duration())
-                    .putLong(MediaMetadata.METADATA_KEY_TRACK_NUMBER, getQueuePosition() + 1)
-                    .putLong(MediaMetadata.METADATA_KEY_NUM_TRACKS, getQueue().length)
-                    .putString(MediaMetadata.METADATA_KEY_GENRE, getGenreName())
-                    .putBitmap(MediaMetadata.METADATA_KEY_ALBUM_ART,
-                            mShowAlbumArtOnLockscreen ? albumArt : null)
-                    .build());
-
-            if (what.equals(QUEUE_CHANGED)) {
+            updateMediaSessionMetadata(what.equals(QUEUE_CHANGED));
+
+            // the published window follows the current track through the queue
+            if (what.equals(QUEUE_CHANGED)
+                    || mQueuePublisher.needsRepublish(getQueuePosition())) {
                 updateMediaSessionQueue();
             }
 
@@ -1615,12 +1746,105 @@ public class MusicPlaybackService extends Service {
         }
     }
 
-    private synchronized void updateMediaSessionQueue() {
-        if (mQueueUpdateTask != null) {
-            mQueueUpdateTask.cancel(true);
+    /**
+     * Hands the metadata of the current track to the media session. When only the queue
+     * changed, the metadata of the same track is patched with its new place in the queue,
+     * and nothing is published if that didn't change either.
+     */
+    private void updateMediaSessionMetadata(final boolean queueChangedOnly) {
+        final long audioId = getAudioId();
+        final long trackNumber = getQueuePosition() + 1;
+        final long numTracks = getQueueSize();
+
+        if (queueChangedOnly && mSessionMetadata != null && audioId == mSessionMetadataAudioId) {
+            if (mSessionMetadata.getLong(MediaMetadata.METADATA_KEY_TRACK_NUMBER) == trackNumber
+                    && mSessionMetadata.getLong(MediaMetadata.METADATA_KEY_NUM_TRACKS)
+                            == numTracks) {
+                return;
+            }
+            mSessionMetadata = new MediaMetadata.Builder(mSessionMetadata)
+                    .putLong(MediaMetadata.METADATA_KEY_TRACK_NUMBER, trackNumber)
+                    .putLong(MediaMetadata.METADATA_KEY_NUM_TRACKS, numTracks)
+                    .build();
+            mSession.setMetadata(mSessionMetadata);
+            return;
+        }
+
+        mSessionMetadata = new MediaMetadata.Builder()
+                .putString(MediaMetadata.METADATA_KEY_ARTIST, getArtistName())
+                .putString(MediaMetadata.METADATA_KEY_ALBUM_ARTIST, getAlbumArtistName())
+                .putString(MediaMetadata.METADATA_KEY_ALBUM, getAlbumName())
+                .putString(MediaMetadata.METADATA_KEY_TITLE, getTrackName())
+                .putLong(MediaMetadata.METADATA_KEY_DURATION, duration())
+                .putLong(MediaMetadata.METADATA_KEY_TRACK_NUMBER, trackNumber)
+                .putLong(MediaMetadata.METADATA_KEY_NUM_TRACKS, numTracks)
+                .putString(MediaMetadata.METADATA_KEY_GENRE, getGenreName())
+                .putBitmap(MediaMetadata.METADATA_KEY_ALBUM_ART,
+                        mShowAlbumArtOnLockscreen ? getSessionArtwork() : null)
+                .build();
+        mSessionMetadataAudioId = audioId;
+        mSession.setMetadata(mSessionMetadata);
+    }
+
+    /**
+     * Patches the duration of the current track into the session metadata,
+     * once the track is prepared and its duration is known
+     */
+    private void updateMediaSessionDuration() {
+        final long duration = duration();
+        if (mSessionMetadata == null || mSessionMetadataAudioId != getAudioId()
+                || mSessionMetadata.getLong(MediaMetadata.METADATA_KEY_DURATION) == duration) {
+            return;
+        }
+        mSessionMetadata = new MediaMetadata.Builder(mSessionMetadata)
+                .putLong(MediaMetadata.METADATA_KEY_DURATION, duration)
+                .build();
+        mSession.setMetadata(mSessionMetadata);
+    }
+
+    /**
+     * Returns the album art of the current track sized for the media session. The copy is
+     * made once per album, scaled down to what the session keeps anyway, instead of
+     * copying the full size artwork on every metadata update. The bitmap is immutable and
+     * shared by every metadata update of the album, so it must never be recycled.
+     */
+    private Bitmap getSessionArtwork() {
+        final String key = getAlbumArtKey();
+        if (key.equals(mSessionArtworkKey)) {
+            return mSessionArtwork;
+        }
+
+        final Bitmap albumArt = getAlbumArt(false).getBitmap();
+        Bitmap sessionArtwork = null;
+        if (albumArt != null) {
+            final int maxSize = Math.round(SESSION_ARTWORK_MAX_SIZE_DP
+                    * getResources().getDisplayMetrics().density);
+            final int largest = Math.max(albumArt.getWidth(), albumArt.getHeight());
+            // always an immutable copy, so nothing done to the cached artwork reaches
+            // the session
+            if (largest > maxSize) {
+                final float scale = (float)maxSize / largest;
+                sessionArtwork = Bitmap.createScaledBitmap(albumArt,
+                        Math.max(1, Math.round(albumArt.getWidth() * scale)),
+                        Math.max(1, Math.round(albumArt.getHeight() * scale)), true);
+            } else {
+                Bitmap.Config config = albumArt.getConfig();
+                if (config == null) {
+                    config = Bitmap.Config.ARGB_8888;
+                }
+                sessionArtwork = albumArt.copy(config, false);
+            }
         }
-        mQueueUpdateTask = new QueueUpdateTask(getQueue());
-        mQueueUpdateTask.execute();
+
+        mSessionArtworkKey = key;
+        mSessionArtwork = sessionArtwork;
+        return sessionArtwork;
+    }
+
+    private void updateMediaSessionQueue() {
+        // the snapshot was just published, its queue can be shared without a copy
+        final PlaybackSnapshot snapshot = mSnapshot;
+        mQueuePublisher.publish(snapshot.mQueueIds, snapshot.mQueuePosition);
     }
 
     private Notification buildNotification() {
@@ -1740,7 +1964,9 @@ public class MusicPlaybackService extends Service {
             }
 
             final long seekpos = mPreferences.getLong("seekpos", 0);
-            seek(seekpos >= 0 && seekpos < duration() ? seekpos : 0);
+            // the duration isn't known until the track is prepared, the player
+            // clamps the seek once it is
+            seek(seekpos >= 0 && (duration() < 0 || seekpos < duration()) ? seekpos : 0);
 
             if (D) {
                 Log.d(TAG, "restored queue, currently at position "
@@ -1927,6 +2153,113 @@ public class MusicPlaybackService extends Service {
         return null;
     }
 
+    /**
+     * @return The state of the service as of the last change. This doesn't
+     *         take the service lock.
+     */
+    public PlaybackSnapshot getPlaybackSnapshot() {
+        return mSnapshot;
+    }
+
+    /**
+     * @param start The position of the first track
+     * @param count The number of tracks, at most {@link #MAX_QUEUE_TRANSFER}
+     * @return The track ids of that part of the queue
+     */
+    public long[] getQueueRange(final int start, final int count) {
+        final long[] queue = mSnapshot.mQueueIds;
+        final int from = Math.max(0, Math.min(start, queue.length));
+        final int to = Math.min(queue.length, from + Math.max(0, Math.min(count,
+                MAX_QUEUE_TRANSFER)));
+        return Arrays.copyOfRange(queue, from, to);
+    }
+
+    /**
+     * @param version A version of the queue the caller knows
+     * @return What changed in the queue since that version, or null if that
+     *         version is too old or the changes too large to send, in which
+     *         case the caller should read the queue again with {@link #getQueueRange}
+     */
+    public QueueChanges getQueueChangesSince(final long version) {
+        final PlaybackSnapshot current = mSnapshot;
+        if (version == current.mQueueVersion) {
+            return new QueueChanges(version, version, 0, 0, new long[0]);
+        }
+
+        PlaybackSnapshot known = null;
+        synchronized (mQueueVersions) {
+            for (final PlaybackSnapshot snapshot : mQueueVersions) {
+                if (snapshot.mQueueVersion == version) {
+                    known = snapshot;
+                    break;
+                }
+            }
+        }
+        if (known == null) {
+            return null;
+        }
+
+        final QueueChanges changes = QueueChanges.compute(known.mQueueIds, version,
+                current.mQueueIds, current.mQueueVersion);
+        return changes.mInsertIds.length <= MAX_QUEUE_TRANSFER ? changes : null;
+    }
+
+    /**
+     * Builds a snapshot of the current state and swaps it in for the binder
+     * getters. The queue is only copied when it changed.
+     */
+    private void publishSnapshot() {
+        synchronized (this) {
+            final PlaybackSnapshot previous = mSnapshot;
+            final PlaybackSnapshot.Builder builder = new PlaybackSnapshot.Builder()
+                    .setVersion(previous.mVersion + 1);
+
+            if (previous.hasSameQueue(mPlaylist)) {
+                builder.setQueue(previous.mQueue, previous.mQueueIds, previous.mQueueVersion);
+            } else {
+                final int size = mPlaylist.size();
+                final MusicPlaybackTrack[] queue = mPlaylist.toArray(new MusicPlaybackTrack[size]);
+                final long[] queueIds = new long[size];
+                for (int i = 0; i < size; i++) {
+                    queueIds[i] = queue[i].mId;
+                }
+                builder.setQueue(queue, queueIds, previous.mQueueVersion + 1);
+
+                synchronized (mQueueVersions) {
+                    if (mQueueVersions.size() >= MAX_QUEUE_VERSIONS) {
+                        mQueueVersions.removeFirst();
+                    }
+                    mQueueVersions.addLast(previous);
+                }
+            }
+
+            if (previous.hasSameHistory(mHistory)) {
+                builder.setHistory(previous.mHistory);
+            } else {
+                builder.setHistory(getQueueHistoryList());
+            }
+
+            builder.setQueuePosition(mPlayPos)
+                    .setCurrentTrack(getCurrentTrack())
+                    .setNextAudioId(getNextAudioId())
+                    .setPreviousAudioId(getPreviousAudioId())
+                    .setShuffleMode(mShuffleMode)
+                    .setRepeatMode(mRepeatMode)
+                    .setPlaying(mIsSupposedToBePlaying)
+                    .setPosition(position(), SystemClock.elapsedRealtime(), duration(),
+                            mIsSupposedToBePlaying && mPlayer.isPrepared() ? 1.0f : 0.0f);
+            if (mCursor != null) {
+                builder.setTrackName(getTrackName())
+                        .setArtistName(getArtistName())
+                        .setAlbumName(getAlbumName())
+                        .setAlbumId(getAlbumId())
+                        .setArtistId(getArtistId())
+                        .setPath(getPath());
+            }
+            mSnapshot = builder.build();
+        }
+    }
+
     /**
      * Returns the audio session ID
      *
@@ -2270,7 +2603,7 @@ public class MusicPlaybackService extends Service {
         if (mPlayer.isInitialized()) {
             if (position < 0) {
                 position = 0;
-            } else if (position > mPlayer.duration()) {
+            } else if (mPlayer.duration() >= 0 && position > mPlayer.duration()) {
                 position = mPlayer.duration();
             }
             long result = mPlayer.seek(position);
@@ -2296,7 +2629,7 @@ public class MusicPlaybackService extends Service {
                     prev(true);
                     // seek to the new duration + the leftover position
                     seek(duration() + newPos);
-                } else if (newPos >= duration) {
+                } else if (duration >= 0 && newPos >= duration) {
                     gotoNext(true);
                     // seek to the leftover duration
                     seek(newPos - duration);
@@ -2821,7 +3154,7 @@ public class MusicPlaybackService extends Service {
         final String albumName = getAlbumName();
         final String artistName = getArtistName();
         final long albumId = getAlbumId();
-        final String key = albumName + "_" + artistName + "_" + albumId;
+        final String key = getAlbumArtKey();
         final int targetIndex = smallBitmap ? 0 : 1;
 
         // if the cached key matches and we have the bitmap, return it
@@ -2845,6 +3178,13 @@ public class MusicPlaybackService extends Service {
         return bitmap;
     }
 
+    /**
+     * @return the key the album art of the current track is cached under
+     */
+    private String getAlbumArtKey() {
+        return getAlbumName() + "_" + getArtistName() + "_" + getAlbumId();
+    }
+
     /**
      * Called when one of the lists should refresh or requery.
      */
@@ -3054,6 +3394,15 @@ public class MusicPlaybackService extends Service {
                             service.gotoNext(false);
                         }
                         break;
+                    case TRACK_PREPARED:
+                        service.mPrepareFailedCounter = 0;
+                        // the duration is known now
+                        service.notifyChange(TRACK_PREPARED_CHANGED);
+                        break;
+                    case TRACK_PREPARE_FAILED:
+                        service.sendErrorMessage(service.getTrackName());
+                        service.onPrepareFailed();
+                        break;
                     case LYRICS:
                         service.mLyrics = (String) msg.obj;
                         service.notifyChange(NEW_LYRICS);
@@ -3180,19 +3529,102 @@ public class MusicPlaybackService extends Service {
     private static final class MultiPlayer implements MediaPlayer.OnErrorListener,
             MediaPlayer.OnCompletionListener {
 
-        private final WeakReference<MusicPlaybackService> mService;
+        /**
+         * States of a player, see {@link #mState}
+         */
+        private static final int STATE_IDLE = 0;
+        private static final int STATE_PREPARING = 1;
+        private static final int STATE_PREPARED = 2;
 
-        private MediaPlayer mCurrentMediaPlayer = new MediaPlayer();
+        /**
+         * A track that takes longer than this to prepare is given up on
+         */
+        private static final long PREPARE_TIMEOUT_MS = 10000;
+
+        /**
+         * Number of upcoming tracks kept prepared, including the next one
+         */
+        private static final int MAX_LOOKAHEAD_PLAYERS = 3;
 
-        private MediaPlayer mNextMediaPlayer;
+        /**
+         * Number of reset players kept around to prepare the next upcoming tracks
+         */
+        private static final int MAX_SPARE_PLAYERS = 2;
+
+        private final WeakReference<MusicPlaybackService> mService;
+
+        /**
+         * The players are swapped on the thread the callbacks come in on, and
+         * read without locking by the getters
+         */
+        private volatile MediaPlayer mCurrentMediaPlayer = new MediaPlayer();
 
         private Handler mHandler;
 
-        private boolean mIsInitialized = false;
+        private volatile boolean mIsInitialized = false;
 
         private SrtManager mSrtManager;
 
-        private String mNextMediaPath;
+        /**
+         * Finds the subtitle and lyrics files of the tracks in the background
+         */
+        private final SidecarFileIndex mSidecarIndex;
+
+        /**
+         * The track the subtitles or lyrics are loaded for
+         */
+        private String mSrtPath;
+
+        /**
+         * State of the current player. Everything asked of it while it is
+         * preparing is kept and applied once it is prepared.
+         */
+        private volatile int mState = STATE_IDLE;
+
+        /**
+         * The players preparing or prepared for the upcoming tracks, by path.
+         * A skip or a completion onto one of these tracks doesn't wait for it
+         * to prepare, and a queue edit that keeps a track upcoming keeps its
+         * player.
+         */
+        private final LinkedHashMap<String, LookaheadPlayer> mLookahead =
+                new LinkedHashMap<String, LookaheadPlayer>();
+
+        /**
+         * Players that were reset to be used again, rather than released
+         */
+        private final ArrayDeque<MediaPlayer> mSparePlayers = new ArrayDeque<MediaPlayer>();
+
+        /**
+         * The upcoming player that plays when the current track completes
+         */
+        private LookaheadPlayer mNext;
+
+        /**
+         * Whether the next player is set as the next player of the current one
+         */
+        private boolean mNextChained = false;
+
+        /**
+         * Bumped whenever the current player is reset, so late callbacks of an
+         * earlier track are ignored
+         */
+        private int mGeneration = 0;
+
+        /**
+         * Duration of the current track, known once it is prepared
+         */
+        private volatile long mDuration = -1;
+
+        /**
+         * Where to seek to, and whether to start, once the current track is prepared
+         */
+        private volatile long mPendingSeek = 0;
+        private boolean mPendingStart = false;
+
+        private float mVolume = 1.0f;
+
+        private PrepareTimeout mPrepareTimeout;
 
         /**
          * Constructor of <code>MultiPlayer</code>
@@ -3205,54 +3637,90 @@ public class MusicPlaybackService extends Service {
                     mHandler.obtainMessage(LYRICS, text).sendToTarget();
                 }
             };
+            mSidecarIndex = new SidecarFileIndex(service, new SidecarFileIndex.Callback() {
+                @Override
+                public void onSidecarFound(String trackPath, File sidecar) {
+                    onSrtFound(trackPath, sidecar);
+                }
+            });
         }
 
         /**
+         * Starts preparing a track. This doesn't wait for the track to be
+         * prepared, {@link #isInitialized()} is true as soon as the track could
+         * be opened and the handler gets {@link #TRACK_PREPARED} or
+         * {@link #TRACK_PREPARE_FAILED} later.
+         *
          * @param path The path of the file, or the http/rtsp URL of the stream
          *            you want to play
          */
-        public void setDataSource(final String path) {
-            mIsInitialized = setDataSourceImpl(mCurrentMediaPlayer, path);
+        public synchronized void setDataSource(final String path) {
+            mGeneration++;
+            cancelPrepareTimeout();
+            mState = STATE_IDLE;
+            mDuration = -1;
+            mPendingSeek = 0;
+            mPendingStart = false;
+            unchainNextPlayer();
+            mNext = null;
+
+            final LookaheadPlayer upcoming = mLookahead.remove(path);
+            if (upcoming != null) {
+                recycle(mCurrentMediaPlayer);
+                mCurrentMediaPlayer = upcoming.mPlayer;
+                mIsInitialized = true;
+                if (upcoming.mState == STATE_PREPARED) {
+                    mState = STATE_PREPARED;
+                    mDuration = mCurrentMediaPlayer.getDuration();
+                    mCurrentMediaPlayer.setVolume(mVolume, mVolume);
+                    mHandler.sendEmptyMessage(TRACK_PREPARED);
+                } else {
+                    waitForPrepared();
+                }
+            } else {
+                mIsInitialized = setDataSourceImpl(mCurrentMediaPlayer, path,
+                        new PreparedListener(mGeneration));
+                if (mIsInitialized) {
+                    waitForPrepared();
+                }
+            }
             if (mIsInitialized) {
                 loadSrt(path);
-                setNextDataSource(null);
             }
         }
 
+        /**
+         * Waits for the current player, which is preparing, to be prepared
+         */
+        private void waitForPrepared() {
+            mState = STATE_PREPARING;
+            mCurrentMediaPlayer.setOnPreparedListener(new PreparedListener(mGeneration));
+            mPrepareTimeout = new PrepareTimeout(mGeneration);
+            mHandler.postDelayed(mPrepareTimeout, PREPARE_TIMEOUT_MS);
+        }
+
+        /**
+         * Loads the subtitles or lyrics of a track if they are known. This
+         * doesn't touch the disk or the provider, if they turn up later
+         * {@link #onSrtFound} loads them.
+         */
         private void loadSrt(final String path) {
             mSrtManager.reset();
+            mSrtPath = path;
 
-            Uri uri = Uri.parse(path);
-            String filePath = null;
-
-            if (path.startsWith("content://")) {
-                // resolve the content resolver path to a file path
-                Cursor cursor = null;
-                try {
-                    final String[] proj = {MediaStore.Audio.Media.DATA};
-                    cursor = mService.get().getContentResolver().query(uri, proj,
-                            null, null, null);
-                    if (cursor != null && cursor.moveToFirst()) {
-                        filePath = cursor.getString(0);
-                    }
-                } finally {
-                    if (cursor != null) {
-                        cursor.close();
-                        cursor = null;
-                    }
-                }
-            } else {
-                filePath = uri.getPath();
+            final File f = mSidecarIndex.getSidecar(path);
+            if (f != null) {
+                mSrtManager.initialize(mCurrentMediaPlayer, f);
             }
+        }
 
-            if (!TextUtils.isEmpty(filePath)) {
-                final int lastIndex = filePath.lastIndexOf('.');
-                if (lastIndex != -1) {
-                    String newPath = filePath.substring(0, lastIndex) + ".srt";
-                    final File f = new File(newPath);
-
-                    mSrtManager.initialize(mCurrentMediaPlayer, f);
-                }
+        /**
+         * Called from the background when the sidecar index finds the
+         * subtitles or lyrics of a track
+         */
+        private synchronized void onSrtFound(final String path, final File f) {
+            if (mIsInitialized && mSrtManager != null && path.equals(mSrtPath)) {
+                mSrtManager.initialize(mCurrentMediaPlayer, f);
             }
         }
 
@@ -3260,13 +3728,14 @@ public class MusicPlaybackService extends Service {
          * @param player The {@link MediaPlayer} to use
          * @param path The path of the file, or the http/rtsp URL of the stream
          *            you want to play
-         * @return True if the <code>player</code> has been prepared and is
-         *         ready to play, false otherwise
+         * @param listener Called once the <code>player</code> is prepared
+         * @return True if the <code>player</code> has started preparing, false
+         *         if the track couldn't be opened
          */
-        private boolean setDataSourceImpl(final MediaPlayer player, final String path) {
+        private boolean setDataSourceImpl(final MediaPlayer player, final String path,
+                final MediaPlayer.OnPreparedListener listener) {
             try {
                 player.reset();
-                player.setOnPreparedListener(null);
                 if (path.startsWith("content://")) {
                     player.setDataSource(mService.get(), Uri.parse(path));
                 } else {
@@ -3274,13 +3743,16 @@ public class MusicPlaybackService extends Service {
                 }
                 player.setAudioStreamType(AudioManager.STREAM_MUSIC);
 
-                player.prepare();
+                player.setOnPreparedListener(listener);
+                player.prepareAsync();
             } catch (final IOException todo) {
                 // TODO: notify the user why the file couldn't be opened
                 return false;
             } catch (final IllegalArgumentException todo) {
                 // TODO: notify the user why the file couldn't be opened
                 return false;
+            } catch (final IllegalStateException todo) {
+                return false;
             }
             player.setOnCompletionListener(this);
             player.setOnErrorListener(this);
@@ -3289,37 +3761,178 @@ public class MusicPlaybackService extends Service {
 
         /**
          * Set the MediaPlayer to start when this MediaPlayer finishes playback.
+         * The next track is prepared in the background and chained to the
+         * current one once both are prepared. Setting the same next track again
+         * keeps its player.
          *
          * @param path The path of the file, or the http/rtsp URL of the stream
          *            you want to play
          */
-        public void setNextDataSource(final String path) {
-            mNextMediaPath = null;
+        public synchronized void setNextDataSource(final String path) {
+            if (mNext != null && mNext.mPath.equals(path)) {
+                return;
+            }
+            unchainNextPlayer();
+            mNext = path != null ? obtainLookaheadPlayer(path) : null;
+            chainNextPlayer();
+        }
+
+        /**
+         * Keeps the upcoming tracks prepared, starting with the most likely
+         * one. Players of tracks that are no longer upcoming are recycled.
+         *
+         * @param paths The paths of the upcoming tracks, the next track set
+         *            with {@link #setNextDataSource} is always kept
+         */
+        public synchronized void setLookahead(final List<String> paths) {
+            final Iterator<LookaheadPlayer> iterator = mLookahead.values().iterator();
+            while (iterator.hasNext()) {
+                final LookaheadPlayer upcoming = iterator.next();
+                if (upcoming != mNext && !paths.contains(upcoming.mPath)) {
+                    iterator.remove();
+                    recycle(upcoming.mPlayer);
+                }
+            }
+            for (final String path : paths) {
+                if (mLookahead.size() >= MAX_LOOKAHEAD_PLAYERS) {
+                    break;
+                }
+                obtainLookaheadPlayer(path);
+            }
+            for (final String path : paths) {
+                mSidecarIndex.prefetch(path);
+            }
+        }
+
+        /**
+         * @return The player of an upcoming track, which is started preparing
+         *         if it wasn't yet, or null if the track couldn't be opened
+         */
+        private LookaheadPlayer obtainLookaheadPlayer(final String path) {
+            LookaheadPlayer upcoming = mLookahead.get(path);
+            if (upcoming != null) {
+                return upcoming;
+            }
+            MediaPlayer player = mSparePlayers.poll();
+            if (player == null) {
+                player = new MediaPlayer();
+            }
+            player.setAudioSessionId(getAudioSessionId());
+            upcoming = new LookaheadPlayer(player, path);
+            if (!setDataSourceImpl(player, path, new LookaheadPreparedListener(upcoming))) {
+                player.release();
+                return null;
+            }
+            upcoming.mState = STATE_PREPARING;
+            mLookahead.put(path, upcoming);
+            return upcoming;
+        }
+
+        /**
+         * Resets a player that is no longer needed so it can prepare another
+         * track, or releases it if enough are kept already
+         */
+        private void recycle(final MediaPlayer player) {
+            if (mSparePlayers.size() < MAX_SPARE_PLAYERS) {
+                player.reset();
+                mSparePlayers.add(player);
+            } else {
+                player.release();
+            }
+        }
+
+        /**
+         * Chains the next player to the current one, once both are prepared
+         */
+        private void chainNextPlayer() {
+            if (mNextChained || mNext == null || mState != STATE_PREPARED
+                    || mNext.mState != STATE_PREPARED) {
+                return;
+            }
+            try {
+                mCurrentMediaPlayer.setNextMediaPlayer(mNext.mPlayer);
+                mNextChained = true;
+            } catch (IllegalStateException e) {
+                Log.e(TAG, "chainNextPlayer - " + e);
+            }
+        }
+
+        private void unchainNextPlayer() {
+            if (!mNextChained) {
+                return;
+            }
+            mNextChained = false;
             try {
                 mCurrentMediaPlayer.setNextMediaPlayer(null);
             } catch (IllegalArgumentException e) {
                 Log.i(TAG, "Next media player is current one, continuing");
             } catch (IllegalStateException e) {
                 Log.e(TAG, "Media player not initialized!");
+            }
+        }
+
+        /**
+         * Called when the current player finished preparing
+         */
+        private synchronized void onPrepared(final MediaPlayer mp, final int generation) {
+            if (mp != mCurrentMediaPlayer || generation != mGeneration
+                    || mState != STATE_PREPARING) {
                 return;
             }
-            if (mNextMediaPlayer != null) {
-                mNextMediaPlayer.release();
-                mNextMediaPlayer = null;
+            cancelPrepareTimeout();
+            mState = STATE_PREPARED;
+            mDuration = mp.getDuration();
+            mp.setVolume(mVolume, mVolume);
+            final long seek = Math.min(mPendingSeek, mDuration);
+            if (seek > 0) {
+                mp.seekTo((int)seek);
+                mSrtManager.seekTo(seek);
             }
-            if (path == null) {
+            if (mPendingStart) {
+                mPendingStart = false;
+                mp.start();
+                mSrtManager.play();
+            }
+            mHandler.sendEmptyMessage(TRACK_PREPARED);
+            chainNextPlayer();
+        }
+
+        /**
+         * Called when the player of an upcoming track finished preparing
+         */
+        private synchronized void onLookaheadPrepared(final LookaheadPlayer upcoming) {
+            if (mLookahead.get(upcoming.mPath) != upcoming) {
+                // it became the current player, or was recycled
                 return;
             }
-            mNextMediaPlayer = new MediaPlayer();
-            mNextMediaPlayer.setAudioSessionId(getAudioSessionId());
-            if (setDataSourceImpl(mNextMediaPlayer, path)) {
-                mNextMediaPath = path;
-                mCurrentMediaPlayer.setNextMediaPlayer(mNextMediaPlayer);
-            } else {
-                if (mNextMediaPlayer != null) {
-                    mNextMediaPlayer.release();
-                    mNextMediaPlayer = null;
-                }
+            upcoming.mState = STATE_PREPARED;
+            if (upcoming == mNext) {
+                chainNextPlayer();
+            }
+        }
+
+        /**
+         * Gives up on the current track, which couldn't be prepared
+         */
+        private synchronized void onPrepareFailed(final int generation) {
+            if (generation != mGeneration || mState != STATE_PREPARING) {
+                return;
+            }
+            Log.w(TAG, "Failed to prepare the current track");
+            mGeneration++;
+            cancelPrepareTimeout();
+            mCurrentMediaPlayer.reset();
+            mSrtManager.reset();
+            mState = STATE_IDLE;
+            mIsInitialized = false;
+            mPendingStart = false;
+            mHandler.sendEmptyMessage(TRACK_PREPARE_FAILED);
+        }
+
+        private void cancelPrepareTimeout() {
+            if (mPrepareTimeout != null) {
+                mHandler.removeCallbacks(mPrepareTimeout);
+                mPrepareTimeout = null;
             }
         }
 
@@ -3333,62 +3946,107 @@ public class MusicPlaybackService extends Service {
         }
 
         /**
-         * @return True if the player is ready to go, false otherwise
+         * @return True if a track is prepared or preparing, false otherwise
          */
         public boolean isInitialized() {
             return mIsInitialized;
         }
 
         /**
-         * Starts or resumes playback.
+         * @return True if the current track is prepared
          */
-        public void start() {
-            mCurrentMediaPlayer.start();
-            mSrtManager.play();
+        public boolean isPrepared() {
+            return mState == STATE_PREPARED;
+        }
+
+        /**
+         * Starts or resumes playback, as soon as the track is prepared
+         */
+        public synchronized void start() {
+            if (mState == STATE_PREPARED) {
+                mCurrentMediaPlayer.start();
+                mSrtManager.play();
+            } else {
+                mPendingStart = true;
+            }
         }
 
         /**
          * Resets the MediaPlayer to its uninitialized state.
          */
-        public void stop() {
+        public synchronized void stop() {
+            mGeneration++;
+            cancelPrepareTimeout();
             mCurrentMediaPlayer.reset();
             mSrtManager.reset();
+            mState = STATE_IDLE;
+            mDuration = -1;
+            mPendingSeek = 0;
+            mPendingStart = false;
             mIsInitialized = false;
         }
 
         /**
          * Releases resources associated with this MediaPlayer object.
          */
-        public void release() {
+        public synchronized void release() {
+            mGeneration++;
+            cancelPrepareTimeout();
             mCurrentMediaPlayer.release();
+            releaseLookahead();
+            mState = STATE_IDLE;
             mSrtManager.release();
             mSrtManager = null;
         }
 
+        /**
+         * Releases the upcoming and spare players
+         */
+        private void releaseLookahead() {
+            for (final LookaheadPlayer upcoming : mLookahead.values()) {
+                upcoming.mPlayer.release();
+            }
+            mLookahead.clear();
+            mNext = null;
+            mNextChained = false;
+            for (final MediaPlayer player : mSparePlayers) {
+                player.release();
+            }
+            mSparePlayers.clear();
+        }
+
         /**
          * Pauses playback. Call start() to resume.
          */
-        public void pause() {
-            mCurrentMediaPlayer.pause();
+        public synchronized void pause() {
+            if (mState == STATE_PREPARED) {
+                mCurrentMediaPlayer.pause();
+            } else {
+                mPendingStart = false;
+            }
             mSrtManager.pause();
         }
 
         /**
-         * Gets the duration of the file.
+         * Gets the duration of the file. Doesn't block.
          *
-         * @return The duration in milliseconds
+         * @return The duration in milliseconds, or -1 until the track is prepared
          */
         public long duration() {
-            return mCurrentMediaPlayer.getDuration();
+            return mDuration;
         }
 
         /**
-         * Gets the current playback position.
+         * Gets the current playback position. Doesn't block on a track that
+         * is still preparing.
          *
          * @return The current position in milliseconds
          */
         public long position() {
-            return mCurrentMediaPlayer.getCurrentPosition();
+            if (mState == STATE_PREPARED) {
+                return mCurrentMediaPlayer.getCurrentPosition();
+            }
+            return mPendingSeek;
         }
 
         /**
@@ -3397,8 +4055,12 @@ public class MusicPlaybackService extends Service {
          * @param whereto The offset in milliseconds from the start to seek to
          * @return The offset in milliseconds from the start to seek to
          */
-        public long seek(final long whereto) {
-            mCurrentMediaPlayer.seekTo((int)whereto);
+        public synchronized long seek(final long whereto) {
+            if (mState == STATE_PREPARED) {
+                mCurrentMediaPlayer.seekTo((int)whereto);
+            } else {
+                mPendingSeek = whereto;
+            }
             mSrtManager.seekTo(whereto);
             return whereto;
         }
@@ -3408,8 +4070,11 @@ public class MusicPlaybackService extends Service {
          *
          * @param vol Left and right volume scalar
          */
-        public void setVolume(final float vol) {
-            mCurrentMediaPlayer.setVolume(vol, vol);
+        public synchronized void setVolume(final float vol) {
+            mVolume = vol;
+            if (mState == STATE_PREPARED) {
+                mCurrentMediaPlayer.setVolume(vol, vol);
+            }
         }
 
         /**
@@ -3438,19 +4103,48 @@ public class MusicPlaybackService extends Service {
             Log.w(TAG, "Music Server Error what: " + what + " extra: " + extra);
             switch (what) {
                 case MediaPlayer.MEDIA_ERROR_SERVER_DIED:
+                    // looked up before taking the lock, the service may be holding its own
                     final MusicPlaybackService service = mService.get();
                     final TrackErrorInfo errorInfo = new TrackErrorInfo(service.getAudioId(),
                             service.getTrackName());
 
-                    mIsInitialized = false;
-                    mCurrentMediaPlayer.release();
-                    mCurrentMediaPlayer = new MediaPlayer();
+                    synchronized (this) {
+                        mGeneration++;
+                        cancelPrepareTimeout();
+                        mIsInitialized = false;
+                        mState = STATE_IDLE;
+                        mDuration = -1;
+                        mCurrentMediaPlayer.release();
+                        mCurrentMediaPlayer = new MediaPlayer();
+                        // the upcoming players died along with the server
+                        releaseLookahead();
+                    }
                     Message msg = mHandler.obtainMessage(SERVER_DIED, errorInfo);
                     mHandler.sendMessageDelayed(msg, 2000);
                     return true;
                 default:
                     break;
             }
+
+            synchronized (this) {
+                if (mp == mCurrentMediaPlayer && mState == STATE_PREPARING) {
+                    onPrepareFailed(mGeneration);
+                    return true;
+                }
+                final Iterator<LookaheadPlayer> iterator = mLookahead.values().iterator();
+                while (iterator.hasNext()) {
+                    final LookaheadPlayer upcoming = iterator.next();
+                    if (upcoming.mPlayer == mp && upcoming.mState == STATE_PREPARING) {
+                        // the track will be opened again when it becomes the current one
+                        iterator.remove();
+                        upcoming.mPlayer.release();
+                        if (upcoming == mNext) {
+                            mNext = null;
+                        }
+                        return true;
+                    }
+                }
+            }
             return false;
         }
 
@@ -3459,15 +4153,93 @@ public class MusicPlaybackService extends Service {
          */
         @Override
         public void onCompletion(final MediaPlayer mp) {
-            if (mp == mCurrentMediaPlayer && mNextMediaPlayer != null) {
-                mCurrentMediaPlayer.release();
-                mCurrentMediaPlayer = mNextMediaPlayer;
-                loadSrt(mNextMediaPath);
-                mNextMediaPath = null;
-                mNextMediaPlayer = null;
-                mHandler.sendEmptyMessage(TRACK_WENT_TO_NEXT);
-            } else {
-                mHandler.sendEmptyMessage(TRACK_ENDED);
+            synchronized (this) {
+                if (mp == mCurrentMediaPlayer && mNext != null) {
+                    final LookaheadPlayer next = mNext;
+                    mLookahead.remove(next.mPath);
+                    mNext = null;
+                    recycle(mCurrentMediaPlayer);
+                    mCurrentMediaPlayer = next.mPlayer;
+                    mGeneration++;
+                    cancelPrepareTimeout();
+                    mState = next.mState;
+                    mDuration = next.mState == STATE_PREPARED ? next.mPlayer.getDuration() : -1;
+                    mPendingSeek = 0;
+                    if (!mNextChained) {
+                        // the next track wasn't ready in time to follow without a gap
+                        if (mState == STATE_PREPARED) {
+                            mCurrentMediaPlayer.setVolume(mVolume, mVolume);
+                            mCurrentMediaPlayer.start();
+                        } else {
+                            mPendingStart = true;
+                            waitForPrepared();
+                        }
+                    }
+                    mNextChained = false;
+                    loadSrt(next.mPath);
+                    mHandler.sendEmptyMessage(TRACK_WENT_TO_NEXT);
+                    return;
+                }
+            }
+            mHandler.sendEmptyMessage(TRACK_ENDED);
+        }
+
+        /**
+         * Passes the prepared callback on, along with the track it was for
+         */
+        private final class PreparedListener implements MediaPlayer.OnPreparedListener {
+            private final int mPrepareGeneration;
+
+            public PreparedListener(final int generation) {
+                mPrepareGeneration = generation;
+            }
+
+            @Override
+            public void onPrepared(final MediaPlayer mp) {
+                MultiPlayer.this.onPrepared(mp, mPrepareGeneration);
+            }
+        }
+
+        private final class LookaheadPreparedListener implements MediaPlayer.OnPreparedListener {
+            private final LookaheadPlayer mUpcoming;
+
+            public LookaheadPreparedListener(final LookaheadPlayer upcoming) {
+                mUpcoming = upcoming;
+            }
+
+            @Override
+            public void onPrepared(final MediaPlayer mp) {
+                onLookaheadPrepared(mUpcoming);
+            }
+        }
+
+        /**
+         * A player for an upcoming track
+         */
+        private static final class LookaheadPlayer {
+            public final MediaPlayer mPlayer;
+            public final String mPath;
+            public int mState = STATE_IDLE;
+
+            public LookaheadPlayer(final MediaPlayer player, final String path) {
+                mPlayer = player;
+                mPath = path;
+            }
+        }
+
+        /**
+         * Gives up on a track that is still preparing after {@link #PREPARE_TIMEOUT_MS}
+         */
+        private final class PrepareTimeout implements Runnable {
+            private final int mPrepareGeneration;
+
+            public PrepareTimeout(final int generation) {
+                mPrepareGeneration = generation;
+            }
+
+            @Override
+            public void run() {
+                onPrepareFailed(mPrepareGeneration);
             }
         }
     }
@@ -3607,7 +4379,7 @@ public class MusicPlaybackService extends Service {
          */
         @Override
         public long[] getQueue() throws RemoteException {
-            return mService.get().getQueue();
+            return mService.get().getPlaybackSnapshot().mQueueIds;
         }
 
         /**
@@ -3615,7 +4387,7 @@ public class MusicPlaybackService extends Service {
          */
         @Override
         public long getQueueItemAtPosition(int position) throws RemoteException {
-            return mService.get().getQueueItemAtPosition(position);
+            return mService.get().getPlaybackSnapshot().getQueueItemAtPosition(position);
         }
 
         /**
@@ -3623,7 +4395,7 @@ public class MusicPlaybackService extends Service {
          */
         @Override
         public int getQueueSize() throws RemoteException {
-            return mService.get().getQueueSize();
+            return mService.get().getPlaybackSnapshot().getQueueSize();
         }
 
         /**
@@ -3631,7 +4403,7 @@ public class MusicPlaybackService extends Service {
          */
         @Override
         public int getQueueHistoryPosition(int position) throws RemoteException {
-            return mService.get().getQueueHistoryPosition(position);
+            return mService.get().getPlaybackSnapshot().getQueueHistoryPosition(position);
         }
 
         /**
@@ -3639,7 +4411,7 @@ public class MusicPlaybackService extends Service {
          */
         @Override
         public int getQueueHistorySize() throws RemoteException {
-            return mService.get().getQueueHistorySize();
+            return mService.get().getPlaybackSnapshot().mHistory.length;
         }
 
         /**
@@ -3647,7 +4419,7 @@ public class MusicPlaybackService extends Service {
          */
         @Override
         public int[] getQueueHistoryList() throws RemoteException {
-            return mService.get().getQueueHistoryList();
+            return mService.get().getPlaybackSnapshot().mHistory;
         }
 
         /**
@@ -3687,7 +4459,7 @@ public class MusicPlaybackService extends Service {
          */
         @Override
         public long getAudioId() throws RemoteException {
-            return mService.get().getAudioId();
+            return mService.get().getPlaybackSnapshot().mAudioId;
         }
 
         /**
@@ -3695,7 +4467,7 @@ public class MusicPlaybackService extends Service {
          */
         @Override
         public MusicPlaybackTrack getCurrentTrack() throws RemoteException {
-            return mService.get().getCurrentTrack();
+            return mService.get().getPlaybackSnapshot().mCurrentTrack;
         }
 
         /**
@@ -3703,7 +4475,7 @@ public class MusicPlaybackService extends Service {
          */
         @Override
         public MusicPlaybackTrack getTrack(int index) throws RemoteException {
-            return mService.get().getTrack(index);
+            return mService.get().getPlaybackSnapshot().getTrack(index);
         }
 
                 /**
@@ -3711,7 +4483,7 @@ public class MusicPlaybackService extends Service {
          */
         @Override
         public long getNextAudioId() throws RemoteException {
-            return mService.get().getNextAudioId();
+            return mService.get().getPlaybackSnapshot().mNextAudioId;
         }
 
         /**
@@ -3719,7 +4491,7 @@ public class MusicPlaybackService extends Service {
          */
         @Override
         public long getPreviousAudioId() throws RemoteException {
-            return mService.get().getPreviousAudioId();
+            return mService.get().getPlaybackSnapshot().mPreviousAudioId;
         }
 
         /**
@@ -3727,7 +4499,7 @@ public class MusicPlaybackService extends Service {
          */
         @Override
         public long getArtistId() throws RemoteException {
-            return mService.get().getArtistId();
+            return mService.get().getPlaybackSnapshot().mArtistId;
         }
 
         /**
@@ -3735,7 +4507,7 @@ public class MusicPlaybackService extends Service {
          */
         @Override
         public long getAlbumId() throws RemoteException {
-            return mService.get().getAlbumId();
+            return mService.get().getPlaybackSnapshot().mAlbumId;
         }
 
         /**
@@ -3743,7 +4515,7 @@ public class MusicPlaybackService extends Service {
          */
         @Override
         public String getArtistName() throws RemoteException {
-            return mService.get().getArtistName();
+            return mService.get().getPlaybackSnapshot().mArtistName;
         }
 
         /**
@@ -3751,7 +4523,7 @@ public class MusicPlaybackService extends Service {
          */
         @Override
         public String getTrackName() throws RemoteException {
-            return mService.get().getTrackName();
+            return mService.get().getPlaybackSnapshot().mTrackName;
         }
 
         /**
@@ -3759,7 +4531,7 @@ public class MusicPlaybackService extends Service {
          */
         @Override
         public String getAlbumName() throws RemoteException {
-            return mService.get().getAlbumName();
+            return mService.get().getPlaybackSnapshot().mAlbumName;
         }
 
         /**
@@ -3767,7 +4539,7 @@ public class MusicPlaybackService extends Service {
          */
         @Override
         public String getPath() throws RemoteException {
-            return mService.get().getPath();
+            return mService.get().getPlaybackSnapshot().mPath;
         }
 
         /**
@@ -3775,7 +4547,7 @@ public class MusicPlaybackService extends Service {
          */
         @Override
         public int getQueuePosition() throws RemoteException {
-            return mService.get().getQueuePosition();
+            return mService.get().getPlaybackSnapshot().mQueuePosition;
         }
 
         /**
@@ -3851,75 +4623,40 @@ public class MusicPlaybackService extends Service {
             mService.get().setLockscreenAlbumArt(enabled);
         }
 
-    }
-
-    private class QueueUpdateTask extends AsyncTask<Void, Void, List<MediaSession.QueueItem>> {
-        private long[] mQueue;
-
-        public QueueUpdateTask(long[] queue) {
-            mQueue = queue != null ? Arrays.copyOf(queue, queue.length) : null;
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public PlaybackSnapshot getPlaybackSnapshot(final long knownVersion)
+                throws RemoteException {
+            final PlaybackSnapshot snapshot = mService.get().getPlaybackSnapshot();
+            // the caller already has this one, don't send it again
+            return snapshot.mVersion != knownVersion ? snapshot : null;
         }
 
+        /**
+         * {@inheritDoc}
+         */
         @Override
-        protected List<MediaSession.QueueItem> doInBackground(Void... params) {
-            if (mQueue == null || mQueue.length == 0) {
-                return null;
-            }
-
-            final StringBuilder selection = new StringBuilder();
-            selection.append(MediaStore.Audio.Media._ID).append(" IN (");
-            for (int i = 0; i < mQueue.length; i++) {
-                if (i != 0) {
-                    selection.append(",");
-                }
-                selection.append(mQueue[i]);
-            }
-            selection.append(")");
-
-            Cursor c = getContentResolver().query(
-                    MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
-                    new String[] { AudioColumns._ID, AudioColumns.TITLE, AudioColumns.ARTIST },
-                    selection.toString(), null, null);
-            if (c == null) {
-                return null;
-            }
-
-            try {
-                LongSparseArray<MediaDescription> descsById = new LongSparseArray<>();
-                final int idColumnIndex = c.getColumnIndexOrThrow(AudioColumns._ID);
-                final int titleColumnIndex = c.getColumnIndexOrThrow(AudioColumns.TITLE);
-                final int artistColumnIndex = c.getColumnIndexOrThrow(AudioColumns.ARTIST);
-
-                while (c.moveToNext() && !isCancelled()) {
-                    final MediaDescription desc = new MediaDescription.Builder()
-                            .setTitle(c.getString(titleColumnIndex))
-                            .setSubtitle(c.getString(artistColumnIndex))
-                            .build();
-                    final long id = c.getLong(idColumnIndex);
-                    descsById.put(id, desc);
-                }
+        public long getQueueVersion() throws RemoteException {
+            return mService.get().getPlaybackSnapshot().mQueueVersion;
+        }
 
-                List<MediaSession.QueueItem> items = new ArrayList<>();
-                for (int i = 0; i < mQueue.length; i++) {
-                    MediaDescription desc = descsById.get(mQueue[i]);
-                    if (desc == null) {
-                        // shouldn't happen except in corner cases like
-                        // music being deleted while we were processing
-                        desc = new MediaDescription.Builder().build();
-                    }
-                    items.add(new MediaSession.QueueItem(desc, i));
-                }
-                return items;
-            } finally {
-                c.close();
-            }
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public long[] getQueueRange(final int start, final int count) throws RemoteException {
+            return mService.get().getQueueRange(start, count);
         }
 
+        /**
+         * {@inheritDoc}
+         */
         @Override
-        protected void onPostExecute(List<MediaSession.QueueItem> items) {
-            if (!isCancelled()) {
-                mSession.setQueue(items);
-            }
+        public QueueChanges getQueueChangesSince(final long version) throws RemoteException {
+            return mService.get().getQueueChangesSince(version);
         }
+
     }
 }
@@ -22,7 +22,9 @@ import android.widget.ArrayAdapter;
 import android.widget.BaseAdapter;
 
 import com.cyanogenmod.eleven.R;
+import com.cyanogenmod.eleven.cache.ImageCache.ImageTier;
 import com.cyanogenmod.eleven.cache.ImageFetcher;
+import com.cyanogenmod.eleven.cache.ScrollPrefetcher;
 import com.cyanogenmod.eleven.model.Album;
 import com.cyanogenmod.eleven.ui.MusicHolder;
 import com.cyanogenmod.eleven.ui.MusicHolder.DataHolder;
@@ -38,7 +40,8 @@ import java.util.List;
  *
  * @author Andrew Neal (andrewdneal@gmail.com)
  */
-public class AlbumAdapter extends BaseAdapter implements IPopupMenuCallback {
+public class AlbumAdapter extends BaseAdapter implements IPopupMenuCallback,
+        ScrollPrefetcher.PrefetchTarget {
     /**
      * The resource Id of the layout to inflate
      */
@@ -199,6 +202,26 @@ public class AlbumAdapter extends BaseAdapter implements IPopupMenuCallback {
         }
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void prefetch(final int position) {
+        if (position >= 0 && position < mData.length) {
+            final DataHolder dataHolder = mData[position];
+            mImageFetcher.prefetchAlbumImage(dataHolder.mLineTwo, dataHolder.mLineOne,
+                    dataHolder.mItemId, ImageTier.THUMBNAIL);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void cancelPrefetches() {
+        mImageFetcher.cancelPrefetches();
+    }
+
     /**
      * @param album The key used to find the cached album to remove
      */
@@ -31,7 +31,9 @@ import com.cyanogenmod.eleven.MusicPlaybackService;
 import com.cyanogenmod.eleven.R;
 import com.cyanogenmod.eleven.cache.ICacheListener;
 import com.cyanogenmod.eleven.cache.ImageCache;
+import com.cyanogenmod.eleven.cache.ImageCache.ImageTier;
 import com.cyanogenmod.eleven.model.AlbumArtistDetails;
+import com.cyanogenmod.eleven.service.PlaybackSnapshot;
 import com.cyanogenmod.eleven.utils.ApolloUtils;
 import com.cyanogenmod.eleven.utils.MusicUtils;
 import com.cyanogenmod.eleven.widgets.SquareImageView;
@@ -114,10 +116,11 @@ public class AlbumArtPagerAdapter extends FragmentStatePagerAdapter {
      * @return track id of the item at position or NO_TRACK_ID if unknown
      */
     private long getTrackId(int position) {
-        if (MusicUtils.getRepeatMode() == MusicPlaybackService.REPEAT_CURRENT) {
+        final PlaybackSnapshot snapshot = MusicUtils.getPlaybackSnapshot();
+        if (snapshot.mRepeatMode == MusicPlaybackService.REPEAT_CURRENT) {
             // if we are only playing one song, return the current audio id
-            return MusicUtils.getCurrentAudioId();
-        } else if (MusicUtils.getShuffleMode() == MusicPlaybackService.SHUFFLE_NONE) {
+            return snapshot.mAudioId;
+        } else if (snapshot.mShuffleMode == MusicPlaybackService.SHUFFLE_NONE) {
             // if we aren't shuffling, just return based on the queue position
             // add a check for empty queue
             return MusicUtils.getQueueItemAtPosition(position);
@@ -129,14 +132,14 @@ public class AlbumArtPagerAdapter extends FragmentStatePagerAdapter {
             // tracks going forward
 
             // how far into the history we are
-            int positionOffset = MusicUtils.getQueueHistorySize();
+            int positionOffset = snapshot.mHistory.length;
 
             if (position - positionOffset == 0) { // current track
-                return MusicUtils.getCurrentAudioId();
+                return snapshot.mAudioId;
             } else if (position - positionOffset == 1) { // next track
-                return MusicUtils.getNextAudioId();
+                return snapshot.mNextAudioId;
             } else if (position < positionOffset) {
-                int queuePosition = MusicUtils.getQueueHistoryPosition(position);
+                int queuePosition = snapshot.getQueueHistoryPosition(position);
                 if (position >= 0) {
                     return MusicUtils.getQueueItemAtPosition(queuePosition);
                 }
@@ -242,7 +245,8 @@ public class AlbumArtPagerAdapter extends FragmentStatePagerAdapter {
                     details.mArtistName,
                     details.mAlbumName,
                     details.mAlbumId,
-                    mImageView
+                    mImageView,
+                    ImageTier.FULL
             );
         }
 
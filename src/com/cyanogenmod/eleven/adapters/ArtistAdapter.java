@@ -180,6 +180,23 @@ public class ArtistAdapter extends ArrayAdapter<Artist> implements BasicAdapter,
         }
     }
 
+    /**
+     * Warms the caches for the image of the artist at position
+     * @param position the position in this adapter
+     */
+    public void prefetch(final int position) {
+        if (mData != null && position >= 0 && position < mData.length) {
+            mImageFetcher.prefetchArtistImage(mData[position].mLineOne);
+        }
+    }
+
+    /**
+     * Drops the prefetches that haven't started yet
+     */
+    public void cancelPrefetches() {
+        mImageFetcher.cancelPrefetches();
+    }
+
     /**
      * @param artist The key used to find the cached artist to remove
      */
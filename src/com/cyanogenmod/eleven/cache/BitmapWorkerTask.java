@@ -23,6 +23,7 @@ import android.graphics.drawable.TransitionDrawable;
 import android.os.AsyncTask;
 import android.widget.ImageView;
 
+import com.cyanogenmod.eleven.cache.ImageCache.ImageTier;
 import com.cyanogenmod.eleven.cache.ImageWorker.ImageType;
 
 import java.lang.ref.WeakReference;
@@ -55,6 +56,11 @@ public abstract class BitmapWorkerTask<Params, Progress, Result>
 
     protected boolean mScaleImgToView;
 
+    /**
+     * The cache tier to load the image from
+     */
+    protected final ImageTier mImageTier;
+
     /**
      * The key used to store cached entries
      */
@@ -82,6 +88,21 @@ public abstract class BitmapWorkerTask<Params, Progress, Result>
      */
     public BitmapWorkerTask(final String key, final ImageView imageView, final ImageType imageType,
                             final Drawable fromDrawable, final Context context, final boolean scaleImgToView) {
+        this(key, imageView, imageType, fromDrawable, context, scaleImgToView, ImageTier.FULL);
+    }
+
+    /**
+     * Constructor of <code>BitmapWorkerTask</code>
+     * @param key used for caching the image
+     * @param imageView The {@link ImageView} to use.
+     * @param imageType The type of image URL to fetch for.
+     * @param fromDrawable what drawable to transition from
+     * @param scaleImgToView flag to scale the bitmap to the image view bounds
+     * @param imageTier The cache tier to load the image from
+     */
+    public BitmapWorkerTask(final String key, final ImageView imageView, final ImageType imageType,
+                            final Drawable fromDrawable, final Context context, final boolean scaleImgToView,
+                            final ImageTier imageTier) {
         mKey = key;
 
         mContext = context;
@@ -95,6 +116,7 @@ public abstract class BitmapWorkerTask<Params, Progress, Result>
         mFromDrawable = fromDrawable;
 
         mScaleImgToView = scaleImgToView;
+        mImageTier = imageTier;
     }
 
     /**
@@ -121,7 +143,7 @@ public abstract class BitmapWorkerTask<Params, Progress, Result>
      */
     protected Bitmap getBitmapInBackground(final String... params) {
         return ImageWorker.getBitmapInBackground(mContext, mImageCache, mKey,
-                params[1], params[0], Long.valueOf(params[2]), mImageType);
+                params[1], params[0], Long.valueOf(params[2]), mImageType, mImageTier);
     }
 
     /**
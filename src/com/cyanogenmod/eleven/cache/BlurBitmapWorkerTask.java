@@ -21,11 +21,14 @@ import android.graphics.drawable.Drawable;
 import android.graphics.drawable.TransitionDrawable;
 import android.support.v8.renderscript.Allocation;
 import android.support.v8.renderscript.Element;
+import android.support.v8.renderscript.RSRuntimeException;
 import android.support.v8.renderscript.RenderScript;
 import android.support.v8.renderscript.ScriptIntrinsicBlur;
+import android.util.Log;
 import android.widget.ImageView;
 
 import com.cyanogenmod.eleven.cache.ImageWorker.ImageType;
+import com.cyanogenmod.eleven.utils.BitmapUtils;
 import com.cyanogenmod.eleven.widgets.BlurScrimImage;
 
 import java.lang.ref.WeakReference;
@@ -35,13 +38,27 @@ import java.lang.ref.WeakReference;
  * BlurScrimImage
  */
 public class BlurBitmapWorkerTask extends BitmapWorkerTask<String, Void, BlurBitmapWorkerTask.ResultContainer> {
-    // if the image is too small, the blur will look bad post scale up so we use the min size
-    // to scale up before bluring
-    private static final int MIN_BITMAP_SIZE = 500;
-    // number of times to run the blur
-    private static final int NUM_BLUR_RUNS = 8;
-    // 25f is the max blur radius possible
-    private static final float BLUR_RADIUS = 25f;
+    private static final String TAG = BlurBitmapWorkerTask.class.getSimpleName();
+
+    // the artwork is scaled so its shortest edge is this long before bluring. The blur hides
+    // any detail lost by the downscale and running it on a few thousand pixels is much
+    // cheaper than on the full size image
+    private static final int BLUR_BITMAP_SIZE = 128;
+    // the blurred image is scaled back up so its shortest edge is this long to be displayed
+    private static final int OUTPUT_BITMAP_SIZE = 500;
+    // a single pass with this radius at BLUR_BITMAP_SIZE looks about the same as the eight
+    // passes with a radius of 25 the full size image used to go through
+    private static final float BLUR_RADIUS = 18f;
+    // radius of the box passes of the pure java fallback, they come close to BLUR_RADIUS
+    private static final int BOX_BLUR_RADIUS = 7;
+
+    /**
+     * The blur script and its allocations are kept around between tasks. Square artwork always
+     * downscales to the same size so the allocations rarely need to be recreated.
+     */
+    private static ScriptIntrinsicBlur sBlurScript;
+    private static Allocation sInputAllocation;
+    private static Allocation sOutputAllocation;
 
     // container for the result
     public static class ResultContainer {
@@ -89,57 +106,97 @@ public class BlurBitmapWorkerTask extends BitmapWorkerTask<String, Void, BlurBit
             return null;
         }
 
-        Bitmap bitmap = getBitmapInBackground(params);
+        // a previously blurred background can be reused as is
+        Bitmap blurred = mImageCache.getCachedBlurredBitmap(mKey);
+        if (blurred == null) {
+            final Bitmap bitmap = getBitmapInBackground(params);
+            if (bitmap == null || isCancelled()) {
+                return null;
+            }
 
-        ResultContainer result = new ResultContainer();
+            if (mRenderScript != null) {
+                try {
+                    blurred = blur(mRenderScript, bitmap);
+                } catch (final RSRuntimeException e) {
+                    Log.e(TAG, "doInBackground - " + e);
+                }
+            }
+            if (blurred == null) {
+                // no RenderScript on this device, blur on the cpu instead
+                blurred = BitmapUtils.createBlurredBitmap(scale(bitmap, BLUR_BITMAP_SIZE),
+                        BOX_BLUR_RADIUS);
+            }
+            mImageCache.addBlurredBitmapToCache(mKey, blurred);
+        }
 
-        Bitmap output = null;
+        if (isCancelled()) {
+            return null;
+        }
 
-        if (bitmap != null) {
-            // now create the blur bitmap
-            Bitmap input = bitmap;
+        final ResultContainer result = new ResultContainer();
 
-            // if the image is too small, scale it up before running through the blur
-            if (input.getWidth() < MIN_BITMAP_SIZE || input.getHeight() < MIN_BITMAP_SIZE) {
-                float multiplier = Math.max(MIN_BITMAP_SIZE / (float)input.getWidth(),
-                        MIN_BITMAP_SIZE / (float)input.getHeight());
-                input = input.createScaledBitmap(bitmap, (int)(input.getWidth() * multiplier),
-                        (int)(input.getHeight() * multiplier), true);
-                // since we created a new bitmap, we can re-use the bitmap for our output
-                output = input;
-            } else {
-                // if we aren't creating a new bitmap, create a new output bitmap
-                output = Bitmap.createBitmap(input.getWidth(), input.getHeight(), input.getConfig());
-            }
+        // Set the scrim color to be 50% gray
+        result.mPaletteColor = 0x7f000000;
 
-            // run the blur multiple times
-            for (int i = 0; i < NUM_BLUR_RUNS; i++) {
-                final Allocation inputAlloc = Allocation.createFromBitmap(mRenderScript, input);
-                final Allocation outputAlloc = Allocation.createTyped(mRenderScript,
-                        inputAlloc.getType());
-                final ScriptIntrinsicBlur script = ScriptIntrinsicBlur.create(mRenderScript,
-                        Element.U8_4(mRenderScript));
-
-                script.setRadius(BLUR_RADIUS);
-                script.setInput(inputAlloc);
-                script.forEach(outputAlloc);
-                outputAlloc.copyTo(output);
-
-                // if we run more than 1 blur, the new input should be the old output
-                input = output;
-            }
+        // create the bitmap transition drawable
+        result.mImageViewBitmapDrawable = createImageTransitionDrawable(
+                scale(blurred, OUTPUT_BITMAP_SIZE), ImageWorker.FADE_IN_TIME_SLOW, true, true);
 
-            // Set the scrim color to be 50% gray
-            result.mPaletteColor = 0x7f000000;
+        return result;
+    }
 
-            // create the bitmap transition drawable
-            result.mImageViewBitmapDrawable = createImageTransitionDrawable(output,
-                    ImageWorker.FADE_IN_TIME_SLOW, true, true);
+    /**
+     * Scales a bitmap so its shortest edge is size pixels long
+     * @param bitmap the bitmap to scale
+     * @param size the length of the shortest edge
+     * @return the scaled bitmap, or the bitmap itself if it already has the right size
+     */
+    private static Bitmap scale(final Bitmap bitmap, final int size) {
+        final float multiplier = Math.max(size / (float)bitmap.getWidth(),
+                size / (float)bitmap.getHeight());
+        return Bitmap.createScaledBitmap(bitmap, Math.round(bitmap.getWidth() * multiplier),
+                Math.round(bitmap.getHeight() * multiplier), true);
+    }
 
-            return result;
+    /**
+     * Downscales the bitmap and runs a single blur pass over it
+     * @param renderScript the RenderScript context to blur with
+     * @param bitmap the source artwork, it is left untouched
+     * @return the blurred bitmap, BLUR_BITMAP_SIZE on its shortest edge
+     */
+    private static synchronized Bitmap blur(final RenderScript renderScript, final Bitmap bitmap) {
+        Bitmap input = scale(bitmap, BLUR_BITMAP_SIZE);
+        if (input.getConfig() != Bitmap.Config.ARGB_8888) {
+            input = input.copy(Bitmap.Config.ARGB_8888, false);
         }
+        final int width = input.getWidth();
+        final int height = input.getHeight();
 
-        return null;
+        if (sBlurScript == null) {
+            sBlurScript = ScriptIntrinsicBlur.create(renderScript, Element.U8_4(renderScript));
+            sBlurScript.setRadius(BLUR_RADIUS);
+        }
+
+        if (sInputAllocation == null || sInputAllocation.getType().getX() != width
+                || sInputAllocation.getType().getY() != height) {
+            if (sInputAllocation != null) {
+                sInputAllocation.destroy();
+                sOutputAllocation.destroy();
+            }
+            sInputAllocation = Allocation.createFromBitmap(renderScript, input);
+            sOutputAllocation = Allocation.createTyped(renderScript, sInputAllocation.getType());
+        } else {
+            sInputAllocation.copyFrom(input);
+        }
+
+        sBlurScript.setInput(sInputAllocation);
+        sBlurScript.forEach(sOutputAllocation);
+
+        // the scaled copy can hold the result unless the source was already the right size
+        final Bitmap output = input != bitmap && input.isMutable() ? input
+                : Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        sOutputAllocation.copyTo(output);
+        return output;
     }
 
     /**
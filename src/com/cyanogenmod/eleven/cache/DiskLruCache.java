@@ -160,6 +160,9 @@ public final class DiskLruCache implements Closeable {
 
     private int redundantOpCount;
 
+    /** Number of entries dropped to stay under {@link #maxSize} */
+    private long evictionCount;
+
     /**
      * To differentiate between old and current snapshots, each entry is given a
      * sequence number each time an edit is committed. A snapshot is stale if
@@ -470,17 +473,26 @@ public final class DiskLruCache implements Closeable {
      * Returns a snapshot of the entry named {@code key}, or null if it doesn't
      * exist is not currently readable. If a value is returned, it is moved to
      * the head of the LRU queue.
+     * <p>
+     * The cache lock is only held to look up the entry and to record the read;
+     * the value files are opened outside of it so concurrent readers don't
+     * serialize on file I/O.
      */
-    public synchronized Snapshot get(final String key) throws IOException {
-        checkNotClosed();
-        validateKey(key);
-        final Entry entry = lruEntries.get(key);
-        if (entry == null) {
-            return null;
-        }
+    public Snapshot get(final String key) throws IOException {
+        final Entry entry;
+        final long sequenceNumber;
+        synchronized (this) {
+            checkNotClosed();
+            validateKey(key);
+            entry = lruEntries.get(key);
+            if (entry == null) {
+                return null;
+            }
 
-        if (!entry.readable) {
-            return null;
+            if (!entry.readable) {
+                return null;
+            }
+            sequenceNumber = entry.sequenceNumber;
         }
 
         /*
@@ -495,16 +507,33 @@ public final class DiskLruCache implements Closeable {
             }
         } catch (final FileNotFoundException e) {
             // a file must have been deleted manually!
+            closeAll(ins);
             return null;
         }
 
-        redundantOpCount++;
-        journalWriter.append(READ + ' ').append(key).append('\n');
-        if (journalRebuildRequired()) {
-            executorService.submit(cleanupCallable);
+        synchronized (this) {
+            // an edit committed while the streams were being opened, so they may
+            // come from different edits. Treat it as a miss
+            if (journalWriter == null || lruEntries.get(key) != entry
+                    || entry.sequenceNumber != sequenceNumber) {
+                closeAll(ins);
+                return null;
+            }
+
+            redundantOpCount++;
+            journalWriter.append(READ + ' ').append(key).append('\n');
+            if (journalRebuildRequired()) {
+                executorService.submit(cleanupCallable);
+            }
         }
 
-        return new Snapshot(key, entry.sequenceNumber, ins);
+        return new Snapshot(key, sequenceNumber, ins);
+    }
+
+    private static void closeAll(final InputStream[] ins) {
+        for (final InputStream in : ins) {
+            closeQuietly(in);
+        }
     }
 
     /**
@@ -564,6 +593,14 @@ public final class DiskLruCache implements Closeable {
         return size;
     }
 
+    /**
+     * Returns the number of entries that have been evicted to keep the cache
+     * under its max size.
+     */
+    public synchronized long evictionCount() {
+        return evictionCount;
+    }
+
     private synchronized void completeEdit(final Editor editor, final boolean success)
             throws IOException {
         final Entry entry = editor.entry;
@@ -704,7 +741,9 @@ public final class DiskLruCache implements Closeable {
         while (size > maxSize) {
             // Map.Entry<String, Entry> toEvict = lruEntries.eldest();
             final Map.Entry<String, Entry> toEvict = lruEntries.entrySet().iterator().next();
-            remove(toEvict.getKey());
+            if (remove(toEvict.getKey())) {
+                evictionCount++;
+            }
         }
     }
 
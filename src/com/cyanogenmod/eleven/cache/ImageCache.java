@@ -22,6 +22,7 @@ import android.content.ComponentCallbacks2;
 import android.content.ContentUris;
 import android.content.Context;
 import android.content.res.Configuration;
+import android.database.ContentObserver;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.CompressFormat;
 import android.graphics.BitmapFactory;
@@ -31,9 +32,18 @@ import android.os.Bundle;
 import android.os.Environment;
 import android.os.Looper;
 import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.provider.MediaStore;
+import android.util.DisplayMetrics;
 import android.util.Log;
 
+import com.cyanogenmod.eleven.provider.ArtworkColorStore;
+import com.cyanogenmod.eleven.provider.MissingArtworkStore;
 import com.cyanogenmod.eleven.utils.ApolloUtils;
+import com.cyanogenmod.eleven.utils.BitmapWithColors;
+import com.cyanogenmod.eleven.utils.BitmapWithColors.BitmapColors;
+import com.cyanogenmod.eleven.utils.ImageUtils;
+import com.cyanogenmod.eleven.widgets.LetterTileDrawable;
 
 import java.io.File;
 import java.io.FileDescriptor;
@@ -43,7 +53,15 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This class holds the memory and disk bitmap caches.
@@ -62,10 +80,43 @@ public final class ImageCache {
      */
     private static final float MEM_CACHE_DIVIDER = 0.25f;
 
+    private static final boolean DEBUG = false;
+
+    /**
+     * Fraction of the free space the full size tier may use, clamped to
+     * [{@link #MIN_FULL_DISK_CACHE_SIZE}, {@link #MAX_FULL_DISK_CACHE_SIZE}]
+     */
+    private static final float FULL_DISK_CACHE_FRACTION = 0.02f;
+
+    private static final long MIN_FULL_DISK_CACHE_SIZE = 1024 * 1024 * 10;
+
+    private static final long MAX_FULL_DISK_CACHE_SIZE = 1024 * 1024 * 100;
+
     /**
-     * Default disk cache size 10MB
+     * Fraction of the free space the thumbnail tier may use, clamped to
+     * [{@link #MIN_THUMBNAIL_DISK_CACHE_SIZE}, {@link #MAX_THUMBNAIL_DISK_CACHE_SIZE}]
      */
-    private static final int DISK_CACHE_SIZE = 1024 * 1024 * 10;
+    private static final float THUMBNAIL_DISK_CACHE_FRACTION = 0.005f;
+
+    private static final long MIN_THUMBNAIL_DISK_CACHE_SIZE = 1024 * 1024 * 4;
+
+    private static final long MAX_THUMBNAIL_DISK_CACHE_SIZE = 1024 * 1024 * 25;
+
+    /**
+     * Directory name of the thumbnail tier, the full size tier keeps using {@link #TAG}
+     */
+    private static final String THUMBNAIL_CACHE_DIR = TAG + "-thumb";
+
+    /**
+     * Suffix used to keep thumbnails apart from full size images in the memory cache
+     */
+    private static final String THUMBNAIL_KEY_SUFFIX = "_thumb";
+
+    /**
+     * Suffix of the key blurred backgrounds are cached under. Bump the version
+     * whenever the blur itself changes so stale results aren't shown.
+     */
+    private static final String BLUR_KEY_SUFFIX = "_blur_v1";
 
     /**
      * Compression settings when writing images to disk cache
@@ -88,9 +139,54 @@ public final class ImageCache {
     private MemoryCache mLruCache;
 
     /**
-     * Disk LRU cache
+     * Disk LRU cache of the full size images, sharded so parallel loaders don't
+     * contend on one journal
+     */
+    private ShardedDiskLruCache mDiskCache;
+
+    /**
+     * Disk LRU cache of the grid sized thumbnails
+     */
+    private ShardedDiskLruCache mThumbnailDiskCache;
+
+    /**
+     * Longest edge of a thumbnail, half of the shortest screen edge
+     */
+    private int mThumbnailSize;
+
+    /**
+     * Disk cache hit/miss counters for each tier
+     */
+    private final TierStats mFullStats = new TierStats();
+    private final TierStats mThumbnailStats = new TierStats();
+
+    /**
+     * Persisted colors of the cached artwork
+     */
+    private ArtworkColorStore mColorStore;
+
+    /**
+     * Artwork lookups that came up empty, so they aren't repeated
+     */
+    private MissingArtworkStore mMissingArtwork;
+
+    /**
+     * Number of color extractions that can wait, the rest are dropped and the
+     * colors are extracted when the artwork is shown instead
+     */
+    private static final int MAX_PENDING_COLOR_EXTRACTIONS = 16;
+
+    /**
+     * Extracts the colors of newly cached artwork one image at a time, in the background
      */
-    private DiskLruCache mDiskCache;
+    private static final ThreadPoolExecutor sColorExecutor = new ThreadPoolExecutor(0, 1,
+            60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+
+    /**
+     * Keys whose colors are queued for extraction
+     */
+    private static final Set<String> sPendingColorKeys =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
     /**
      * listeners to the cache state
@@ -138,15 +234,33 @@ public final class ImageCache {
      * @param cacheParams The cache parameters to initialize the cache
      */
     private void init(final Context context) {
+        final DisplayMetrics metrics = context.getResources().getDisplayMetrics();
+        mThumbnailSize = Math.min(metrics.widthPixels, metrics.heightPixels) / 2;
+        mColorStore = ArtworkColorStore.getInstance(context);
+        mMissingArtwork = MissingArtworkStore.getInstance(context);
+
         ApolloUtils.execute(false, new AsyncTask<Void, Void, Void>() {
 
             @Override
             protected Void doInBackground(final Void... unused) {
                 // Initialize the disk cahe in a background thread
                 initDiskCache(context);
+                mMissingArtwork.load();
                 return null;
             }
         }, (Void[])null);
+
+        // Albums that had no artwork may have gained some once the MediaStore changes
+        final ContentObserver mediaStoreObserver = new ContentObserver(null) {
+            @Override
+            public void onChange(final boolean selfChange) {
+                mMissingArtwork.clearAll(MissingArtworkStore.TYPE_LOCAL);
+            }
+        };
+        context.getContentResolver().registerContentObserver(mArtworkUri, true,
+                mediaStoreObserver);
+        context.getContentResolver().registerContentObserver(
+                MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, true, mediaStoreObserver);
         // Set up the memory cache
         initLruCache(context);
     }
@@ -162,19 +276,44 @@ public final class ImageCache {
     private synchronized void initDiskCache(final Context context) {
         // Set up disk cache
         if (mDiskCache == null || mDiskCache.isClosed()) {
-            File diskCacheDir = getDiskCacheDir(context, TAG);
-            if (diskCacheDir != null) {
-                if (!diskCacheDir.exists()) {
-                    diskCacheDir.mkdirs();
-                }
-                if (getUsableSpace(diskCacheDir) > DISK_CACHE_SIZE) {
-                    try {
-                        mDiskCache = DiskLruCache.open(diskCacheDir, 1, 1, DISK_CACHE_SIZE);
-                    } catch (final IOException e) {
-                        diskCacheDir = null;
-                    }
-                }
-            }
+            mDiskCache = openDiskCache(getDiskCacheDir(context, TAG),
+                    FULL_DISK_CACHE_FRACTION, MIN_FULL_DISK_CACHE_SIZE,
+                    MAX_FULL_DISK_CACHE_SIZE);
+        }
+        if (mThumbnailDiskCache == null || mThumbnailDiskCache.isClosed()) {
+            mThumbnailDiskCache = openDiskCache(getDiskCacheDir(context, THUMBNAIL_CACHE_DIR),
+                    THUMBNAIL_DISK_CACHE_FRACTION, MIN_THUMBNAIL_DISK_CACHE_SIZE,
+                    MAX_THUMBNAIL_DISK_CACHE_SIZE);
+        }
+    }
+
+    /**
+     * Opens a disk cache tier whose budget is a fraction of the free space
+     *
+     * @param diskCacheDir The directory of the tier
+     * @param fraction The fraction of the usable space to use
+     * @param minSize The smallest budget worth having a disk cache for
+     * @param maxSize The upper bound of the budget
+     * @return The disk cache, or null if there isn't enough space
+     */
+    private static ShardedDiskLruCache openDiskCache(final File diskCacheDir,
+            final float fraction, final long minSize, final long maxSize) {
+        if (diskCacheDir == null) {
+            return null;
+        }
+        if (!diskCacheDir.exists()) {
+            diskCacheDir.mkdirs();
+        }
+        final long usableSpace = getUsableSpace(diskCacheDir);
+        if (usableSpace <= minSize) {
+            return null;
+        }
+        final long size = Math.max(minSize, Math.min(maxSize, (long)(usableSpace * fraction)));
+        try {
+            return ShardedDiskLruCache.open(diskCacheDir, 1, 1, size);
+        } catch (final IOException e) {
+            Log.e(TAG, "openDiskCache - " + e);
+            return null;
         }
     }
 
@@ -199,8 +338,12 @@ public final class ImageCache {
              */
             @Override
             public void onTrimMemory(final int level) {
+                if (DEBUG) {
+                    Log.d(TAG, getStatistics());
+                }
                 if (level >= TRIM_MEMORY_MODERATE) {
                     evictAll();
+                    LetterTileDrawable.evictTileCache();
                 } else if (level >= TRIM_MEMORY_BACKGROUND) {
                     mLruCache.trimToSize(mLruCache.size() / 2);
                 }
@@ -288,31 +431,184 @@ public final class ImageCache {
      * @param replace force a replace even if the bitmap exists in the cache
      */
     public void addBitmapToCache(final String data, final Bitmap bitmap, final boolean replace) {
+        addBitmapToCache(data, bitmap, replace, ImageTier.FULL);
+    }
+
+    /**
+     * Adds a new image to both disk tiers, and to the memory cache in the size
+     * of the requested tier
+     *
+     * @param data The key used to store the image
+     * @param bitmap The full size {@link Bitmap} to cache
+     * @param replace force a replace even if the bitmap exists in the cache
+     * @param tier The tier the caller is going to display
+     * @return The bitmap sized for the requested tier
+     */
+    public Bitmap addBitmapToCache(final String data, final Bitmap bitmap, final boolean replace,
+            final ImageTier tier) {
         if (data == null || bitmap == null) {
+            return bitmap;
+        }
+
+        final Bitmap thumbnail = createThumbnail(bitmap);
+        final Bitmap tierBitmap = tier == ImageTier.THUMBNAIL ? thumbnail : bitmap;
+
+        // Add to memory cache
+        addBitmapToMemCache(data, tierBitmap, replace, tier);
+
+        // Add to disk caches
+        final String key = hashKeyForDisk(data);
+        addBitmapToDiskCache(mDiskCache, key, bitmap, null, 0, replace);
+        addBitmapToDiskCache(mThumbnailDiskCache, key, thumbnail, null, 0, replace);
+
+        // extract the colors now so theming doesn't have to when the track changes
+        scheduleColorExtraction(data, thumbnail, replace);
+
+        // the image may have been picked by the user after the download came up empty
+        mMissingArtwork.clear(MissingArtworkStore.TYPE_REMOTE, data);
+        return tierBitmap;
+    }
+
+    /**
+     * Queues the extraction of the colors of an image unless they are already known.
+     * The extraction is dropped if too many are waiting, like during a fling.
+     *
+     * @param data The key used to store the image
+     * @param bitmap The thumbnail of the image, which the colors are sampled from
+     * @param replace whether the image replaces a previous one with the same key
+     */
+    private void scheduleColorExtraction(final String data, final Bitmap bitmap,
+            final boolean replace) {
+        if (replace) {
+            BitmapWithColors.removeCachedColors(data);
+        } else if (BitmapWithColors.getCachedColors(data) != null) {
+            return;
+        }
+        if (sColorExecutor.getQueue().size() >= MAX_PENDING_COLOR_EXTRACTIONS) {
+            if (replace) {
+                // the stale colors still have to go
+                removeStoredColors(data);
+            }
+            return;
+        }
+        if (!sPendingColorKeys.add(data)) {
             return;
         }
+        try {
+            sColorExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    try {
+                        if (replace) {
+                            mColorStore.removeColors(data);
+                        }
+                        getBitmapColors(data, bitmap);
+                    } finally {
+                        sPendingColorKeys.remove(data);
+                    }
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            sPendingColorKeys.remove(data);
+        }
+    }
+
+    /**
+     * Returns the colors of an image from the memory cache or the color store.
+     * If they are in neither, they are extracted from the bitmap and stored.
+     * This may hit the database, so don't call it on the main thread.
+     *
+     * @param data The key used to store the image
+     * @param bitmap The full size {@link Bitmap}, or null to only look the colors up
+     * @return The colors of the image, or null if they aren't known
+     */
+    public BitmapColors getBitmapColors(final String data, final Bitmap bitmap) {
+        if (data == null) {
+            return null;
+        }
+        BitmapColors colors = BitmapWithColors.getCachedColors(data);
+        if (colors != null) {
+            return colors;
+        }
+        colors = mColorStore.getColors(data);
+        if (colors == null && bitmap != null) {
+            colors = BitmapWithColors.generateColors(bitmap);
+            if (colors != null) {
+                mColorStore.saveColors(data, colors);
+            }
+        }
+        if (colors != null) {
+            BitmapWithColors.putCachedColors(data, colors);
+        }
+        return colors;
+    }
+
+    /**
+     * Adds a downloaded image to the caches. The encoded bytes are written to
+     * the full size tier as they are, so the image isn't encoded again.
+     *
+     * @param data The key used to store the image
+     * @param bitmap The {@link Bitmap} decoded from the bytes, at full size
+     * @param encoded The downloaded bytes
+     * @param encodedLength The number of downloaded bytes
+     * @param tier The tier the caller is going to display
+     * @return The bitmap sized for the requested tier
+     */
+    public Bitmap addBitmapToCache(final String data, final Bitmap bitmap, final byte[] encoded,
+            final int encodedLength, final ImageTier tier) {
+        if (data == null || bitmap == null) {
+            return bitmap;
+        }
+
+        final Bitmap thumbnail = createThumbnail(bitmap);
+        final Bitmap tierBitmap = tier == ImageTier.THUMBNAIL ? thumbnail : bitmap;
 
         // Add to memory cache
-        addBitmapToMemCache(data, bitmap, replace);
+        addBitmapToMemCache(data, tierBitmap, false, tier);
+
+        // Add to disk caches
+        final String key = hashKeyForDisk(data);
+        addBitmapToDiskCache(mDiskCache, key, bitmap, encoded, encodedLength, false);
+        addBitmapToDiskCache(mThumbnailDiskCache, key, thumbnail, null, 0, false);
+
+        scheduleColorExtraction(data, thumbnail, false);
+        return tierBitmap;
+    }
 
-        // Add to disk cache
-        if (mDiskCache != null && !mDiskCache.isClosed()) {
-            final String key = hashKeyForDisk(data);
+    /**
+     * Writes an image to one of the disk tiers
+     *
+     * @param diskCache The tier to write to
+     * @param key The hashed key used to store the image
+     * @param bitmap The {@link Bitmap} to cache
+     * @param encoded The bitmap already encoded, or null to compress the bitmap
+     * @param encodedLength The number of encoded bytes
+     * @param replace force a replace even if the bitmap exists in the cache
+     */
+    private static void addBitmapToDiskCache(final ShardedDiskLruCache diskCache,
+            final String key, final Bitmap bitmap, final byte[] encoded, final int encodedLength,
+            final boolean replace) {
+        if (diskCache != null && !diskCache.isClosed()) {
             OutputStream out = null;
             try {
-                final DiskLruCache.Snapshot snapshot = mDiskCache.get(key);
+                final DiskLruCache.Snapshot snapshot = diskCache.get(key);
                 if (snapshot != null) {
                     snapshot.getInputStream(DISK_CACHE_INDEX).close();
                 }
 
                 if (snapshot == null || replace) {
-                    final DiskLruCache.Editor editor = mDiskCache.edit(key);
+                    final DiskLruCache.Editor editor = diskCache.edit(key);
                     if (editor != null) {
                         out = editor.newOutputStream(DISK_CACHE_INDEX);
-                        bitmap.compress(COMPRESS_FORMAT, COMPRESS_QUALITY, out);
+                        if (encoded != null) {
+                            out.write(encoded, 0, encodedLength);
+                        } else {
+                            bitmap.compress(COMPRESS_FORMAT, COMPRESS_QUALITY, out);
+                        }
                         editor.commit();
                         out.close();
-                        flush();
+                        diskCache.scheduleFlush();
                     }
                 }
             } catch (final IOException e) {
@@ -337,6 +633,24 @@ public final class ImageCache {
         }
     }
 
+    /**
+     * Scales a bitmap down so its longest edge fits the thumbnail tier
+     *
+     * @param bitmap The full size {@link Bitmap}
+     * @return The thumbnail, or the bitmap itself if it is already small enough
+     */
+    public Bitmap createThumbnail(final Bitmap bitmap) {
+        final int width = bitmap.getWidth();
+        final int height = bitmap.getHeight();
+        final int longestEdge = Math.max(width, height);
+        if (mThumbnailSize <= 0 || longestEdge <= mThumbnailSize) {
+            return bitmap;
+        }
+        final float scale = (float)mThumbnailSize / longestEdge;
+        return Bitmap.createScaledBitmap(bitmap, Math.max(1, Math.round(width * scale)),
+                Math.max(1, Math.round(height * scale)), true);
+    }
+
     /**
      * Called to add a new image to the memory cache
      *
@@ -355,15 +669,36 @@ public final class ImageCache {
      * @param replace whether to force a replace if it already exists
      */
     public void addBitmapToMemCache(final String data, final Bitmap bitmap, final boolean replace) {
+        addBitmapToMemCache(data, bitmap, replace, ImageTier.FULL);
+    }
+
+    /**
+     * Called to add a new image to the memory cache
+     *
+     * @param data The key identifier
+     * @param bitmap The {@link Bitmap} to cache, already sized for the tier
+     * @param replace whether to force a replace if it already exists
+     * @param tier The tier the bitmap belongs to
+     */
+    public void addBitmapToMemCache(final String data, final Bitmap bitmap, final boolean replace,
+            final ImageTier tier) {
         if (data == null || bitmap == null) {
             return;
         }
         // Add to memory cache
-        if (replace || getBitmapFromMemCache(data) == null) {
-            mLruCache.put(data, bitmap);
+        final String memKey = getMemCacheKey(data, tier);
+        if (replace || getBitmapFromMemCache(memKey) == null) {
+            mLruCache.put(memKey, bitmap);
         }
     }
 
+    /**
+     * @return The key an image of the given tier is kept under in the memory cache
+     */
+    private static String getMemCacheKey(final String data, final ImageTier tier) {
+        return tier == ImageTier.THUMBNAIL ? data + THUMBNAIL_KEY_SUFFIX : data;
+    }
+
     /**
      * Fetches a cached image from the memory cache
      *
@@ -371,11 +706,22 @@ public final class ImageCache {
      * @return The {@link Bitmap} if found in cache, null otherwise
      */
     public final Bitmap getBitmapFromMemCache(final String data) {
+        return getBitmapFromMemCache(data, ImageTier.FULL);
+    }
+
+    /**
+     * Fetches a cached image of the given tier from the memory cache
+     *
+     * @param data Unique identifier for which item to get
+     * @param tier The tier to look up
+     * @return The {@link Bitmap} if found in cache, null otherwise
+     */
+    public final Bitmap getBitmapFromMemCache(final String data, final ImageTier tier) {
         if (data == null) {
             return null;
         }
         if (mLruCache != null) {
-            final Bitmap lruBitmap = mLruCache.get(data);
+            final Bitmap lruBitmap = mLruCache.get(getMemCacheKey(data, tier));
             if (lruBitmap != null) {
                 return lruBitmap;
             }
@@ -390,33 +736,52 @@ public final class ImageCache {
      * @return The {@link Bitmap} if found in cache, null otherwise
      */
     public final Bitmap getBitmapFromDiskCache(final String data) {
+        return getBitmapFromDiskCache(data, ImageTier.FULL);
+    }
+
+    /**
+     * Fetches a cached image from the disk cache of the given tier
+     *
+     * @param data Unique identifier for which item to get
+     * @param tier The tier to look up
+     * @return The {@link Bitmap} if found in cache, null otherwise
+     */
+    public final Bitmap getBitmapFromDiskCache(final String data, final ImageTier tier) {
         if (data == null) {
             return null;
         }
 
         // Check in the memory cache here to avoid going to the disk cache less
         // often
-        if (getBitmapFromMemCache(data) != null) {
-            return getBitmapFromMemCache(data);
+        final Bitmap memBitmap = getBitmapFromMemCache(data, tier);
+        if (memBitmap != null) {
+            return memBitmap;
         }
 
         waitUntilUnpaused();
+        final ShardedDiskLruCache diskCache = tier == ImageTier.THUMBNAIL
+                ? mThumbnailDiskCache : mDiskCache;
+        final TierStats stats = tier == ImageTier.THUMBNAIL ? mThumbnailStats : mFullStats;
         final String key = hashKeyForDisk(data);
-        if (mDiskCache != null) {
+        if (diskCache != null) {
             InputStream inputStream = null;
             try {
-                final DiskLruCache.Snapshot snapshot = mDiskCache.get(key);
+                final DiskLruCache.Snapshot snapshot = diskCache.get(key);
                 if (snapshot != null) {
                     inputStream = snapshot.getInputStream(DISK_CACHE_INDEX);
                     if (inputStream != null) {
                         final Bitmap bitmap = BitmapFactory.decodeStream(inputStream);
                         if (bitmap != null) {
+                            stats.mHits.incrementAndGet();
                             return bitmap;
                         }
                     }
                 }
             } catch (final IOException e) {
                 Log.e(TAG, "getBitmapFromDiskCache - " + e);
+            } catch (final IllegalStateException e) {
+                // the cache was closed or cleared underneath us
+                Log.e(TAG, "getBitmapFromDiskCache - " + e);
             } finally {
                 try {
                     if (inputStream != null) {
@@ -426,6 +791,7 @@ public final class ImageCache {
                 }
             }
         }
+        stats.mMisses.incrementAndGet();
         return null;
     }
 
@@ -437,15 +803,34 @@ public final class ImageCache {
      * @return The {@link Bitmap} if found in cache, null otherwise
      */
     public final Bitmap getCachedBitmap(final String data) {
+        return getCachedBitmap(data, ImageTier.FULL);
+    }
+
+    /**
+     * Tries to return a cached image of the given tier from memory cache before
+     * fetching from the disk cache. A thumbnail missing from its tier is
+     * derived from a cached full size image if there is one.
+     *
+     * @param data Unique identifier for which item to get
+     * @param tier The tier to look up
+     * @return The {@link Bitmap} if found in cache, null otherwise
+     */
+    public final Bitmap getCachedBitmap(final String data, final ImageTier tier) {
         if (data == null) {
             return null;
         }
-        Bitmap cachedImage = getBitmapFromMemCache(data);
+        Bitmap cachedImage = getBitmapFromMemCache(data, tier);
         if (cachedImage == null) {
-            cachedImage = getBitmapFromDiskCache(data);
+            cachedImage = getBitmapFromDiskCache(data, tier);
+        }
+        if (cachedImage == null && tier == ImageTier.THUMBNAIL) {
+            final Bitmap fullImage = getBitmapFromDiskCache(data, ImageTier.FULL);
+            if (fullImage != null) {
+                return addBitmapToCache(data, fullImage, false, tier);
+            }
         }
         if (cachedImage != null) {
-            addBitmapToMemCache(data, cachedImage);
+            addBitmapToMemCache(data, cachedImage, false, tier);
             return cachedImage;
         }
         return null;
@@ -461,20 +846,114 @@ public final class ImageCache {
      * @return The artwork for an album
      */
     public final Bitmap getCachedArtwork(final Context context, final String data, final long id) {
+        return getCachedArtwork(context, data, id, ImageTier.FULL);
+    }
+
+    /**
+     * Tries to return the album art of the given tier from memory cache and
+     * disk cache, before calling {@code #getArtworkFromFile(Context, String)}
+     * again. Artwork read from the device is added to both disk tiers so the
+     * next cold lookup doesn't decode the full size file again.
+     *
+     * @param context The {@link Context} to use
+     * @param data The name of the album art
+     * @param id The ID of the album to find artwork for
+     * @param tier The tier to look up
+     * @return The artwork for an album
+     */
+    public final Bitmap getCachedArtwork(final Context context, final String data, final long id,
+            final ImageTier tier) {
         if (context == null || data == null) {
             return null;
         }
-        Bitmap cachedImage = getCachedBitmap(data);
-        if (cachedImage == null && id >= 0) {
-            cachedImage = getArtworkFromFile(context, id);
-        }
+        final Bitmap cachedImage = getCachedBitmap(data, tier);
         if (cachedImage != null) {
-            addBitmapToMemCache(data, cachedImage);
             return cachedImage;
         }
+        if (id >= 0) {
+            final Bitmap artwork = getArtworkFromFile(context, id);
+            if (artwork != null) {
+                return addBitmapToCache(data, artwork, false, tier);
+            }
+        }
         return null;
     }
 
+    /**
+     * @param data The key of the source image
+     * @return The key the blurred version of the source image is cached under
+     */
+    public static String getBlurCacheKey(final String data) {
+        return data + BLUR_KEY_SUFFIX;
+    }
+
+    /**
+     * Adds a blurred background to the memory cache and to the full size disk
+     * tier only, a thumbnail of it is never displayed
+     *
+     * @param data The key of the source image
+     * @param bitmap The blurred {@link Bitmap} to cache
+     */
+    public void addBlurredBitmapToCache(final String data, final Bitmap bitmap) {
+        if (data == null || bitmap == null) {
+            return;
+        }
+        final String blurKey = getBlurCacheKey(data);
+        addBitmapToMemCache(blurKey, bitmap, true, ImageTier.FULL);
+        addBitmapToDiskCache(mDiskCache, hashKeyForDisk(blurKey), bitmap, null, 0, true);
+    }
+
+    /**
+     * Tries to return the blurred background of an image from the memory
+     * cache before fetching it from the disk cache
+     *
+     * @param data The key of the source image
+     * @return The blurred {@link Bitmap} if found in cache, null otherwise
+     */
+    public final Bitmap getCachedBlurredBitmap(final String data) {
+        if (data == null) {
+            return null;
+        }
+        return getCachedBitmap(getBlurCacheKey(data), ImageTier.FULL);
+    }
+
+    /**
+     * Checks whether every place an image could come from is known to be empty,
+     * without any disk or provider access
+     *
+     * @param data The key used to store the image
+     * @param albumId The ID of the album to find local artwork for, or -1 if
+     *            the image isn't looked up on the device
+     * @return true if looking the image up again would be wasted
+     */
+    public boolean isArtworkMissing(final String data, final long albumId) {
+        if (!mMissingArtwork.isMissing(MissingArtworkStore.TYPE_REMOTE, data)) {
+            return false;
+        }
+        return albumId < 0
+                || mMissingArtwork.isMissing(MissingArtworkStore.TYPE_LOCAL,
+                        String.valueOf(albumId));
+    }
+
+    /**
+     * @param data The key used to store the image
+     * @return true if the image host recently said it doesn't have the image
+     */
+    public boolean isRemoteArtworkMissing(final String data) {
+        return mMissingArtwork.isMissing(MissingArtworkStore.TYPE_REMOTE, data);
+    }
+
+    /**
+     * Records that the image host doesn't have the image, so it isn't tried
+     * again until the entry expires or the caches are cleared. Don't call it
+     * for network errors, which are worth another try.
+     *
+     * @param data The key used to store the image
+     */
+    public void setRemoteArtworkMissing(final String data) {
+        mMissingArtwork.markMissing(MissingArtworkStore.TYPE_REMOTE, data);
+    }
+
     /**
      * Used to fetch the artwork for an album locally from the user's device
      *
@@ -483,9 +962,30 @@ public final class ImageCache {
      * @return The artwork for an album
      */
     public final Bitmap getArtworkFromFile(final Context context, final long albumId) {
+        return getArtworkFromFile(context, albumId, 0);
+    }
+
+    /**
+     * Used to fetch the artwork for an album locally from the user's device,
+     * sampled down when it is much larger than needed. Embedded artwork is
+     * often thousands of pixels across.
+     *
+     * @param context The {@link Context} to use
+     * @param albumID The ID of the album to find artwork for
+     * @param maxSize The size the artwork is shown at, in px, or 0 for the full size
+     * @return The artwork for an album, around maxSize on its shorter edge
+     *         unless the artwork itself is smaller
+     */
+    public final Bitmap getArtworkFromFile(final Context context, final long albumId,
+            final int maxSize) {
         if (albumId < 0) {
             return null;
         }
+        // don't ask the provider again for an album that had no artwork
+        final String missingKey = String.valueOf(albumId);
+        if (mMissingArtwork.isMissing(MissingArtworkStore.TYPE_LOCAL, missingKey)) {
+            return null;
+        }
         Bitmap artwork = null;
         waitUntilUnpaused();
         try {
@@ -493,13 +993,36 @@ public final class ImageCache {
             final ParcelFileDescriptor parcelFileDescriptor = context.getContentResolver()
                     .openFileDescriptor(uri, "r");
             if (parcelFileDescriptor != null) {
-                final FileDescriptor fileDescriptor = parcelFileDescriptor.getFileDescriptor();
-                artwork = BitmapFactory.decodeFileDescriptor(fileDescriptor);
+                try {
+                    final FileDescriptor fileDescriptor = parcelFileDescriptor.getFileDescriptor();
+                    final BitmapFactory.Options options = new BitmapFactory.Options();
+                    if (maxSize > 0) {
+                        // the position of the descriptor is left as is, so it is read twice
+                        options.inJustDecodeBounds = true;
+                        BitmapFactory.decodeFileDescriptor(fileDescriptor, null, options);
+                        if (options.outWidth > 0 && options.outHeight > 0) {
+                            options.inSampleSize = ImageUtils.calculateInSampleSize(options,
+                                    maxSize, maxSize);
+                        }
+                        options.inJustDecodeBounds = false;
+                    }
+                    artwork = BitmapFactory.decodeFileDescriptor(fileDescriptor, null, options);
+                } finally {
+                    try {
+                        parcelFileDescriptor.close();
+                    } catch (final IOException e) {
+                        Log.e(TAG, "getArtworkFromFile - " + e);
+                    }
+                }
+            }
+            if (artwork == null) {
+                mMissingArtwork.markMissing(MissingArtworkStore.TYPE_LOCAL, missingKey);
             }
         } catch (final IllegalStateException e) {
             // Log.e(TAG, "IllegalStateExcetpion - getArtworkFromFile - ", e);
         } catch (final FileNotFoundException e) {
             // Log.e(TAG, "FileNotFoundException - getArtworkFromFile - ", e);
+            mMissingArtwork.markMissing(MissingArtworkStore.TYPE_LOCAL, missingKey);
         } catch (final OutOfMemoryError evict) {
             // Log.e(TAG, "OutOfMemoryError - getArtworkFromFile - ", evict);
             evictAll();
@@ -516,20 +1039,25 @@ public final class ImageCache {
 
             @Override
             protected Void doInBackground(final Void... unused) {
-                if (mDiskCache != null) {
-                    try {
-                        if (!mDiskCache.isClosed()) {
-                            mDiskCache.flush();
-                        }
-                    } catch (final IOException e) {
-                        Log.e(TAG, "flush - " + e);
-                    }
-                }
+                flushDiskCache(mDiskCache);
+                flushDiskCache(mThumbnailDiskCache);
                 return null;
             }
         }, (Void[])null);
     }
 
+    private static void flushDiskCache(final ShardedDiskLruCache diskCache) {
+        if (diskCache != null) {
+            try {
+                if (!diskCache.isClosed()) {
+                    diskCache.flush();
+                }
+            } catch (final IOException e) {
+                Log.e(TAG, "flush - " + e);
+            }
+        }
+    }
+
     /**
      * Clears the disk and memory caches
      */
@@ -544,11 +1072,20 @@ public final class ImageCache {
                         mDiskCache.delete();
                         mDiskCache = null;
                     }
+                    if (mThumbnailDiskCache != null) {
+                        mThumbnailDiskCache.delete();
+                        mThumbnailDiskCache = null;
+                    }
                 } catch (final IOException e) {
                     Log.e(TAG, "clearCaches - " + e);
                 }
+                // look everything up again
+                mMissingArtwork.deleteAll();
                 // Clear the memory cache
                 evictAll();
+                // the colors belong to the images that were just deleted
+                mColorStore.deleteAll();
+                BitmapWithColors.evictCachedColors();
                 return null;
             }
         }, (Void[])null);
@@ -564,15 +1101,20 @@ public final class ImageCache {
 
             @Override
             protected Void doInBackground(final Void... unused) {
-                if (mDiskCache != null) {
-                    try {
-                        if (!mDiskCache.isClosed()) {
-                            mDiskCache.close();
-                            mDiskCache = null;
-                        }
-                    } catch (final IOException e) {
-                        Log.e(TAG, "close - " + e);
+                if (DEBUG) {
+                    Log.d(TAG, getStatistics());
+                }
+                try {
+                    if (mDiskCache != null && !mDiskCache.isClosed()) {
+                        mDiskCache.close();
+                        mDiskCache = null;
+                    }
+                    if (mThumbnailDiskCache != null && !mThumbnailDiskCache.isClosed()) {
+                        mThumbnailDiskCache.close();
+                        mThumbnailDiskCache = null;
                     }
+                } catch (final IOException e) {
+                    Log.e(TAG, "close - " + e);
                 }
                 return null;
             }
@@ -597,20 +1139,83 @@ public final class ImageCache {
         if (key == null) {
             return;
         }
-        // Remove the Lru entry
+        // Remove the Lru entries
         if (mLruCache != null) {
-            mLruCache.remove(key);
+            mLruCache.remove(getMemCacheKey(key, ImageTier.FULL));
+            mLruCache.remove(getMemCacheKey(key, ImageTier.THUMBNAIL));
+            mLruCache.remove(getBlurCacheKey(key));
+        }
+
+        // Remove the disk entries
+        final String diskKey = hashKeyForDisk(key);
+        removeFromDiskCache(mDiskCache, diskKey);
+        removeFromDiskCache(mThumbnailDiskCache, diskKey);
+        removeFromDiskCache(mDiskCache, hashKeyForDisk(getBlurCacheKey(key)));
+
+        // let the image be downloaded again
+        mMissingArtwork.clear(MissingArtworkStore.TYPE_REMOTE, key);
+
+        // Remove the colors
+        BitmapWithColors.removeCachedColors(key);
+        removeStoredColors(key);
+    }
+
+    /**
+     * Removes the stored colors of an image, in order with any pending extraction
+     */
+    private void removeStoredColors(final String key) {
+        try {
+            sColorExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mColorStore.removeColors(key);
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            Log.e(TAG, "removeStoredColors - " + e);
         }
+    }
 
+    private static void removeFromDiskCache(final ShardedDiskLruCache diskCache,
+            final String key) {
         try {
-            // Remove the disk entry
-            if (mDiskCache != null) {
-                mDiskCache.remove(hashKeyForDisk(key));
+            if (diskCache != null) {
+                diskCache.remove(key);
+                diskCache.scheduleFlush();
             }
         } catch (final IOException e) {
             Log.e(TAG, "remove - " + e);
+        } catch (final IllegalStateException e) {
+            Log.e(TAG, "remove - " + e);
+        }
+    }
+
+    /**
+     * @return A summary of the memory cache and of the hit, miss and eviction
+     *         counts of each disk tier, to judge whether the budgets are right
+     */
+    public String getStatistics() {
+        final StringBuilder builder = new StringBuilder();
+        if (mLruCache != null) {
+            builder.append("memory ").append(mLruCache.toString())
+                    .append(" evictions=").append(mLruCache.evictionCount());
+        }
+        appendTierStatistics(builder, "full", mDiskCache, mFullStats);
+        appendTierStatistics(builder, "thumbnail", mThumbnailDiskCache, mThumbnailStats);
+        return builder.toString();
+    }
+
+    private static void appendTierStatistics(final StringBuilder builder, final String name,
+            final ShardedDiskLruCache diskCache, final TierStats stats) {
+        builder.append(", ").append(name)
+                .append("[hits=").append(stats.mHits.get())
+                .append(",misses=").append(stats.mMisses.get());
+        if (diskCache != null) {
+            builder.append(",evictions=").append(diskCache.evictionCount())
+                    .append(",size=").append(diskCache.size())
+                    .append(",maxSize=").append(diskCache.maxSize());
         }
-        flush();
+        builder.append(']');
     }
 
     /**
@@ -793,6 +1398,24 @@ public final class ImageCache {
         }
     }
 
+    /**
+     * The two disk tiers an image is cached in
+     */
+    public enum ImageTier {
+        /** Sized for list and grid cells */
+        THUMBNAIL,
+        /** As decoded, used by the player */
+        FULL;
+    }
+
+    /**
+     * Disk cache hit and miss counters of a tier
+     */
+    private static final class TierStats {
+        private final AtomicLong mHits = new AtomicLong();
+        private final AtomicLong mMisses = new AtomicLong();
+    }
+
     /**
      * Used to cache images via {@link LruCache}.
      */
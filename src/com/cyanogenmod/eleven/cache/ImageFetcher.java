@@ -21,7 +21,9 @@ import android.net.Uri;
 import android.widget.ImageView;
 import com.cyanogenmod.eleven.Config;
 import com.cyanogenmod.eleven.MusicPlaybackService;
+import com.cyanogenmod.eleven.cache.ImageCache.ImageTier;
 import com.cyanogenmod.eleven.cache.PlaylistWorkerTask.PlaylistWorkerType;
+import com.cyanogenmod.eleven.model.AlbumArtistDetails;
 import com.cyanogenmod.eleven.utils.BitmapWithColors;
 import com.cyanogenmod.eleven.utils.MusicUtils;
 import com.cyanogenmod.eleven.widgets.BlurScrimImage;
@@ -40,6 +42,9 @@ public class ImageFetcher extends ImageWorker {
 
     private static final int DEFAULT_MAX_IMAGE_WIDTH = 1024;
 
+    /* The notification and lock screen never show the artwork larger than this, in dp */
+    private static final int ARTWORK_MAX_SIZE_DP = 320;
+
     private static ImageFetcher sInstance = null;
 
     /**
@@ -83,21 +88,104 @@ public class ImageFetcher extends ImageWorker {
     }
 
     /**
-     * Used to fetch album images.
+     * Used to fetch album images sized for list and grid cells.
      */
     public void loadAlbumImage(final String artistName, final String albumName, final long albumId,
                                final ImageView imageView) {
+        loadAlbumImage(artistName, albumName, albumId, imageView, ImageTier.THUMBNAIL);
+    }
+
+    /**
+     * Used to fetch album images from the given cache tier.
+     */
+    public void loadAlbumImage(final String artistName, final String albumName, final long albumId,
+                               final ImageView imageView, final ImageTier tier) {
         loadImage(generateAlbumCacheKey(albumName, artistName), artistName, albumName, albumId, imageView,
-                ImageType.ALBUM);
+                ImageType.ALBUM, false, tier);
     }
 
     /**
-     * Used to fetch the current artwork.
+     * Used to fetch the current artwork sized for the bottom action bar.
      */
     public void loadCurrentArtwork(final ImageView imageView) {
         loadImage(getCurrentCacheKey(),
                 MusicUtils.getArtistName(), MusicUtils.getAlbumName(), MusicUtils.getCurrentAlbumId(),
-                imageView, ImageType.ALBUM);
+                imageView, ImageType.ALBUM, false, ImageTier.THUMBNAIL);
+    }
+
+    /**
+     * Warms the caches for an album image that is about to scroll into view.
+     */
+    public void prefetchAlbumImage(final String artistName, final String albumName,
+                                   final long albumId, final ImageTier tier) {
+        prefetchImage(generateAlbumCacheKey(albumName, artistName), artistName, albumName,
+                albumId, ImageType.ALBUM, tier);
+    }
+
+    /**
+     * Warms the caches for an artist image that is about to scroll into view.
+     */
+    public void prefetchArtistImage(final String key) {
+        prefetchImage(key, key, null, -1, ImageType.ARTIST, ImageTier.THUMBNAIL);
+    }
+
+    /**
+     * Warms the full size artwork of the tracks that play after the current
+     * one, so the album art pager doesn't decode during a track change.
+     *
+     * @param count The number of upcoming tracks to warm
+     */
+    public void prefetchUpcomingArtwork(final int count) {
+        if (mImageCache == null) {
+            return;
+        }
+        executePrefetch(new Runnable() {
+            @Override
+            public void run() {
+                for (final long audioId : MusicUtils.getUpcomingAudioIds(count)) {
+                    final AlbumArtistDetails details = MusicUtils.getAlbumArtDetails(mContext,
+                            audioId);
+                    if (details != null) {
+                        final String key = generateAlbumCacheKey(details.mAlbumName,
+                                details.mArtistName);
+                        if (key != null && mImageCache.getBitmapFromMemCache(key) == null) {
+                            getBitmapInBackground(mContext, mImageCache, key,
+                                    details.mAlbumName, details.mArtistName, details.mAlbumId,
+                                    ImageType.ALBUM);
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Warms the memory cache with what {@link #getArtwork} looks up, so the
+     * notification and lock screen don't decode during a track change.
+     *
+     * @param audioIds The tracks to warm the artwork of
+     */
+    public void prefetchArtwork(final long[] audioIds) {
+        if (mImageCache == null || audioIds == null || audioIds.length == 0) {
+            return;
+        }
+        executePrefetch(new Runnable() {
+            @Override
+            public void run() {
+                for (final long audioId : audioIds) {
+                    final AlbumArtistDetails details = MusicUtils.getAlbumArtDetails(mContext,
+                            audioId);
+                    if (details != null && details.mAlbumId >= 0) {
+                        final String key = String.valueOf(details.mAlbumId);
+                        if (mImageCache.getBitmapFromMemCache(key) == null) {
+                            final Bitmap artwork = mImageCache.getArtworkFromFile(mContext,
+                                    details.mAlbumId, getArtworkMaxSize());
+                            mImageCache.addBitmapToMemCache(key, artwork);
+                        }
+                    }
+                }
+            }
+        });
     }
 
     /**
@@ -114,10 +202,10 @@ public class ImageFetcher extends ImageWorker {
     }
 
     /**
-     * Used to fetch artist images.
+     * Used to fetch artist images sized for list and grid cells.
      */
     public void loadArtistImage(final String key, final ImageView imageView) {
-        loadImage(key, key, null, -1, imageView, ImageType.ARTIST);
+        loadImage(key, key, null, -1, imageView, ImageType.ARTIST, false, ImageTier.THUMBNAIL);
     }
 
     /**
@@ -151,9 +239,6 @@ public class ImageFetcher extends ImageWorker {
         if (mImageCache != null) {
             mImageCache.clearCaches();
         }
-
-        // clear the keys of images we've already downloaded
-        sKeys.clear();
     }
 
     public void addCacheListener(ICacheListener listener) {
@@ -199,16 +284,33 @@ public class ImageFetcher extends ImageWorker {
         }
         if (artwork == null && albumId >= 0 && mImageCache != null) {
             // Check for local artwork
-            artwork = mImageCache.getArtworkFromFile(mContext, albumId);
+            artwork = mImageCache.getArtworkFromFile(mContext, albumId, getArtworkMaxSize());
+            // keep it around for the next metadata update or if it was prefetched, it is
+            // sampled down so a single album doesn't take over the memory cache
+            mImageCache.addBitmapToMemCache(key, artwork);
         }
         if (artwork != null) {
-            return new BitmapWithColors(artwork, key.hashCode());
+            // the colors are stored under the key the grids cache the album art with,
+            // so they are usually known already and nothing is extracted here
+            String colorKey = generateAlbumCacheKey(albumName, artistName);
+            if (colorKey == null) {
+                colorKey = key;
+            }
+            return new BitmapWithColors(artwork, colorKey,
+                    mImageCache != null ? mImageCache.getBitmapColors(colorKey, artwork) : null);
         }
 
         return LetterTileDrawable.createDefaultBitmap(mContext, key, ImageType.ALBUM, false,
                 smallArtwork);
     }
 
+    /**
+     * @return The size {@link #getArtwork} decodes the artwork for, in px
+     */
+    private int getArtworkMaxSize() {
+        return Math.round(ARTWORK_MAX_SIZE_DP * mContext.getResources().getDisplayMetrics().density);
+    }
+
     /**
      * Generates key used by album art cache. It needs both album name and artist name
      * to let to select correct image for the case when there are two albums with the
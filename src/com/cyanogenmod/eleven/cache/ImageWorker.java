@@ -21,12 +21,16 @@ import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.Drawable;
 import android.graphics.drawable.TransitionDrawable;
+import android.os.Process;
+import android.support.v8.renderscript.RSRuntimeException;
 import android.support.v8.renderscript.RenderScript;
 import android.text.TextUtils;
+import android.util.Log;
 import android.view.View;
 import android.widget.ImageView;
 
 import com.cyanogenmod.eleven.R;
+import com.cyanogenmod.eleven.cache.ImageCache.ImageTier;
 import com.cyanogenmod.eleven.provider.PlaylistArtworkStore;
 import com.cyanogenmod.eleven.utils.ApolloUtils;
 import com.cyanogenmod.eleven.utils.ImageUtils;
@@ -36,9 +40,12 @@ import com.cyanogenmod.eleven.widgets.LetterTileDrawable;
 
 import java.lang.ref.WeakReference;
 import java.util.Collections;
-import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This class wraps up completing some arbitrary long running work when loading
@@ -47,6 +54,7 @@ import java.util.concurrent.RejectedExecutionException;
  * placeholder image.
  */
 public abstract class ImageWorker {
+    private static final String TAG = ImageWorker.class.getSimpleName();
 
     /**
      * Render script
@@ -54,10 +62,22 @@ public abstract class ImageWorker {
     public static RenderScript sRenderScript = null;
 
     /**
-     * Tracks which images we've tried to download and prevents it from trying again
-     * In the future we might want to throw this into a db
+     * Maximum number of prefetches waiting to run, further requests are dropped
      */
-    public static Set<String> sKeys = Collections.synchronizedSet(new HashSet<String>());
+    private static final int MAX_PENDING_PREFETCHES = 32;
+
+    /**
+     * Prefetches run one at a time at background priority so they never compete
+     * with the loads of the cells that are on screen
+     */
+    private static final ThreadPoolExecutor sPrefetchExecutor = new ThreadPoolExecutor(0, 1,
+            60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+
+    /**
+     * Keys of the prefetches that are queued or running
+     */
+    private static final Set<String> sPrefetchKeys =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
     /**
      * Default transition drawable fade time
@@ -98,7 +118,12 @@ public abstract class ImageWorker {
         mContext = context.getApplicationContext();
 
         if (sRenderScript == null) {
-            sRenderScript = RenderScript.create(mContext);
+            try {
+                sRenderScript = RenderScript.create(mContext);
+            } catch (final RSRuntimeException e) {
+                // the blurs fall back to BitmapUtils
+                Log.e(TAG, "ImageWorker - " + e);
+            }
         }
 
         mResources = mContext.getResources();
@@ -162,37 +187,118 @@ public abstract class ImageWorker {
     public static Bitmap getBitmapInBackground(final Context context, final ImageCache imageCache,
                                    final String key, final String albumName, final String artistName,
                                    final long albumId, final ImageType imageType) {
+        return getBitmapInBackground(context, imageCache, key, albumName, artistName, albumId,
+                imageType, ImageTier.FULL);
+    }
+
+    public static Bitmap getBitmapInBackground(final Context context, final ImageCache imageCache,
+                                   final String key, final String albumName, final String artistName,
+                                   final long albumId, final ImageType imageType,
+                                   final ImageTier tier) {
         // The result
         Bitmap bitmap = null;
 
+        // Nothing to do if the image was looked for everywhere recently
+        if (key != null && imageCache != null && imageCache.isArtworkMissing(key,
+                imageType.equals(ImageType.ALBUM) ? albumId : -1)) {
+            return null;
+        }
+
         // First, check the disk cache for the image
         if (key != null && imageCache != null) {
-            bitmap = imageCache.getCachedBitmap(key);
+            bitmap = imageCache.getCachedBitmap(key, tier);
         }
 
         // Second, if we're fetching artwork, check the device for the image
         if (bitmap == null && imageType.equals(ImageType.ALBUM) && albumId >= 0
                 && key != null && imageCache != null) {
-            bitmap = imageCache.getCachedArtwork(context, key, albumId);
+            bitmap = imageCache.getCachedArtwork(context, key, albumId, tier);
         }
 
         // Third, by now we need to download the image
-        if (bitmap == null && ApolloUtils.isOnline(context) && !sKeys.contains(key)) {
+        if (bitmap == null && key != null && imageCache != null
+                && !imageCache.isRemoteArtworkMissing(key) && ApolloUtils.isOnline(context)) {
             // Now define what the artist name, album name, and url are.
             String url = ImageUtils.processImageUrl(context, artistName, albumName, imageType);
             if (url != null) {
-                bitmap = ImageUtils.processBitmap(context, url);
+                // Fourth, the download is added to the cache as it is decoded. A
+                // failed download is tried again next time, only an image the host
+                // doesn't have is remembered as missing.
+                bitmap = ImageUtils.processBitmap(url, imageCache, key, tier);
             }
         }
 
-        // Fourth, add the new image to the cache
-        if (bitmap != null && key != null && imageCache != null) {
-            imageCache.addBitmapToCache(key, bitmap);
+        return bitmap;
+    }
+
+    /**
+     * Warms the memory and disk caches for an image that is likely to be shown
+     * soon. Does nothing if the image is already in memory or queued.
+     *
+     * @param key The unique identifier for the image.
+     * @param artistName The artist name for the Last.fm API.
+     * @param albumName The album name for the Last.fm API.
+     * @param albumId The album art index, to check for missing artwork.
+     * @param imageType The type of image URL to fetch for.
+     * @param tier The tier the image will be displayed from
+     */
+    protected void prefetchImage(final String key, final String artistName,
+            final String albumName, final long albumId, final ImageType imageType,
+            final ImageTier tier) {
+        if (key == null || mImageCache == null
+                || mImageCache.getBitmapFromMemCache(key, tier) != null
+                || sPrefetchKeys.size() >= MAX_PENDING_PREFETCHES
+                || !sPrefetchKeys.add(key)) {
+            return;
         }
 
-        sKeys.add(key);
+        final ImageCache imageCache = mImageCache;
+        final boolean queued = executePrefetch(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (sPrefetchKeys.contains(key)) {
+                        getBitmapInBackground(mContext, imageCache, key, albumName,
+                                artistName, albumId, imageType, tier);
+                    }
+                } finally {
+                    sPrefetchKeys.remove(key);
+                }
+            }
+        });
+        if (!queued) {
+            sPrefetchKeys.remove(key);
+        }
+    }
 
-        return bitmap;
+    /**
+     * Runs some prefetch work on the background prefetch thread
+     *
+     * @param work The work to run
+     * @return true if the work was queued
+     */
+    protected static boolean executePrefetch(final Runnable work) {
+        try {
+            sPrefetchExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    work.run();
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Drops the prefetches that haven't started yet, for example because the
+     * user changed scroll direction
+     */
+    public void cancelPrefetches() {
+        sPrefetchExecutor.getQueue().clear();
+        sPrefetchKeys.clear();
     }
 
     /**
@@ -397,6 +503,17 @@ public abstract class ImageWorker {
             Drawable existingDrawable = imageView.getDrawable();
             if (existingDrawable != null && existingDrawable instanceof LetterTileDrawable) {
                 ((LetterTileDrawable)existingDrawable).setTileDetails(name, identifier, imageType);
+            } else if (existingDrawable instanceof TransitionDrawable
+                    && ((TransitionDrawable)existingDrawable).getNumberOfLayers() > 0
+                    && ((TransitionDrawable)existingDrawable).getDrawable(0)
+                            instanceof LetterTileDrawable) {
+                // a recycled view that faded in its image keeps the tile it faded from
+                final LetterTileDrawable letterTileDrawable = (LetterTileDrawable)
+                        ((TransitionDrawable)existingDrawable).getDrawable(0);
+                letterTileDrawable.setTileDetails(name, identifier, imageType);
+                // the cross fade left it transparent
+                letterTileDrawable.setAlpha(0xff);
+                imageView.setImageDrawable(letterTileDrawable);
             } else {
                 imageView.setImageDrawable(getNewDrawable(imageType, name,
                         identifier));
@@ -436,13 +553,34 @@ public abstract class ImageWorker {
     protected void loadImage(final String key, final String artistName, final String albumName,
                              final long albumId, final ImageView imageView,
                              final ImageType imageType, final boolean scaleImgToView) {
+        loadImage(key, artistName, albumName, albumId, imageView, imageType, scaleImgToView,
+                ImageTier.FULL);
+    }
+
+    /**
+     * Called to fetch the artist or album art.
+     *
+     * @param key The unique identifier for the image.
+     * @param artistName The artist name for the Last.fm API.
+     * @param albumName The album name for the Last.fm API.
+     * @param albumId The album art index, to check for missing artwork.
+     * @param imageView The {@link ImageView} used to set the cached
+     *            {@link Bitmap}.
+     * @param imageType The type of image URL to fetch for.
+     * @param scaleImgToView config option to scale the image to the image view's dimensions
+     * @param tier Whether a grid sized thumbnail is enough or the full image is needed
+     */
+    protected void loadImage(final String key, final String artistName, final String albumName,
+                             final long albumId, final ImageView imageView,
+                             final ImageType imageType, final boolean scaleImgToView,
+                             final ImageTier tier) {
 
         if (key == null || mImageCache == null || imageView == null) {
             return;
         }
 
         // First, check the memory for the image
-        final Bitmap lruBitmap = mImageCache.getBitmapFromMemCache(key);
+        final Bitmap lruBitmap = mImageCache.getBitmapFromMemCache(key, tier);
         if (lruBitmap != null) {   // Bitmap found in memory cache
             // scale image if necessary
             if (scaleImgToView) {
@@ -472,7 +610,7 @@ public abstract class ImageWorker {
 
                 // Otherwise run the worker task
                 final SimpleBitmapWorkerTask bitmapWorkerTask = new SimpleBitmapWorkerTask(key,
-                            imageView, imageType, fromDrawable, mContext, scaleImgToView);
+                            imageView, imageType, fromDrawable, mContext, scaleImgToView, tier);
 
                 final AsyncTaskContainer asyncTaskContainer = new AsyncTaskContainer(bitmapWorkerTask);
                 imageView.setTag(asyncTaskContainer);
@@ -26,6 +26,7 @@ import android.provider.MediaStore;
 import android.widget.ImageView;
 
 import com.cyanogenmod.eleven.R;
+import com.cyanogenmod.eleven.cache.ImageCache.ImageTier;
 import com.cyanogenmod.eleven.cache.ImageWorker.ImageType;
 import com.cyanogenmod.eleven.loaders.PlaylistSongLoader;
 import com.cyanogenmod.eleven.loaders.SortedCursor;
@@ -39,7 +40,8 @@ import java.util.HashSet;
  * The playlistWorkerTask will load either the top artist image or the cover art (a combination of
  * up to 4 of the top song's album images) into the designated ImageView.  If not enough time has
  * elapsed since the last update or if the # of songs in the playlist hasn't changed, no new images
- * will be loaded.
+ * will be loaded. The cover art is only composed again when the albums of its tiles change, and
+ * it is composed from the thumbnails of those albums.
  */
 public class PlaylistWorkerTask extends BitmapWorkerTask<Void, Void, TransitionDrawable> {
     // the work type
@@ -156,7 +158,7 @@ public class PlaylistWorkerTask extends BitmapWorkerTask<Void, Void, TransitionD
             } else if (mWorkerType == PlaylistWorkerType.Artist) {
                 bitmap = loadTopArtist(sortedCursor);
             } else {
-                bitmap = loadTopSongs(sortedCursor);
+                bitmap = loadTopSongs(sortedCursor, bitmap);
             }
         } finally {
             if (sortedCursor != null) {
@@ -266,16 +268,53 @@ public class PlaylistWorkerTask extends BitmapWorkerTask<Void, Void, TransitionD
         return bitmap;
     }
 
+    /**
+     * Gets the comma separated ids of the first albums of the sorted playlist, these are the
+     * albums the cover art is made of
+     * @param sortedCursor the sorted playlist song cursor
+     * @return the album ids
+     */
+    protected String getTopAlbumIds(Cursor sortedCursor) {
+        final int albumIdIdx = sortedCursor.getColumnIndex(MediaStore.Audio.AudioColumns.ALBUM_ID);
+        final HashSet<Long> albumIds = new HashSet<Long>(MAX_NUM_BITMAPS_TO_LOAD);
+        final StringBuilder builder = new StringBuilder();
+
+        do {
+            final long albumId = sortedCursor.getLong(albumIdIdx);
+            if (albumIds.add(albumId)) {
+                if (builder.length() > 0) {
+                    builder.append(',');
+                }
+                builder.append(albumId);
+            }
+        } while (sortedCursor.moveToNext() && albumIds.size() < MAX_NUM_BITMAPS_TO_LOAD);
+
+        return builder.toString();
+    }
+
     /**
      * Gets the Cover Art of the playlist, which is a combination of the top song's album image
      * @param sortedCursor the sorted playlist song cursor
+     * @param cachedBitmap the cover art read from the disk cache, if it was needed
      * @return Bitmap of the artist
      */
-    protected Bitmap loadTopSongs(Cursor sortedCursor) {
+    protected Bitmap loadTopSongs(Cursor sortedCursor, Bitmap cachedBitmap) {
         if (sortedCursor == null || !sortedCursor.moveToFirst()) {
             return null;
         }
 
+        // if the top albums are still the same, the cover art that is cached is still right
+        final String albumIds = getTopAlbumIds(sortedCursor);
+        if ((mFoundInCache || cachedBitmap != null)
+                && albumIds.equals(mPlaylistStore.getCoverAlbumIds(mPlaylistId))) {
+            mPlaylistStore.updateCoverArt(mPlaylistId, albumIds);
+            return cachedBitmap;
+        }
+
+        if (isCancelled() || !sortedCursor.moveToFirst()) {
+            return null;
+        }
+
         ArrayList<Bitmap> loadedBitmaps = new ArrayList<Bitmap>(MAX_NUM_BITMAPS_TO_LOAD);
 
         final int artistIdx = sortedCursor.getColumnIndex(MediaStore.Audio.AudioColumns.ARTIST);
@@ -303,9 +342,10 @@ public class PlaylistWorkerTask extends BitmapWorkerTask<Void, Void, TransitionD
 
             // if we successfully added the key (ie the key didn't previously exist)
             if (keys.add(key)) {
-                // try to load the bitmap
+                // try to load the bitmap, a thumbnail is plenty for a quarter of the cover
                 bitmap = ImageWorker.getBitmapInBackground(mContext, mImageCache,
-                        key, albumName, artistName, albumId, ImageType.ALBUM);
+                        key, albumName, artistName, albumId, ImageType.ALBUM,
+                        ImageTier.THUMBNAIL);
 
                 // if we got the bitmap, add it to the list
                 if (bitmap != null) {
@@ -352,7 +392,7 @@ public class PlaylistWorkerTask extends BitmapWorkerTask<Void, Void, TransitionD
         }
 
         // store the fact that we ran this code into the db to prevent multiple re-runs
-        mPlaylistStore.updateCoverArt(mPlaylistId);
+        mPlaylistStore.updateCoverArt(mPlaylistId, bitmap != null ? albumIds : "");
 
         if (bitmap != null) {
             // add the image to the cache
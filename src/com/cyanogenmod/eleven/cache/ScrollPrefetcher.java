@@ -0,0 +1,158 @@
+/*
+* Copyright (C) 2015 The CyanogenMod Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.cyanogenmod.eleven.cache;
+
+import android.os.SystemClock;
+import android.widget.AbsListView;
+
+/**
+ * Feeds the items just beyond the visible range of an {@link AbsListView} to
+ * the image prefetcher. The look ahead follows the scroll direction and grows
+ * with the scroll velocity, so the artwork is usually in the memory cache by
+ * the time the cell is bound.
+ */
+public class ScrollPrefetcher {
+
+    /**
+     * Implemented by whatever can map a list position to the image to prefetch
+     */
+    public interface PrefetchTarget {
+        /**
+         * Warms the caches for the image of the item at position
+         * @param position the position in the list, it may be a header or footer
+         */
+        void prefetch(int position);
+
+        /**
+         * Drops any prefetches that haven't started yet
+         */
+        void cancelPrefetches();
+    }
+
+    /**
+     * Upper bound of items to look ahead, regardless of the velocity
+     */
+    private static final int MAX_LOOKAHEAD = 24;
+
+    /**
+     * Scroll speed, in screens per second, that doubles the look ahead
+     */
+    private static final float SCREENS_PER_SECOND_SCALE = 2f;
+
+    private final PrefetchTarget mTarget;
+
+    private int mLastFirstVisible = -1;
+    private long mLastScrollTime;
+    private int mDirection = 1;
+
+    /**
+     * The position beyond which nothing has been prefetched yet in the
+     * current direction
+     */
+    private int mPrefetchedUpTo = -1;
+
+    /**
+     * Constructor of <code>ScrollPrefetcher</code>
+     * @param target maps positions to images
+     */
+    public ScrollPrefetcher(final PrefetchTarget target) {
+        mTarget = target;
+    }
+
+    /**
+     * Call from {@link AbsListView.OnScrollListener#onScroll}
+     */
+    public void onScroll(final int firstVisibleItem, final int visibleItemCount,
+            final int totalItemCount) {
+        if (visibleItemCount <= 0 || totalItemCount <= 0) {
+            return;
+        }
+
+        final long now = SystemClock.uptimeMillis();
+        if (mLastFirstVisible < 0) {
+            mLastFirstVisible = firstVisibleItem;
+            mLastScrollTime = now;
+            prefetch(firstVisibleItem, visibleItemCount, totalItemCount, visibleItemCount);
+            return;
+        }
+        if (firstVisibleItem == mLastFirstVisible) {
+            return;
+        }
+
+        final int delta = firstVisibleItem - mLastFirstVisible;
+        final int direction = delta > 0 ? 1 : -1;
+        if (direction != mDirection) {
+            // what was queued for the other direction is no longer useful
+            mTarget.cancelPrefetches();
+            mDirection = direction;
+            mPrefetchedUpTo = -1;
+        }
+
+        // velocity in screens per second decides how far ahead to look
+        final long elapsed = Math.max(1, now - mLastScrollTime);
+        final float screensPerSecond = (Math.abs(delta) * 1000f / elapsed) / visibleItemCount;
+        final int lookahead = Math.min(MAX_LOOKAHEAD, Math.round(visibleItemCount
+                * (1f + screensPerSecond / SCREENS_PER_SECOND_SCALE)));
+
+        mLastFirstVisible = firstVisibleItem;
+        mLastScrollTime = now;
+        prefetch(firstVisibleItem, visibleItemCount, totalItemCount, lookahead);
+    }
+
+    /**
+     * Call from {@link AbsListView.OnScrollListener#onScrollStateChanged}
+     */
+    public void onScrollStateChanged(final int scrollState) {
+        if (scrollState == AbsListView.OnScrollListener.SCROLL_STATE_FLING) {
+            // the cells fly by faster than anything can be loaded, start over once it settles
+            mTarget.cancelPrefetches();
+            mPrefetchedUpTo = -1;
+        }
+    }
+
+    /**
+     * Forgets the positions that were prefetched, call when the data changes
+     */
+    public void reset() {
+        mLastFirstVisible = -1;
+        mPrefetchedUpTo = -1;
+        mDirection = 1;
+    }
+
+    private void prefetch(final int firstVisibleItem, final int visibleItemCount,
+            final int totalItemCount, final int lookahead) {
+        if (mDirection > 0) {
+            final int start = Math.max(firstVisibleItem + visibleItemCount, mPrefetchedUpTo + 1);
+            final int end = Math.min(totalItemCount, firstVisibleItem + visibleItemCount
+                    + lookahead);
+            for (int i = start; i < end; i++) {
+                mTarget.prefetch(i);
+            }
+            mPrefetchedUpTo = Math.max(mPrefetchedUpTo, end - 1);
+        } else {
+            final int start = mPrefetchedUpTo >= 0
+                    ? Math.min(firstVisibleItem - 1, mPrefetchedUpTo - 1)
+                    : firstVisibleItem - 1;
+            final int end = Math.max(0, firstVisibleItem - lookahead);
+            for (int i = start; i >= end; i--) {
+                mTarget.prefetch(i);
+            }
+            if (start >= end) {
+                mPrefetchedUpTo = end;
+            }
+        }
+    }
+}
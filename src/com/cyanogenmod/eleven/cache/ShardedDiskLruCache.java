@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2015 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.eleven.cache;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A {@link DiskLruCache} split into a fixed number of independent shards. Each
+ * shard lives in its own sub directory with its own journal and its own lock,
+ * and a key is always routed to the same shard based on its hash. This lets
+ * parallel image loaders read and write different keys without contending on
+ * a single monitor.
+ * <p>
+ * Journal flushes are group committed: callers use {@link #scheduleFlush()}
+ * after an edit and all of the pending journal lines of every shard are
+ * written out together after {@link #FLUSH_DELAY_MS}, instead of once per
+ * insert.
+ */
+public final class ShardedDiskLruCache implements Closeable {
+
+    /**
+     * Default number of shards
+     */
+    public static final int DEFAULT_SHARD_COUNT = 4;
+
+    /**
+     * How long to wait before writing out the pending journal lines
+     */
+    private static final long FLUSH_DELAY_MS = 2000;
+
+    private static final String SHARD_DIR_PREFIX = "shard-";
+
+    private final File mDirectory;
+
+    private final long mMaxSize;
+
+    private final DiskLruCache[] mShards;
+
+    /**
+     * True while a group commit is scheduled but hasn't run yet
+     */
+    private final AtomicBoolean mFlushPending = new AtomicBoolean(false);
+
+    /** A single background thread writes out the journals */
+    private final ScheduledThreadPoolExecutor mFlushExecutor;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mFlushPending.set(false);
+            try {
+                flush();
+            } catch (final IOException e) {
+                // the next edit will schedule another flush
+            } catch (final IllegalStateException e) {
+                // closed while the flush was pending
+            }
+        }
+    };
+
+    private ShardedDiskLruCache(final File directory, final long maxSize,
+            final DiskLruCache[] shards) {
+        mDirectory = directory;
+        mMaxSize = maxSize;
+        mShards = shards;
+        mFlushExecutor = new ScheduledThreadPoolExecutor(1);
+        mFlushExecutor.setKeepAliveTime(60L, TimeUnit.SECONDS);
+        mFlushExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Opens the cache in {@code directory} using {@link #DEFAULT_SHARD_COUNT}
+     * shards, creating a cache if none exists there.
+     *
+     * @see #open(File, int, int, long, int)
+     */
+    public static ShardedDiskLruCache open(final File directory, final int appVersion,
+            final int valueCount, final long maxSize) throws IOException {
+        return open(directory, appVersion, valueCount, maxSize, DEFAULT_SHARD_COUNT);
+    }
+
+    /**
+     * Opens the cache in {@code directory}, creating a cache if none exists
+     * there. The byte budget is split evenly between the shards.
+     *
+     * @param directory a writable directory
+     * @param appVersion
+     * @param valueCount the number of values per cache entry. Must be positive.
+     * @param maxSize the maximum number of bytes this cache should use to store
+     * @param shardCount the number of independent journals. Must be positive.
+     * @throws IOException if reading or writing the cache directory fails
+     */
+    public static ShardedDiskLruCache open(final File directory, final int appVersion,
+            final int valueCount, final long maxSize, final int shardCount) throws IOException {
+        if (shardCount <= 0) {
+            throw new IllegalArgumentException("shardCount <= 0");
+        }
+        if (maxSize < shardCount) {
+            throw new IllegalArgumentException("maxSize < shardCount");
+        }
+
+        // a cache written by the unsharded DiskLruCache keeps its journal at the top
+        // level, so start over rather than leaking its files
+        if (new File(directory, DiskLruCache.JOURNAL_FILE).exists()) {
+            DiskLruCache.deleteContents(directory);
+        }
+
+        final DiskLruCache[] shards = new DiskLruCache[shardCount];
+        try {
+            for (int i = 0; i < shardCount; i++) {
+                shards[i] = DiskLruCache.open(new File(directory, SHARD_DIR_PREFIX + i),
+                        appVersion, valueCount, maxSize / shardCount);
+            }
+        } catch (final IOException e) {
+            for (final DiskLruCache shard : shards) {
+                DiskLruCache.closeQuietly(shard);
+            }
+            throw e;
+        }
+        return new ShardedDiskLruCache(directory, maxSize, shards);
+    }
+
+    private DiskLruCache shardFor(final String key) {
+        return mShards[(key.hashCode() & Integer.MAX_VALUE) % mShards.length];
+    }
+
+    /**
+     * Returns a snapshot of the entry named {@code key}, or null if it doesn't
+     * exist is not currently readable.
+     */
+    public DiskLruCache.Snapshot get(final String key) throws IOException {
+        return shardFor(key).get(key);
+    }
+
+    /**
+     * Returns an editor for the entry named {@code key}, or null if another
+     * edit is in progress.
+     */
+    public DiskLruCache.Editor edit(final String key) throws IOException {
+        return shardFor(key).edit(key);
+    }
+
+    /**
+     * Drops the entry for {@code key} if it exists and can be removed.
+     *
+     * @return true if an entry was removed.
+     */
+    public boolean remove(final String key) throws IOException {
+        return shardFor(key).remove(key);
+    }
+
+    /**
+     * Returns the directory where this cache stores its shards.
+     */
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    /**
+     * Returns the maximum number of bytes that this cache should use to store
+     * its data, across all shards.
+     */
+    public long maxSize() {
+        return mMaxSize;
+    }
+
+    /**
+     * Returns the number of bytes currently being used by all shards.
+     */
+    public long size() {
+        long size = 0;
+        for (final DiskLruCache shard : mShards) {
+            size += shard.size();
+        }
+        return size;
+    }
+
+    /**
+     * Returns the number of entries evicted by all shards.
+     */
+    public long evictionCount() {
+        long count = 0;
+        for (final DiskLruCache shard : mShards) {
+            count += shard.evictionCount();
+        }
+        return count;
+    }
+
+    /**
+     * Returns true if this cache has been closed.
+     */
+    public boolean isClosed() {
+        return mShards[0].isClosed();
+    }
+
+    /**
+     * Schedules a group commit of the journals if one isn't already pending.
+     */
+    public void scheduleFlush() {
+        if (!isClosed() && mFlushPending.compareAndSet(false, true)) {
+            try {
+                mFlushExecutor.schedule(mFlushRunnable, FLUSH_DELAY_MS, TimeUnit.MILLISECONDS);
+            } catch (final RejectedExecutionException e) {
+                // closed concurrently
+                mFlushPending.set(false);
+            }
+        }
+    }
+
+    /**
+     * Force buffered operations of every shard to the filesystem.
+     */
+    public void flush() throws IOException {
+        for (final DiskLruCache shard : mShards) {
+            shard.flush();
+        }
+    }
+
+    /**
+     * Closes every shard. Stored values will remain on the filesystem.
+     */
+    @Override
+    public void close() throws IOException {
+        mFlushExecutor.shutdownNow();
+        mFlushPending.set(false);
+        IOException failure = null;
+        for (final DiskLruCache shard : mShards) {
+            try {
+                shard.close();
+            } catch (final IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Closes the cache and deletes all of its stored values.
+     */
+    public void delete() throws IOException {
+        close();
+        DiskLruCache.deleteContents(mDirectory);
+    }
+}
@@ -20,6 +20,7 @@ import android.graphics.Bitmap;
 import android.graphics.drawable.Drawable;
 import android.graphics.drawable.TransitionDrawable;
 import android.widget.ImageView;
+import com.cyanogenmod.eleven.cache.ImageCache.ImageTier;
 import com.cyanogenmod.eleven.cache.ImageWorker.ImageType;
 import com.cyanogenmod.eleven.utils.ImageUtils;
 
@@ -55,6 +56,22 @@ public class SimpleBitmapWorkerTask extends BitmapWorkerTask<String, Void, Trans
         super(key, imageView, imageType, fromDrawable, context, scaleImgToView);
     }
 
+    /**
+     * Constructor of <code>BitmapWorkerTask</code>
+     *
+     * @param key the key of the image to store to
+     * @param imageView The {@link ImageView} to use.
+     * @param imageType The type of image URL to fetch for.
+     * @param fromDrawable what drawable to transition from
+     * @param scaleImgToView flag to scale the bitmap to the image view bounds
+     * @param imageTier The cache tier to load the image from
+     */
+    public SimpleBitmapWorkerTask(final String key, final ImageView imageView, final ImageType imageType,
+                                  final Drawable fromDrawable, final Context context, final boolean scaleImgToView,
+                                  final ImageTier imageTier) {
+        super(key, imageView, imageType, fromDrawable, context, scaleImgToView, imageTier);
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -25,32 +25,35 @@ import static com.cyanogenmod.eleven.lastfm.StringUtilities.encode;
 import static com.cyanogenmod.eleven.lastfm.StringUtilities.map;
 
 import android.content.Context;
+import android.os.SystemClock;
 import android.util.Log;
 
-import com.cyanogenmod.eleven.lastfm.Result.Status;
+import com.cyanogenmod.eleven.cache.DiskLruCache;
+import com.cyanogenmod.eleven.cache.ImageCache;
 
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.xml.sax.InputSource;
-import org.xml.sax.SAXException;
+import org.xmlpull.v1.XmlPullParserException;
 
-import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.net.HttpURLConnection;
-import java.net.Proxy;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.WeakHashMap;
-
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The <code>Caller</code> class handles the low-level communication between the
@@ -59,8 +62,11 @@ import javax.xml.parsers.ParserConfigurationException;
  * available via the methods in the <code>Artist</code>, <code>Album</code>,
  * <code>User</code>, etc. classes. If specialized calls which are not covered
  * by the Java API are necessary this class may be used directly.<br/>
- * Supports the setting of a custom {@link Proxy} and a custom
- * <code>User-Agent</code> HTTP header.
+ * Successful responses are kept in a disk cache keyed by the method and its
+ * parameters, so repeated lookups don't go to the network. The network calls
+ * run on a small pool, whichever thread asks, so only a few are in flight at
+ * once, and the calls to a host are spaced out to stay within the rate limit.
+ * Calls can also be queued with {@link #callAsync} and {@link #callAll}.
  *
  * @author Janni Kovacs
  */
@@ -68,22 +74,90 @@ public class Caller {
 
     private final static String TAG = "LastFm.Caller";
 
+    private static final boolean DEBUG = false;
+
     private final static String PARAM_API_KEY = "api_key";
 
     private final static String DEFAULT_API_ROOT = "http://ws.audioscrobbler.com/2.0/";
 
+    /**
+     * Name of the directory of the response cache
+     */
+    private static final String CACHE_DIR = "LastFmCache";
+
+    /**
+     * Disk space used by the response cache, the responses are small
+     */
+    private static final long CACHE_SIZE = 1024 * 1024 * 4;
+
+    /**
+     * How long a cached response is used before asking again
+     */
+    private static final long CACHE_TTL_MS = 1000 * 60 * 60 * 24 * 7;
+
+    /**
+     * The response cache keeps the expiry time and the body of each response
+     */
+    private static final int CACHE_EXPIRY_INDEX = 0;
+    private static final int CACHE_BODY_INDEX = 1;
+    private static final int CACHE_VALUE_COUNT = 2;
+
+    /**
+     * Number of network calls running at the same time
+     */
+    private static final int MAX_CONCURRENT_CALLS = 4;
+
+    /**
+     * Number of calls waiting to run, beyond that the caller runs them itself
+     */
+    private static final int MAX_PENDING_CALLS = 64;
+
+    /**
+     * Time between two calls to the same host, last.fm asks for no more than
+     * five calls per second
+     */
+    private static final long MIN_CALL_INTERVAL_MS = 200;
+
+    private static final int CONNECT_TIMEOUT_MS = 10000;
+
+    private static final int READ_TIMEOUT_MS = 15000;
+
     private static Caller mInstance = null;
 
     private final String apiRootUrl = DEFAULT_API_ROOT;
 
     private final String userAgent = "Apollo";
 
-    private Result lastResult;
+    private final Context mContext;
+
+    /**
+     * Opened on the first call, as it hits the disk
+     */
+    private DiskLruCache mResponseCache;
+
+    private final ThreadPoolExecutor mExecutor;
+
+    /**
+     * The earliest time the next call to each host may start
+     */
+    private final HashMap<String, Long> mNextCallTimes = new HashMap<String, Long>();
+
+    private final AtomicLong mCalls = new AtomicLong();
+    private final AtomicLong mCacheHits = new AtomicLong();
+    private final AtomicLong mNetworkCalls = new AtomicLong();
+    private final AtomicLong mNetworkTimeMs = new AtomicLong();
+    private final AtomicLong mRateLimitWaitMs = new AtomicLong();
+    private final AtomicLong mErrors = new AtomicLong();
 
     /**
      * @param context The {@link Context} to use
      */
     private Caller(final Context context) {
+        mContext = context;
+        mExecutor = new ThreadPoolExecutor(MAX_CONCURRENT_CALLS, MAX_CONCURRENT_CALLS,
+                60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(MAX_PENDING_CALLS),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        mExecutor.allowCoreThreadTimeOut(true);
     }
 
     /**
@@ -109,54 +183,342 @@ public class Caller {
     }
 
     /**
-     * Performs the web-service call. If the <code>session</code> parameter is
-     * <code>non-null</code> then an authenticated call is made. If it's
-     * <code>null</code> then an unauthenticated call is made.<br/>
-     * The <code>apiKey</code> parameter is always required, even when a valid
-     * session is passed to this method.
+     * Performs the web-service call, or returns the cached response of an
+     * identical call if it hasn't expired yet. The network call runs on the
+     * pool of the caller, this waits for it.<br/>
+     * The <code>apiKey</code> parameter is always required.
      *
      * @param method The method to call
      * @param apiKey A Last.fm API key
      * @param params Parameters
-     * @param session A Session instance or <code>null</code>
      * @return the result of the operation
      */
-    public Result call(final String method, final String apiKey, Map<String, String> params) {
-        params = new WeakHashMap<String, String>(params);
-        InputStream inputStream = null;
-
-        // no entry in cache, load from web
-        if (inputStream == null) {
-            // fill parameter map with apiKey and session info
-            params.put(PARAM_API_KEY, apiKey);
+    public Result call(final String method, final String apiKey, final Map<String, String> params) {
+        final String post = buildCallPostBody(method, apiKey, params);
+        final String cacheKey = StringUtilities.md5(post);
+        mCalls.incrementAndGet();
+
+        final Result cached = getCachedResult(cacheKey);
+        if (cached != null) {
+            return cached;
+        }
+
+        return getResult(mExecutor.submit(new Callable<Result>() {
+            @Override
+            public Result call() {
+                return callNetwork(method, post, cacheKey);
+            }
+        }));
+    }
+
+    /**
+     * Queues the web-service call on the pool of the caller. When too many
+     * calls are already waiting, the call is made on the calling thread.
+     *
+     * @param method The method to call
+     * @param apiKey A Last.fm API key
+     * @param params Parameters
+     * @return the result of the operation, once it has completed
+     */
+    public Future<Result> callAsync(final String method, final String apiKey,
+            final Map<String, String> params) {
+        return mExecutor.submit(new Callable<Result>() {
+            @Override
+            public Result call() {
+                // already on the pool, so the network call is made right here
+                final String post = buildCallPostBody(method, apiKey, params);
+                final String cacheKey = StringUtilities.md5(post);
+                mCalls.incrementAndGet();
+
+                final Result cached = getCachedResult(cacheKey);
+                return cached != null ? cached : callNetwork(method, post, cacheKey);
+            }
+        });
+    }
+
+    /**
+     * Performs the same method with each set of parameters, in parallel, and
+     * waits for all of them. Don't call it on the main thread.
+     *
+     * @param method The method to call
+     * @param apiKey A Last.fm API key
+     * @param paramsList The parameters of each call
+     * @return the results, in the order of the parameters
+     */
+    public List<Result> callAll(final String method, final String apiKey,
+            final List<Map<String, String>> paramsList) {
+        final List<Future<Result>> futures = new ArrayList<Future<Result>>(paramsList.size());
+        for (final Map<String, String> params : paramsList) {
+            futures.add(callAsync(method, apiKey, params));
+        }
+        final List<Result> results = new ArrayList<Result>(futures.size());
+        for (final Future<Result> future : futures) {
+            results.add(getResult(future));
+        }
+        return results;
+    }
+
+    /**
+     * Waits for a call queued on the pool
+     *
+     * @param future The queued call
+     * @return the result of the call, or a failed result if it was interrupted
+     */
+    private Result getResult(final Future<Result> future) {
+        try {
+            return future.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new Result(e.toString());
+        } catch (final ExecutionException e) {
+            Log.e(TAG, "getResult - " + e);
+            return new Result(e.toString());
+        }
+    }
+
+    /**
+     * @return the body of the request, the parameters are sorted so the same
+     *         ones always make the same cache key
+     */
+    private String buildCallPostBody(final String method, final String apiKey,
+            final Map<String, String> params) {
+        final Map<String, String> callParams = new TreeMap<String, String>(params);
+        callParams.put(PARAM_API_KEY, apiKey);
+        return buildPostBody(method, callParams);
+    }
+
+    /**
+     * @param cacheKey The key of the call
+     * @return the cached result of the call, or null if there is none
+     */
+    private Result getCachedResult(final String cacheKey) {
+        final byte[] cached = getCachedResponse(cacheKey);
+        if (cached != null) {
             try {
-                final HttpURLConnection urlConnection = openPostConnection(method, params);
-                inputStream = getInputStreamFromConnection(urlConnection);
+                final Result result = ResponseParser.parseResult(cached);
+                mCacheHits.incrementAndGet();
+                return result;
+            } catch (final IOException e) {
+                removeCachedResponse(cacheKey);
+            } catch (final XmlPullParserException e) {
+                removeCachedResponse(cacheKey);
+            }
+        }
+        return null;
+    }
 
-                if (inputStream == null) {
-                    lastResult = Result.createHttpErrorResult(urlConnection.getResponseCode(),
-                            urlConnection.getResponseMessage());
-                    return lastResult;
+    /**
+     * @return the counters of the calls made so far, for logging
+     */
+    public String getStatistics() {
+        final long networkCalls = mNetworkCalls.get();
+        return "calls=" + mCalls.get()
+                + ", cacheHits=" + mCacheHits.get()
+                + ", networkCalls=" + networkCalls
+                + ", avgNetworkMs=" + (networkCalls > 0 ? mNetworkTimeMs.get() / networkCalls : 0)
+                + ", rateLimitWaitMs=" + mRateLimitWaitMs.get()
+                + ", errors=" + mErrors.get();
+    }
+
+    /**
+     * Makes the call over the network and counts it, only on the pool
+     *
+     * @param method The method called, for logging
+     * @param post The body of the request
+     * @param cacheKey The key to cache the response under
+     * @return the result of the operation
+     */
+    private Result callNetwork(final String method, final String post, final String cacheKey) {
+        final Result result = callNetwork(post, cacheKey);
+        if (!result.isSuccessful()) {
+            mErrors.incrementAndGet();
+        }
+        if (DEBUG) {
+            Log.d(TAG, method + " - " + getStatistics());
+        }
+        return result;
+    }
+
+    /**
+     * Makes the call over the network and caches the response if it succeeded
+     *
+     * @param post The body of the request
+     * @param cacheKey The key to cache the response under
+     * @return the result of the operation
+     */
+    private Result callNetwork(final String post, final String cacheKey) {
+        HttpURLConnection urlConnection = null;
+        boolean keepConnection = false;
+        try {
+            waitForTurn(new URL(apiRootUrl).getHost());
+            mNetworkCalls.incrementAndGet();
+            final long start = SystemClock.elapsedRealtime();
+
+            urlConnection = openPostConnection(post);
+            final InputStream inputStream = getInputStreamFromConnection(urlConnection);
+            if (inputStream == null) {
+                return Result.createHttpErrorResult(urlConnection.getResponseCode(),
+                        urlConnection.getResponseMessage());
+            }
+
+            final byte[] response;
+            try {
+                response = readFully(inputStream);
+            } finally {
+                inputStream.close();
+            }
+            // the whole response was read, so the connection can be reused
+            keepConnection = true;
+            mNetworkTimeMs.addAndGet(SystemClock.elapsedRealtime() - start);
+
+            final Result result = ResponseParser.parseResult(response);
+            if (result.isSuccessful()) {
+                putCachedResponse(cacheKey, response);
+            }
+            return result;
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Result.createHttpErrorResult(HttpURLConnection.HTTP_UNAVAILABLE, e.toString());
+        } catch (final IOException ioEx) {
+            // We will assume that the server is not ready
+            Log.e(TAG, "Failed to download data", ioEx);
+            return Result.createHttpErrorResult(HttpURLConnection.HTTP_UNAVAILABLE,
+                    ioEx.getLocalizedMessage());
+        } catch (final XmlPullParserException parseEx) {
+            Log.e(TAG, "Failed to parse document", parseEx);
+            return new Result(parseEx.getLocalizedMessage());
+        } finally {
+            if (urlConnection != null && !keepConnection) {
+                urlConnection.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Blocks until a call to the host is allowed. The slots are handed out in
+     * order, so waiting callers don't all start at once.
+     *
+     * @param host The host about to be called
+     */
+    private void waitForTurn(final String host) throws InterruptedException {
+        final long wait;
+        synchronized (mNextCallTimes) {
+            final long now = SystemClock.elapsedRealtime();
+            final Long next = mNextCallTimes.get(host);
+            final long start = next != null ? Math.max(now, next) : now;
+            mNextCallTimes.put(host, start + MIN_CALL_INTERVAL_MS);
+            wait = start - now;
+        }
+        if (wait > 0) {
+            mRateLimitWaitMs.addAndGet(wait);
+            Thread.sleep(wait);
+        }
+    }
+
+    /**
+     * @return the response cache, or null if it couldn't be opened
+     */
+    private synchronized DiskLruCache getResponseCache() {
+        if (mResponseCache == null || mResponseCache.isClosed()) {
+            final File directory = ImageCache.getDiskCacheDir(mContext, CACHE_DIR);
+            try {
+                if (!directory.exists()) {
+                    directory.mkdirs();
                 }
-            } catch (final IOException ioEx) {
-                // We will assume that the server is not ready
-                Log.e(TAG, "Failed to download data", ioEx);
-                lastResult = Result.createHttpErrorResult(HttpURLConnection.HTTP_UNAVAILABLE,
-                        ioEx.getLocalizedMessage());
-                return lastResult;
+                mResponseCache = DiskLruCache.open(directory, 1, CACHE_VALUE_COUNT, CACHE_SIZE);
+            } catch (final IOException e) {
+                Log.e(TAG, "getResponseCache - " + e);
+                mResponseCache = null;
             }
         }
+        return mResponseCache;
+    }
 
+    /**
+     * @param cacheKey The key of the call
+     * @return the cached response, or null if there is none or it expired
+     */
+    private byte[] getCachedResponse(final String cacheKey) {
+        final DiskLruCache cache = getResponseCache();
+        if (cache == null) {
+            return null;
+        }
+        DiskLruCache.Snapshot snapshot = null;
         try {
-            lastResult = createResultFromInputStream(inputStream);
-        } catch (final IOException ioEx) {
-            Log.e(TAG, "Failed to read document", ioEx);
-            lastResult = new Result(ioEx.getLocalizedMessage());
-        } catch (final SAXException saxEx) {
-            Log.e(TAG, "Failed to parse document", saxEx);
-            lastResult = new Result(saxEx.getLocalizedMessage());
+            snapshot = cache.get(cacheKey);
+            if (snapshot == null) {
+                return null;
+            }
+            final long expiry = Long.parseLong(snapshot.getString(CACHE_EXPIRY_INDEX));
+            if (System.currentTimeMillis() > expiry) {
+                snapshot.close();
+                snapshot = null;
+                cache.remove(cacheKey);
+                return null;
+            }
+            return readFully(snapshot.getInputStream(CACHE_BODY_INDEX));
+        } catch (final IOException e) {
+            Log.e(TAG, "getCachedResponse - " + e);
+        } catch (final NumberFormatException e) {
+            Log.e(TAG, "getCachedResponse - " + e);
+        } finally {
+            if (snapshot != null) {
+                snapshot.close();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param cacheKey The key of the call
+     * @param response The body of the response
+     */
+    private void putCachedResponse(final String cacheKey, final byte[] response) {
+        final DiskLruCache cache = getResponseCache();
+        if (cache == null) {
+            return;
+        }
+        DiskLruCache.Editor editor = null;
+        try {
+            editor = cache.edit(cacheKey);
+            if (editor == null) {
+                // another thread is caching the same response
+                return;
+            }
+            editor.set(CACHE_EXPIRY_INDEX,
+                    String.valueOf(System.currentTimeMillis() + CACHE_TTL_MS));
+            final OutputStream out = editor.newOutputStream(CACHE_BODY_INDEX);
+            try {
+                out.write(response);
+            } finally {
+                out.close();
+            }
+            editor.commit();
+            editor = null;
+        } catch (final IOException e) {
+            Log.e(TAG, "putCachedResponse - " + e);
+        } finally {
+            if (editor != null) {
+                try {
+                    editor.abort();
+                } catch (final IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * @param cacheKey The key of the call whose response can't be used
+     */
+    private void removeCachedResponse(final String cacheKey) {
+        final DiskLruCache cache = getResponseCache();
+        if (cache != null) {
+            try {
+                cache.remove(cacheKey);
+            } catch (final IOException e) {
+                Log.e(TAG, "removeCachedResponse - " + e);
+            }
         }
-        return lastResult;
     }
 
     /**
@@ -172,27 +534,29 @@ public class Caller {
         HttpURLConnection urlConnection;
         urlConnection = (HttpURLConnection)u.openConnection();
         urlConnection.setRequestProperty("User-Agent", userAgent);
+        urlConnection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        urlConnection.setReadTimeout(READ_TIMEOUT_MS);
         urlConnection.setUseCaches(true);
         return urlConnection;
     }
 
     /**
-     * @param method
-     * @param params
+     * @param post The body of the request
      * @return
      * @throws IOException
      */
-    private HttpURLConnection openPostConnection(final String method,
-            final Map<String, String> params) throws IOException {
+    private HttpURLConnection openPostConnection(final String post) throws IOException {
         final HttpURLConnection urlConnection = openConnection(apiRootUrl);
         urlConnection.setRequestMethod("POST");
         urlConnection.setDoOutput(true);
-        urlConnection.setUseCaches(true);
+        final byte[] body = post.getBytes("UTF-8");
+        urlConnection.setFixedLengthStreamingMode(body.length);
         final OutputStream outputStream = urlConnection.getOutputStream();
-        final BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(outputStream));
-        final String post = buildPostBody(method, params);
-        writer.write(post);
-        writer.close();
+        try {
+            outputStream.write(body);
+        } finally {
+            outputStream.close();
+        }
         return urlConnection;
     }
 
@@ -217,38 +581,17 @@ public class Caller {
 
     /**
      * @param inputStream
-     * @return
-     * @throws SAXException
+     * @return the bytes left in the stream
      * @throws IOException
      */
-    private Result createResultFromInputStream(final InputStream inputStream) throws SAXException,
-            IOException {
-        final Document document = newDocumentBuilder().parse(
-                new InputSource(new InputStreamReader(inputStream, "UTF-8")));
-        final Element root = document.getDocumentElement(); // lfm element
-        final String statusString = root.getAttribute("status");
-        final Status status = "ok".equals(statusString) ? Status.OK : Status.FAILED;
-        if (status == Status.FAILED) {
-            final Element errorElement = (Element)root.getElementsByTagName("error").item(0);
-            final int errorCode = Integer.parseInt(errorElement.getAttribute("code"));
-            final String message = errorElement.getTextContent();
-            return Result.createRestErrorResult(errorCode, message);
-        } else {
-            return Result.createOkResult(document);
-        }
-    }
-
-    /**
-     * @return
-     */
-    private DocumentBuilder newDocumentBuilder() {
-        try {
-            final DocumentBuilderFactory builderFactory = DocumentBuilderFactory.newInstance();
-            return builderFactory.newDocumentBuilder();
-        } catch (final ParserConfigurationException e) {
-            // better never happens
-            throw new RuntimeException(e);
+    private static byte[] readFully(final InputStream inputStream) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(4096);
+        final byte[] buffer = new byte[4096];
+        int count;
+        while ((count = inputStream.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
         }
+        return out.toByteArray();
     }
 
     /**
@@ -21,6 +21,11 @@
 
 package com.cyanogenmod.eleven.lastfm;
 
+import android.util.Log;
+
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -28,12 +33,16 @@ import java.util.Collections;
 /**
  * This utility class can be used to generically generate Result objects
  * (usually Lists or {@link PaginatedResult}s) from an XML response using
- * {@link ItemFactory ItemFactories}.
+ * {@link ItemFactory ItemFactories}. Results that still hold the body of the
+ * response are streamed into the factories by the {@link ResponseParser},
+ * without building a DOM.
  *
  * @author Janni Kovacs
  */
 public final class ResponseBuilder {
 
+    private final static String TAG = "LastFm.ResponseBuilder";
+
     private ResponseBuilder() {
     }
 
@@ -67,6 +76,17 @@ public final class ResponseBuilder {
         if (!result.isSuccessful()) {
             return Collections.emptyList();
         }
+        final byte[] response = result.getResponse();
+        if (response != null) {
+            try {
+                return ResponseParser.parseCollection(response, factory);
+            } catch (final IOException e) {
+                Log.e(TAG, "buildCollection - " + e);
+            } catch (final XmlPullParserException e) {
+                Log.e(TAG, "buildCollection - " + e);
+            }
+            return Collections.emptyList();
+        }
         return buildCollection(result.getContentElement(), factory);
     }
 
@@ -124,6 +144,18 @@ public final class ResponseBuilder {
                 return new PaginatedResult<T>(0, 0, Collections.<T> emptyList());
             }
 
+            final byte[] response = result.getResponse();
+            if (response != null) {
+                try {
+                    return ResponseParser.parsePaginatedResult(response, factory);
+                } catch (final IOException e) {
+                    Log.e(TAG, "buildPaginatedResult - " + e);
+                } catch (final XmlPullParserException e) {
+                    Log.e(TAG, "buildPaginatedResult - " + e);
+                }
+                return new PaginatedResult<T>(0, 0, Collections.<T> emptyList());
+            }
+
             final DomElement contentElement = result.getContentElement();
             return buildPaginatedResult(contentElement, contentElement, factory);
         }
@@ -0,0 +1,257 @@
+/*
+ * Copyright (c) 2012, the Last.fm Java Project and Committers All rights
+ * reserved. Redistribution and use of this software in source and binary forms,
+ * with or without modification, are permitted provided that the following
+ * conditions are met: - Redistributions of source code must retain the above
+ * copyright notice, this list of conditions and the following disclaimer. -
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution. THIS SOFTWARE IS
+ * PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.cyanogenmod.eleven.lastfm;
+
+import android.util.Xml;
+
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+/**
+ * Reads last.fm responses with a pull parser. The items of a collection are
+ * handed to the {@link ItemFactory} one at a time, as soon as their element
+ * has been read, so a large response never sits in memory as a DOM. A DOM is
+ * only built for callers that ask for the {@link Document} itself.
+ */
+final class ResponseParser {
+
+    /**
+     * Pull parsers are reset for each response, so each thread keeps one
+     */
+    private static final ThreadLocal<XmlPullParser> sPullParser =
+            new ThreadLocal<XmlPullParser>() {
+        @Override
+        protected XmlPullParser initialValue() {
+            return Xml.newPullParser();
+        }
+    };
+
+    /**
+     * Parsing a response doesn't need a new {@link DocumentBuilder} each time
+     */
+    private static final ThreadLocal<DocumentBuilder> sDocumentBuilder =
+            new ThreadLocal<DocumentBuilder>() {
+        @Override
+        protected DocumentBuilder initialValue() {
+            try {
+                final DocumentBuilderFactory builderFactory = DocumentBuilderFactory.newInstance();
+                return builderFactory.newDocumentBuilder();
+            } catch (final ParserConfigurationException e) {
+                // better never happens
+                throw new RuntimeException(e);
+            }
+        }
+    };
+
+    private ResponseParser() {
+    }
+
+    /**
+     * Reads the status of a response, and the error if it failed. The parser
+     * stops at the root element of a successful response.
+     *
+     * @param response The body of the response
+     * @return the result of the operation
+     * @throws XmlPullParserException
+     * @throws IOException
+     */
+    static Result parseResult(final byte[] response) throws XmlPullParserException,
+            IOException {
+        final XmlPullParser parser = newParser(response);
+        nextStartTag(parser); // lfm element
+        final String statusString = parser.getAttributeValue(null, "status");
+        if ("ok".equals(statusString)) {
+            return Result.createOkResult(response);
+        }
+        while (nextStartTag(parser)) {
+            if ("error".equals(parser.getName())) {
+                final int errorCode = Integer.parseInt(parser.getAttributeValue(null, "code"));
+                return Result.createRestErrorResult(errorCode, parser.nextText());
+            }
+        }
+        return new Result(statusString);
+    }
+
+    /**
+     * @param response The body of a successful response
+     * @return the first child of the root element, with its whole subtree
+     * @throws XmlPullParserException
+     * @throws IOException
+     */
+    static DomElement parseContentElement(final byte[] response)
+            throws XmlPullParserException, IOException {
+        final XmlPullParser parser = newParser(response);
+        nextStartTag(parser); // lfm element
+        return nextStartTag(parser) ? readElement(parser) : null;
+    }
+
+    /**
+     * Builds an item from each child of the content element
+     *
+     * @param response The body of a successful response
+     * @param factory The factory to build the items with
+     * @return the items
+     * @throws XmlPullParserException
+     * @throws IOException
+     */
+    static <T> Collection<T> parseCollection(final byte[] response, final ItemFactory<T> factory)
+            throws XmlPullParserException, IOException {
+        final XmlPullParser parser = newParser(response);
+        nextStartTag(parser); // lfm element
+        final Collection<T> items = new ArrayList<T>();
+        if (nextStartTag(parser)) {
+            readItems(parser, factory, items);
+        }
+        return items;
+    }
+
+    /**
+     * Builds an item from each child of the content element, along with the
+     * paging attributes of the content element
+     *
+     * @param response The body of a successful response
+     * @param factory The factory to build the items with
+     * @return the page of items
+     * @throws XmlPullParserException
+     * @throws IOException
+     */
+    static <T> PaginatedResult<T> parsePaginatedResult(final byte[] response,
+            final ItemFactory<T> factory) throws XmlPullParserException, IOException {
+        final XmlPullParser parser = newParser(response);
+        nextStartTag(parser); // lfm element
+        if (!nextStartTag(parser)) {
+            throw new XmlPullParserException("No content element");
+        }
+
+        String totalPagesAttribute = parser.getAttributeValue(null, "totalPages");
+        if (totalPagesAttribute == null) {
+            totalPagesAttribute = parser.getAttributeValue(null, "totalpages");
+        }
+        final int page = Integer.parseInt(parser.getAttributeValue(null, "page"));
+        final int totalPages = Integer.parseInt(totalPagesAttribute);
+
+        final Collection<T> items = new ArrayList<T>();
+        readItems(parser, factory, items);
+        return new PaginatedResult<T>(page, totalPages, items);
+    }
+
+    /**
+     * Builds the DOM of a response, for callers that need the document itself
+     *
+     * @param response The body of the response
+     * @return the document
+     * @throws SAXException
+     * @throws IOException
+     */
+    static Document parseDocument(final byte[] response) throws SAXException, IOException {
+        final InputSource source = new InputSource(new ByteArrayInputStream(response));
+        source.setEncoding("UTF-8");
+        final DocumentBuilder builder = sDocumentBuilder.get();
+        try {
+            return builder.parse(source);
+        } finally {
+            builder.reset();
+        }
+    }
+
+    private static XmlPullParser newParser(final byte[] response)
+            throws XmlPullParserException {
+        final XmlPullParser parser = sPullParser.get();
+        parser.setInput(new ByteArrayInputStream(response), "UTF-8");
+        return parser;
+    }
+
+    /**
+     * Moves to the next start tag
+     *
+     * @return false if the document ended first
+     */
+    private static boolean nextStartTag(final XmlPullParser parser)
+            throws XmlPullParserException, IOException {
+        int eventType;
+        do {
+            eventType = parser.next();
+        } while (eventType != XmlPullParser.START_TAG
+                && eventType != XmlPullParser.END_DOCUMENT);
+        return eventType == XmlPullParser.START_TAG;
+    }
+
+    /**
+     * Reads the children of the element the parser is on, building an item
+     * from each of them as soon as it has been read
+     */
+    private static <T> void readItems(final XmlPullParser parser, final ItemFactory<T> factory,
+            final Collection<T> items) throws XmlPullParserException, IOException {
+        final int depth = parser.getDepth();
+        int eventType;
+        while ((eventType = parser.next()) != XmlPullParser.END_DOCUMENT) {
+            if (eventType == XmlPullParser.START_TAG) {
+                items.add(factory.createItemFromElement(readElement(parser)));
+            } else if (eventType == XmlPullParser.END_TAG && parser.getDepth() == depth) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Reads the subtree of the element the parser is on, and leaves the
+     * parser on its end tag
+     */
+    private static StreamedElement readElement(final XmlPullParser parser)
+            throws XmlPullParserException, IOException {
+        final int attributeCount = parser.getAttributeCount();
+        Map<String, String> attributes = null;
+        if (attributeCount > 0) {
+            attributes = new HashMap<String, String>(attributeCount * 2);
+            for (int i = 0; i < attributeCount; i++) {
+                attributes.put(parser.getAttributeName(i), parser.getAttributeValue(i));
+            }
+        }
+        final StreamedElement element = new StreamedElement(parser.getName(), attributes);
+
+        int eventType;
+        while ((eventType = parser.next()) != XmlPullParser.END_TAG) {
+            if (eventType == XmlPullParser.START_TAG) {
+                element.addChild(readElement(parser));
+            } else if (eventType == XmlPullParser.TEXT) {
+                element.appendText(parser.getText());
+            } else if (eventType == XmlPullParser.END_DOCUMENT) {
+                throw new XmlPullParserException("Unexpected end of document");
+            }
+        }
+        return element;
+    }
+}
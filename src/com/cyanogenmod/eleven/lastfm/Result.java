@@ -21,7 +21,13 @@
 
 package com.cyanogenmod.eleven.lastfm;
 
+import android.util.Log;
+
 import org.w3c.dom.Document;
+import org.xml.sax.SAXException;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.IOException;
 
 /**
  * The <code>Result</code> class contains the response sent by the server, i.e.
@@ -32,6 +38,8 @@ import org.w3c.dom.Document;
  */
 public class Result {
 
+    private final static String TAG = "LastFm.Result";
+
     public enum Status {
         OK, FAILED
     }
@@ -46,6 +54,12 @@ public class Result {
 
     protected Document resultDocument;
 
+    /**
+     * The body of a successful response, read again by the pull parser for
+     * each thing built from it
+     */
+    protected byte[] response;
+
     /**
      * @param resultDocument
      */
@@ -54,6 +68,14 @@ public class Result {
         this.resultDocument = resultDocument;
     }
 
+    /**
+     * @param response
+     */
+    protected Result(final byte[] response) {
+        status = Status.OK;
+        this.response = response;
+    }
+
     /**
      * @param errorMessage
      */
@@ -70,6 +92,14 @@ public class Result {
         return new Result(resultDocument);
     }
 
+    /**
+     * @param response
+     * @return
+     */
+    static Result createOkResult(final byte[] response) {
+        return new Result(response);
+    }
+
     /**
      * @param httpErrorCode
      * @param errorMessage
@@ -114,10 +144,30 @@ public class Result {
         return status;
     }
 
-    public Document getResultDocument() {
+    /**
+     * @return the DOM of the response, built the first time it is asked for
+     */
+    public synchronized Document getResultDocument() {
+        if (resultDocument == null && response != null) {
+            try {
+                resultDocument = ResponseParser.parseDocument(response);
+            } catch (final IOException e) {
+                Log.e(TAG, "getResultDocument - " + e);
+            } catch (final SAXException e) {
+                Log.e(TAG, "getResultDocument - " + e);
+            }
+        }
         return resultDocument;
     }
 
+    /**
+     * @return the body of the response, or <code>null</code> if the result
+     *         was created from a document
+     */
+    byte[] getResponse() {
+        return response;
+    }
+
     public String getErrorMessage() {
         return errorMessage;
     }
@@ -126,6 +176,16 @@ public class Result {
         if (!isSuccessful()) {
             return null;
         }
+        if (response != null) {
+            try {
+                return ResponseParser.parseContentElement(response);
+            } catch (final IOException e) {
+                Log.e(TAG, "getContentElement - " + e);
+            } catch (final XmlPullParserException e) {
+                Log.e(TAG, "getContentElement - " + e);
+            }
+            return null;
+        }
         return new DomElement(resultDocument.getDocumentElement()).getChild("*");
     }
 
@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2012, the Last.fm Java Project and Committers All rights
+ * reserved. Redistribution and use of this software in source and binary forms,
+ * with or without modification, are permitted provided that the following
+ * conditions are met: - Redistributions of source code must retain the above
+ * copyright notice, this list of conditions and the following disclaimer. -
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution. THIS SOFTWARE IS
+ * PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.cyanogenmod.eleven.lastfm;
+
+import org.w3c.dom.Element;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A <code>DomElement</code> read with a pull parser instead of taken from a
+ * DOM document. Only the subtree of one element is kept, so the
+ * {@link ItemFactory ItemFactories} can build items from a response one at a
+ * time without the whole document in memory.
+ */
+final class StreamedElement extends DomElement {
+
+    private final String tagName;
+
+    private final Map<String, String> attributes;
+
+    private final List<DomElement> children = new ArrayList<DomElement>();
+
+    private final StringBuilder text = new StringBuilder();
+
+    /**
+     * @param tagName The tag name of the element
+     * @param attributes The attributes of the element
+     */
+    StreamedElement(final String tagName, final Map<String, String> attributes) {
+        super(null);
+        this.tagName = tagName;
+        this.attributes = attributes != null ? attributes
+                : Collections.<String, String> emptyMap();
+    }
+
+    void addChild(final StreamedElement child) {
+        children.add(child);
+    }
+
+    void appendText(final String s) {
+        text.append(s);
+    }
+
+    /**
+     * @return always <code>null</code>, there is no DOM behind this element
+     */
+    @Override
+    public Element getElement() {
+        return null;
+    }
+
+    @Override
+    public boolean hasAttribute(final String name) {
+        return attributes.containsKey(name);
+    }
+
+    @Override
+    public String getAttribute(final String name) {
+        return attributes.get(name);
+    }
+
+    /**
+     * The text of the children follows the text of the element itself, which
+     * matches the DOM for everything last.fm sends, as text only appears in
+     * the leaves.
+     */
+    @Override
+    public String getText() {
+        if (children.isEmpty()) {
+            return text.toString();
+        }
+        final StringBuilder builder = new StringBuilder(text);
+        for (final DomElement child : children) {
+            builder.append(child.getText());
+        }
+        return builder.toString();
+    }
+
+    @Override
+    public boolean hasChild(final String name) {
+        return getChild(name) != null;
+    }
+
+    @Override
+    public DomElement getChild(final String name) {
+        for (final DomElement child : children) {
+            if ("*".equals(name) || name.equals(child.getTagName())) {
+                return child;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public List<DomElement> getChildren(final String name) {
+        if ("*".equals(name)) {
+            return new ArrayList<DomElement>(children);
+        }
+        final List<DomElement> l = new ArrayList<DomElement>();
+        for (final DomElement child : children) {
+            if (name.equals(child.getTagName())) {
+                l.add(child);
+            }
+        }
+        return l;
+    }
+
+    @Override
+    public String getTagName() {
+        return tagName;
+    }
+}
@@ -55,7 +55,7 @@ public final class StringUtilities {
      * @param s the String to hash
      * @return the md5 hash
      */
-    public final static String md5(final String s) {
+    public final static synchronized String md5(final String s) {
         try {
             final byte[] mBytes = mDigest.digest(s.getBytes("UTF-8"));
             final StringBuilder mBuilder = new StringBuilder(32);
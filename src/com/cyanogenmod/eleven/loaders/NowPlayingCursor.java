@@ -7,6 +7,7 @@ import android.annotation.SuppressLint;
 import android.content.Context;
 import android.database.AbstractCursor;
 import android.database.Cursor;
+import android.database.MergeCursor;
 import android.os.RemoteException;
 import android.provider.BaseColumns;
 import android.provider.MediaStore;
@@ -40,6 +41,11 @@ public class NowPlayingCursor extends AbstractCursor {
             AudioColumns.YEAR,
     };
 
+    /**
+     * Number of ids per query, so the selection stays reasonably short
+     */
+    private static final int MAX_IDS_PER_QUERY = 500;
+
     private final Context mContext;
 
     private long[] mNowPlaying;
@@ -223,19 +229,44 @@ public class NowPlayingCursor extends AbstractCursor {
             return;
         }
 
-        final StringBuilder selection = new StringBuilder();
-        selection.append(MediaStore.Audio.Media._ID + " IN (");
-        for (int i = 0; i < mSize; i++) {
-            selection.append(mNowPlaying[i]);
-            if (i < mSize - 1) {
-                selection.append(",");
+        // query the distinct ids in sorted parts, so the parts put one after
+        // the other are still sorted by id
+        final long[] ids = mNowPlaying.clone();
+        Arrays.sort(ids);
+        int distinct = 0;
+        for (int i = 0; i < ids.length; i++) {
+            if (i == 0 || ids[i] != ids[i - 1]) {
+                ids[distinct++] = ids[i];
             }
         }
-        selection.append(")");
 
-        mQueueCursor = mContext.getContentResolver().query(
-                MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, PROJECTION, selection.toString(),
-                null, MediaStore.Audio.Media._ID);
+        final Cursor[] parts = new Cursor[(distinct + MAX_IDS_PER_QUERY - 1) / MAX_IDS_PER_QUERY];
+        for (int part = 0; part < parts.length; part++) {
+            final int from = part * MAX_IDS_PER_QUERY;
+            final int to = Math.min(distinct, from + MAX_IDS_PER_QUERY);
+            final StringBuilder selection = new StringBuilder();
+            selection.append(MediaStore.Audio.Media._ID + " IN (");
+            for (int i = from; i < to; i++) {
+                selection.append(ids[i]);
+                if (i < to - 1) {
+                    selection.append(",");
+                }
+            }
+            selection.append(")");
+
+            parts[part] = mContext.getContentResolver().query(
+                    MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, PROJECTION,
+                    selection.toString(), null, MediaStore.Audio.Media._ID);
+            if (parts[part] == null) {
+                for (int i = 0; i < part; i++) {
+                    parts[i].close();
+                }
+                break;
+            }
+        }
+        if (parts.length > 0 && parts[parts.length - 1] != null) {
+            mQueueCursor = parts.length == 1 ? parts[0] : new MergeCursor(parts);
+        }
 
         if (mQueueCursor == null) {
             mSize = 0;
@@ -0,0 +1,155 @@
+/*
+* Copyright (C) 2015 The CyanogenMod Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.cyanogenmod.eleven.provider;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.cyanogenmod.eleven.utils.BitmapWithColors.BitmapColors;
+
+/**
+ * This db stores the colors extracted from the artwork, keyed by the image cache key of the
+ * artwork, so the palette of an image only has to be computed once
+ */
+public class ArtworkColorStore {
+    private static ArtworkColorStore sInstance = null;
+
+    private final MusicDB mMusicDatabase;
+
+    /**
+     * @param context The {@link android.content.Context} to use
+     * @return A new instance of this class.
+     */
+    public static final synchronized ArtworkColorStore getInstance(final Context context) {
+        if (sInstance == null) {
+            sInstance = new ArtworkColorStore(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Constructor of <code>ArtworkColorStore</code>
+     *
+     * @param context The {@link android.content.Context} to use
+     */
+    private ArtworkColorStore(final Context context) {
+        mMusicDatabase = MusicDB.getInstance(context);
+    }
+
+    public void onCreate(final SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + ArtworkColorColumns.NAME + "(" +
+                ArtworkColorColumns.CACHE_KEY + " TEXT PRIMARY KEY," +
+                ArtworkColorColumns.VIBRANT + " INT NOT NULL," +
+                ArtworkColorColumns.VIBRANT_DARK + " INT NOT NULL," +
+                ArtworkColorColumns.VIBRANT_LIGHT + " INT NOT NULL," +
+                ArtworkColorColumns.DOMINANT + " INT NOT NULL);");
+    }
+
+    public void onUpgrade(final SQLiteDatabase db, final int oldVersion, final int newVersion) {
+        // this table was created in version 5 so call the onCreate method if we hit that scenario
+        if (oldVersion < 5 && newVersion >= 5) {
+            onCreate(db);
+        }
+    }
+
+    public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // If we ever have downgrade, drop the table to be safe
+        db.execSQL("DROP TABLE IF EXISTS " + ArtworkColorColumns.NAME);
+        onCreate(db);
+    }
+
+    /**
+     * @param key the image cache key of the artwork
+     * @return the stored colors, or null if they haven't been computed yet
+     */
+    public BitmapColors getColors(final String key) {
+        Cursor cursor = mMusicDatabase.getReadableDatabase().query(ArtworkColorColumns.NAME,
+                new String[] {
+                        ArtworkColorColumns.VIBRANT,
+                        ArtworkColorColumns.VIBRANT_DARK,
+                        ArtworkColorColumns.VIBRANT_LIGHT,
+                        ArtworkColorColumns.DOMINANT
+                },
+                ArtworkColorColumns.CACHE_KEY + "=?",
+                new String[] { key }, null, null, null);
+        try {
+            if (cursor != null && cursor.moveToFirst()) {
+                return new BitmapColors(cursor.getInt(0), cursor.getInt(1), cursor.getInt(2),
+                        cursor.getInt(3));
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+                cursor = null;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Stores the colors of the artwork, replacing what was stored before
+     * @param key the image cache key of the artwork
+     * @param colors the colors extracted from the artwork
+     */
+    public void saveColors(final String key, final BitmapColors colors) {
+        ContentValues values = new ContentValues(5);
+        values.put(ArtworkColorColumns.CACHE_KEY, key);
+        values.put(ArtworkColorColumns.VIBRANT, colors.mVibrantColor);
+        values.put(ArtworkColorColumns.VIBRANT_DARK, colors.mVibrantDarkColor);
+        values.put(ArtworkColorColumns.VIBRANT_LIGHT, colors.mVibrantLightColor);
+        values.put(ArtworkColorColumns.DOMINANT, colors.mDominantColor);
+        mMusicDatabase.getWritableDatabase().replace(ArtworkColorColumns.NAME, null, values);
+    }
+
+    /**
+     * Removes the colors of the artwork, called when the artwork changes
+     * @param key the image cache key of the artwork
+     */
+    public void removeColors(final String key) {
+        mMusicDatabase.getWritableDatabase().delete(ArtworkColorColumns.NAME,
+                ArtworkColorColumns.CACHE_KEY + "=?", new String[] { key });
+    }
+
+    /**
+     * Removes the colors of every artwork, called when the image caches are cleared
+     */
+    public void deleteAll() {
+        mMusicDatabase.getWritableDatabase().delete(ArtworkColorColumns.NAME, null, null);
+    }
+
+    public interface ArtworkColorColumns {
+        /* Table name */
+        public static final String NAME = "artwork_colors";
+
+        /* Image cache key column */
+        public static final String CACHE_KEY = "cache_key";
+
+        /* The vibrant color, or transparent if there is none */
+        public static final String VIBRANT = "vibrant";
+
+        /* The dark vibrant color, or transparent if there is none */
+        public static final String VIBRANT_DARK = "vibrant_dark";
+
+        /* The light vibrant color, or transparent if there is none */
+        public static final String VIBRANT_LIGHT = "vibrant_light";
+
+        /* The most common color */
+        public static final String DOMINANT = "dominant";
+    }
+}
@@ -0,0 +1,270 @@
+/*
+* Copyright (C) 2015 The CyanogenMod Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.cyanogenmod.eleven.provider;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.LruCache;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This db remembers the artwork lookups that came up empty, so the image loaders can skip the
+ * MediaStore and the network for those items. The entries are mirrored in memory so a lookup
+ * never touches the disk, and they expire after a while in case the artwork shows up later.
+ */
+public class MissingArtworkStore {
+    /* The album has no artwork in the MediaStore, keyed by album id */
+    public static final int TYPE_LOCAL = 0;
+
+    /* No artwork could be downloaded, keyed by image cache key */
+    public static final int TYPE_REMOTE = 1;
+
+    private static final long ONE_DAY_IN_MS = 1000 * 60 * 60 * 24;
+
+    /* MediaStore changes clear the local entries, this is only a safety net */
+    private static final long LOCAL_TTL_MS = 7 * ONE_DAY_IN_MS;
+
+    private static final long REMOTE_TTL_MS = 3 * ONE_DAY_IN_MS;
+
+    /* Number of entries kept in memory and in the db */
+    private static final int MAX_ENTRIES = 1000;
+
+    private static MissingArtworkStore sInstance = null;
+
+    private final MusicDB mMusicDatabase;
+
+    /* When each entry was recorded, keyed by type and key */
+    private final LruCache<String, Long> mEntries = new LruCache<String, Long>(MAX_ENTRIES);
+
+    private volatile boolean mLoaded = false;
+
+    /* The db is written one change at a time, in the background */
+    private final ThreadPoolExecutor mWriteExecutor = new ThreadPoolExecutor(0, 1,
+            60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+
+    /**
+     * @param context The {@link android.content.Context} to use
+     * @return A new instance of this class.
+     */
+    public static final synchronized MissingArtworkStore getInstance(final Context context) {
+        if (sInstance == null) {
+            sInstance = new MissingArtworkStore(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Constructor of <code>MissingArtworkStore</code>
+     *
+     * @param context The {@link android.content.Context} to use
+     */
+    private MissingArtworkStore(final Context context) {
+        mMusicDatabase = MusicDB.getInstance(context);
+    }
+
+    public void onCreate(final SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + MissingArtworkColumns.NAME + "(" +
+                MissingArtworkColumns.TYPE + " INT NOT NULL," +
+                MissingArtworkColumns.KEY + " TEXT NOT NULL," +
+                MissingArtworkColumns.TIME + " LONG NOT NULL," +
+                "PRIMARY KEY (" + MissingArtworkColumns.TYPE + "," +
+                MissingArtworkColumns.KEY + "));");
+    }
+
+    public void onUpgrade(final SQLiteDatabase db, final int oldVersion, final int newVersion) {
+        // this table was created in version 7 so call the onCreate method if we hit that scenario
+        if (oldVersion < 7 && newVersion >= 7) {
+            onCreate(db);
+        }
+    }
+
+    public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // If we ever have downgrade, drop the table to be safe
+        db.execSQL("DROP TABLE IF EXISTS " + MissingArtworkColumns.NAME);
+        onCreate(db);
+    }
+
+    /**
+     * Reads the entries that haven't expired into memory and drops the rest from the db.
+     * This hits the db, so call it on a background thread. Until it has run nothing is
+     * considered missing.
+     */
+    public void load() {
+        if (mLoaded) {
+            return;
+        }
+
+        final long now = System.currentTimeMillis();
+        final SQLiteDatabase database = mMusicDatabase.getWritableDatabase();
+        database.delete(MissingArtworkColumns.NAME, "(" + MissingArtworkColumns.TYPE + "="
+                + TYPE_LOCAL + " AND " + MissingArtworkColumns.TIME + "<" + (now - LOCAL_TTL_MS)
+                + ") OR (" + MissingArtworkColumns.TYPE + "=" + TYPE_REMOTE + " AND "
+                + MissingArtworkColumns.TIME + "<" + (now - REMOTE_TTL_MS) + ")", null);
+
+        // oldest first so the newest entries end up the most recently used
+        Cursor cursor = database.query(MissingArtworkColumns.NAME,
+                new String[] {
+                        MissingArtworkColumns.TYPE,
+                        MissingArtworkColumns.KEY,
+                        MissingArtworkColumns.TIME
+                }, null, null, null, null, MissingArtworkColumns.TIME + " ASC");
+        try {
+            if (cursor != null && cursor.moveToFirst()) {
+                do {
+                    mEntries.put(getEntryKey(cursor.getInt(0), cursor.getString(1)),
+                            cursor.getLong(2));
+                } while (cursor.moveToNext());
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+                cursor = null;
+            }
+        }
+        mLoaded = true;
+    }
+
+    /**
+     * @param type {@link #TYPE_LOCAL} or {@link #TYPE_REMOTE}
+     * @param key the album id for local lookups, the image cache key for remote ones
+     * @return true if the lookup came up empty recently. This never touches the disk.
+     */
+    public boolean isMissing(final int type, final String key) {
+        if (!mLoaded || key == null) {
+            return false;
+        }
+        final Long time = mEntries.get(getEntryKey(type, key));
+        if (time == null) {
+            return false;
+        }
+        if (System.currentTimeMillis() - time > (type == TYPE_LOCAL ? LOCAL_TTL_MS
+                : REMOTE_TTL_MS)) {
+            clear(type, key);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Records that a lookup came up empty
+     * @param type {@link #TYPE_LOCAL} or {@link #TYPE_REMOTE}
+     * @param key the album id for local lookups, the image cache key for remote ones
+     */
+    public void markMissing(final int type, final String key) {
+        if (key == null) {
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        mEntries.put(getEntryKey(type, key), now);
+        mWriteExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                ContentValues values = new ContentValues(3);
+                values.put(MissingArtworkColumns.TYPE, type);
+                values.put(MissingArtworkColumns.KEY, key);
+                values.put(MissingArtworkColumns.TIME, now);
+                final SQLiteDatabase database = mMusicDatabase.getWritableDatabase();
+                database.replace(MissingArtworkColumns.NAME, null, values);
+                trimToSize(database);
+            }
+        });
+    }
+
+    /**
+     * Forgets a lookup that came up empty, called when artwork is added for the item
+     * @param type {@link #TYPE_LOCAL} or {@link #TYPE_REMOTE}
+     * @param key the album id for local lookups, the image cache key for remote ones
+     */
+    public void clear(final int type, final String key) {
+        if (key == null || mEntries.remove(getEntryKey(type, key)) == null) {
+            return;
+        }
+        mWriteExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mMusicDatabase.getWritableDatabase().delete(MissingArtworkColumns.NAME,
+                        MissingArtworkColumns.TYPE + "=" + type + " AND "
+                                + MissingArtworkColumns.KEY + "=?", new String[] { key });
+            }
+        });
+    }
+
+    /**
+     * Forgets every lookup of a type that came up empty, called when the MediaStore changes
+     * @param type {@link #TYPE_LOCAL} or {@link #TYPE_REMOTE}
+     */
+    public void clearAll(final int type) {
+        final String prefix = type + ":";
+        for (final String entryKey : mEntries.snapshot().keySet()) {
+            if (entryKey.startsWith(prefix)) {
+                mEntries.remove(entryKey);
+            }
+        }
+        mWriteExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mMusicDatabase.getWritableDatabase().delete(MissingArtworkColumns.NAME,
+                        MissingArtworkColumns.TYPE + "=" + type, null);
+            }
+        });
+    }
+
+    /**
+     * Forgets every lookup that came up empty, called when the image caches are cleared
+     */
+    public void deleteAll() {
+        mEntries.evictAll();
+        mWriteExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mMusicDatabase.getWritableDatabase().delete(MissingArtworkColumns.NAME, null,
+                        null);
+            }
+        });
+    }
+
+    /**
+     * Keeps the db as bounded as the memory mirror
+     */
+    private void trimToSize(final SQLiteDatabase database) {
+        database.delete(MissingArtworkColumns.NAME, "rowid NOT IN (SELECT rowid FROM "
+                + MissingArtworkColumns.NAME + " ORDER BY " + MissingArtworkColumns.TIME
+                + " DESC LIMIT " + MAX_ENTRIES + ")", null);
+    }
+
+    private static String getEntryKey(final int type, final String key) {
+        return type + ":" + key;
+    }
+
+    public interface MissingArtworkColumns {
+        /* Table name */
+        public static final String NAME = "missing_artwork";
+
+        /* TYPE_LOCAL or TYPE_REMOTE */
+        public static final String TYPE = "type";
+
+        /* Album id or image cache key, depending on the type */
+        public static final String KEY = "key";
+
+        /* When the lookup came up empty */
+        public static final String TIME = "time";
+    }
+}
@@ -31,11 +31,14 @@ public class MusicDB extends SQLiteOpenHelper {
      * v3 Dec 4 2014    Add Sorting tables similar to Contacts to enable other languages like
      *                  Chinese to properly sort as they would expect
      * v4 Jan 6 2015    Missed Collate keyword on the LocalizedSongSortTable
+     * v5 Jun 8 2015    Added ArtworkColorStore so the artwork palettes survive a restart
+     * v6 Jun 9 2015    Added the cover album ids to PlaylistArtworkStore
+     * v7 Jun 10 2015   Added MissingArtworkStore to remember artwork lookups that came up empty
      */
 
 
     /* Version constant to increment when the database should be rebuilt */
-    private static final int VERSION = 4;
+    private static final int VERSION = 7;
 
     /* Name of database file */
     public static final String DATABASENAME = "musicdb.db";
@@ -70,6 +73,8 @@ public class MusicDB extends SQLiteOpenHelper {
         SearchHistory.getInstance(mContext).onCreate(db);
         MusicPlaybackState.getInstance(mContext).onCreate(db);
         LocalizedStore.getInstance(mContext).onCreate(db);
+        ArtworkColorStore.getInstance(mContext).onCreate(db);
+        MissingArtworkStore.getInstance(mContext).onCreate(db);
     }
 
     @Override
@@ -81,6 +86,8 @@ public class MusicDB extends SQLiteOpenHelper {
         SearchHistory.getInstance(mContext).onUpgrade(db, oldVersion, newVersion);
         MusicPlaybackState.getInstance(mContext).onUpgrade(db, oldVersion, newVersion);
         LocalizedStore.getInstance(mContext).onUpgrade(db, oldVersion, newVersion);
+        ArtworkColorStore.getInstance(mContext).onUpgrade(db, oldVersion, newVersion);
+        MissingArtworkStore.getInstance(mContext).onUpgrade(db, oldVersion, newVersion);
     }
 
     @Override
@@ -94,5 +101,7 @@ public class MusicDB extends SQLiteOpenHelper {
         SearchHistory.getInstance(mContext).onDowngrade(db, oldVersion, newVersion);
         MusicPlaybackState.getInstance(mContext).onDowngrade(db, oldVersion, newVersion);
         LocalizedStore.getInstance(mContext).onDowngrade(db, oldVersion, newVersion);
+        ArtworkColorStore.getInstance(mContext).onDowngrade(db, oldVersion, newVersion);
+        MissingArtworkStore.getInstance(mContext).onDowngrade(db, oldVersion, newVersion);
     }
 }
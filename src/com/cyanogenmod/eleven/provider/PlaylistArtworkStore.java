@@ -87,13 +87,19 @@ public class PlaylistArtworkStore {
                 PlaylistArtworkStoreColumns.LAST_UPDATE_COVER +
                 " LONG DEFAULT 0," +
                 PlaylistArtworkStoreColumns.NUM_SONGS_LAST_UPDATE_COVER +
-                " INT DEFAULT 0);";
+                " INT DEFAULT 0," +
+                PlaylistArtworkStoreColumns.COVER_ALBUM_IDS +
+                " TEXT DEFAULT '');";
 
         db.execSQL(builder);
     }
 
     public void onUpgrade(final SQLiteDatabase db, final int oldVersion, final int newVersion) {
-        // No upgrade path needed yet
+        // the cover album ids were added in version 6
+        if (oldVersion < 6 && newVersion >= 6) {
+            db.execSQL("ALTER TABLE " + PlaylistArtworkStoreColumns.NAME + " ADD COLUMN " +
+                    PlaylistArtworkStoreColumns.COVER_ALBUM_IDS + " TEXT DEFAULT ''");
+        }
     }
 
     public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
@@ -128,7 +134,7 @@ public class PlaylistArtworkStore {
      */
     public void updateArtistArt(final long playlistId) {
         updateOrInsertTime(playlistId, PlaylistArtworkStoreColumns.LAST_UPDATE_ARTIST,
-                PlaylistArtworkStoreColumns.NUM_SONGS_LAST_UPDATE_ARTIST);
+                PlaylistArtworkStoreColumns.NUM_SONGS_LAST_UPDATE_ARTIST, null);
     }
 
     /**
@@ -136,8 +142,42 @@ public class PlaylistArtworkStore {
      * @param playlistId playlist identifier
      */
     public void updateCoverArt(final long playlistId) {
+        updateCoverArt(playlistId, "");
+    }
+
+    /**
+     * Updates the time, the # of songs and the albums the cover art was composed of
+     * @param playlistId playlist identifier
+     * @param albumIds the album ids of the tiles of the cover, see {@link #getCoverAlbumIds}
+     */
+    public void updateCoverArt(final long playlistId, final String albumIds) {
+        final ContentValues values = new ContentValues(1);
+        values.put(PlaylistArtworkStoreColumns.COVER_ALBUM_IDS, albumIds);
         updateOrInsertTime(playlistId, PlaylistArtworkStoreColumns.LAST_UPDATE_COVER,
-                PlaylistArtworkStoreColumns.NUM_SONGS_LAST_UPDATE_COVER);
+                PlaylistArtworkStoreColumns.NUM_SONGS_LAST_UPDATE_COVER, values);
+    }
+
+    /**
+     * @param playlistId playlist identifier
+     * @return the comma separated album ids the current cover art was composed of, or an empty
+     * string if there is no cover art
+     */
+    public String getCoverAlbumIds(final long playlistId) {
+        Cursor c = getEntry(playlistId);
+        try {
+            if (c != null && c.moveToFirst()) {
+                final String albumIds = c.getString(
+                        c.getColumnIndex(PlaylistArtworkStoreColumns.COVER_ALBUM_IDS));
+                return albumIds != null ? albumIds : "";
+            }
+        } finally {
+            if (c != null) {
+                c.close();
+                c = null;
+            }
+        }
+
+        return "";
     }
 
     /**
@@ -145,8 +185,10 @@ public class PlaylistArtworkStore {
      * @param playlistId playlist identifier
      * @param columnName the column to update to the current time
      * @param countColumnName the column to set the # of songs to based on the playlist
+     * @param extraValues other columns to update, or null
      */
-    private void updateOrInsertTime(final long playlistId, final String columnName, final String countColumnName) {
+    private void updateOrInsertTime(final long playlistId, final String columnName,
+            final String countColumnName, final ContentValues extraValues) {
         SQLiteDatabase database = mMusicDatabase.getWritableDatabase();
 
         database.beginTransaction();
@@ -158,6 +200,9 @@ public class PlaylistArtworkStore {
         values.put(PlaylistArtworkStoreColumns.ID, playlistId);
         values.put(columnName, System.currentTimeMillis());
         values.put(countColumnName, MusicUtils.getSongCountForPlaylist(mContext, playlistId));
+        if (extraValues != null) {
+            values.putAll(extraValues);
+        }
 
         // if it is an existing entry, update, otherwise insert
         if (existingEntry) {
@@ -177,7 +222,7 @@ public class PlaylistArtworkStore {
      * @return the content values
      */
     private ContentValues getExistingContentValues(final long playlistId) {
-        ContentValues values = new ContentValues(4);
+        ContentValues values = new ContentValues(6);
         Cursor c = getEntry(playlistId);
         if (c != null && c.moveToFirst()) {
             values.put(PlaylistArtworkStoreColumns.ID, c.getLong(0));
@@ -185,6 +230,7 @@ public class PlaylistArtworkStore {
             values.put(PlaylistArtworkStoreColumns.NUM_SONGS_LAST_UPDATE_ARTIST, c.getInt(2));
             values.put(PlaylistArtworkStoreColumns.LAST_UPDATE_COVER, c.getLong(3));
             values.put(PlaylistArtworkStoreColumns.NUM_SONGS_LAST_UPDATE_COVER, c.getInt(4));
+            values.put(PlaylistArtworkStoreColumns.COVER_ALBUM_IDS, c.getString(5));
             c.close();
             c = null;
         }
@@ -252,5 +298,8 @@ public class PlaylistArtworkStore {
 
         /* The number of songs when we last updated the cover */
         public static final String NUM_SONGS_LAST_UPDATE_COVER = "num_songs_last_updated_cover";
+
+        /* The comma separated album ids the cover was composed of */
+        public static final String COVER_ALBUM_IDS = "cover_album_ids";
     }
 }
@@ -0,0 +1,273 @@
+/*
+* Copyright (C) 2015 The CyanogenMod Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.cyanogenmod.eleven.service;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.media.MediaDescription;
+import android.media.session.MediaSession;
+import android.os.AsyncTask;
+import android.provider.MediaStore;
+import android.provider.MediaStore.Audio.AudioColumns;
+import android.util.LongSparseArray;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Publishes the play queue to a {@link MediaSession}. Only a window of the
+ * queue around the current position is published, and the descriptions and
+ * queue items of the last publish are kept, so a change to the queue only
+ * queries the tracks that weren't in the window before and only creates items
+ * for the positions whose track changed.
+ */
+public class MediaSessionQueuePublisher {
+
+    /**
+     * Default number of tracks published on each side of the current position
+     */
+    public static final int DEFAULT_WINDOW_SIZE = 500;
+
+    /**
+     * Number of ids per query, so the selection stays reasonably short
+     */
+    private static final int MAX_IDS_PER_QUERY = 250;
+
+    private final Context mContext;
+
+    private final MediaSession mSession;
+
+    private final int mWindowSize;
+
+    /**
+     * The descriptions of the tracks in the last published window, by track
+     * id. Only touched by the publish tasks, which run one after the other.
+     */
+    private LongSparseArray<MediaDescription> mDescriptions =
+            new LongSparseArray<MediaDescription>();
+
+    /**
+     * What was last handed to the session. The item ids are queue positions.
+     */
+    private long[] mPublishedIds = new long[0];
+    private int mPublishedStart;
+    private List<MediaSession.QueueItem> mPublishedItems;
+
+    /**
+     * What was last asked for, it may not have been published yet
+     */
+    private long[] mRequestedIds;
+    private int mRequestedStart = -1;
+    private int mRequestedQueueLength;
+
+    private PublishTask mPublishTask;
+
+    /**
+     * Constructor of <code>MediaSessionQueuePublisher</code>
+     *
+     * @param context The {@link Context} to use
+     * @param session The session to publish the queue to
+     * @param windowSize The number of tracks published on each side of the
+     *            current position
+     */
+    public MediaSessionQueuePublisher(final Context context, final MediaSession session,
+            final int windowSize) {
+        mContext = context;
+        mSession = session;
+        mWindowSize = windowSize;
+    }
+
+    /**
+     * Publishes the window of the queue around the current position, unless
+     * it is the same as what was last published
+     *
+     * @param queue The track ids of the whole queue
+     * @param position The current position in the queue
+     */
+    public synchronized void publish(final long[] queue, final int position) {
+        final int length = queue != null ? queue.length : 0;
+        final int start = Math.max(0, Math.min(position - mWindowSize, length - 1));
+        final int end = Math.min(length, Math.max(position, 0) + mWindowSize + 1);
+        final long[] ids = length > 0 ? Arrays.copyOfRange(queue, start, end) : new long[0];
+
+        if (start == mRequestedStart && Arrays.equals(ids, mRequestedIds)) {
+            mRequestedQueueLength = length;
+            return;
+        }
+        mRequestedIds = ids;
+        mRequestedStart = start;
+        mRequestedQueueLength = length;
+
+        if (mPublishTask != null) {
+            mPublishTask.cancel(false);
+        }
+        mPublishTask = new PublishTask(ids, start);
+        mPublishTask.execute();
+    }
+
+    /**
+     * Whether the current position got close enough to an edge of the
+     * published window that the window should follow it. Cheap enough to call
+     * on every track change.
+     *
+     * @param position The current position in the queue
+     * @return true if {@link #publish} should be called
+     */
+    public synchronized boolean needsRepublish(final int position) {
+        if (mRequestedIds == null) {
+            return true;
+        }
+        final int margin = mWindowSize / 2;
+        final int requestedEnd = mRequestedStart + mRequestedIds.length;
+        final boolean startCovered = mRequestedStart == 0
+                || position - margin >= mRequestedStart;
+        final boolean endCovered = requestedEnd >= mRequestedQueueLength
+                || position + margin < requestedEnd;
+        return !startCovered || !endCovered;
+    }
+
+    /**
+     * Loads the descriptions of the tracks that aren't known yet and builds
+     * the queue items, reusing the items whose position and track didn't change
+     */
+    private class PublishTask extends AsyncTask<Void, Void, List<MediaSession.QueueItem>> {
+        private final long[] mIds;
+        private final int mStart;
+
+        public PublishTask(final long[] ids, final int start) {
+            mIds = ids;
+            mStart = start;
+        }
+
+        @Override
+        protected List<MediaSession.QueueItem> doInBackground(final Void... params) {
+            if (mIds.length == 0) {
+                return null;
+            }
+
+            final LongSparseArray<MediaDescription> descriptions =
+                    new LongSparseArray<MediaDescription>(mIds.length);
+            final long[] missing = new long[mIds.length];
+            int missingCount = 0;
+            for (final long id : mIds) {
+                if (descriptions.indexOfKey(id) >= 0) {
+                    continue;
+                }
+                final MediaDescription desc = mDescriptions.get(id);
+                if (desc != null) {
+                    descriptions.put(id, desc);
+                } else {
+                    // marks the id as queued so duplicates aren't queried twice
+                    descriptions.put(id, null);
+                    missing[missingCount++] = id;
+                }
+            }
+
+            for (int i = 0; i < missingCount && !isCancelled(); i += MAX_IDS_PER_QUERY) {
+                queryDescriptions(missing, i, Math.min(missingCount, i + MAX_IDS_PER_QUERY),
+                        descriptions);
+            }
+            if (isCancelled()) {
+                return null;
+            }
+
+            final long[] publishedIds;
+            final int publishedStart;
+            final List<MediaSession.QueueItem> publishedItems;
+            synchronized (MediaSessionQueuePublisher.this) {
+                publishedIds = mPublishedIds;
+                publishedStart = mPublishedStart;
+                publishedItems = mPublishedItems;
+            }
+
+            final List<MediaSession.QueueItem> items =
+                    new ArrayList<MediaSession.QueueItem>(mIds.length);
+            for (int i = 0; i < mIds.length; i++) {
+                final int position = mStart + i;
+                final int publishedIndex = position - publishedStart;
+                if (publishedItems != null && publishedIndex >= 0
+                        && publishedIndex < publishedIds.length
+                        && publishedIds[publishedIndex] == mIds[i]) {
+                    // same track at the same position, the item didn't change
+                    items.add(publishedItems.get(publishedIndex));
+                    continue;
+                }
+                MediaDescription desc = descriptions.get(mIds[i]);
+                if (desc == null) {
+                    // shouldn't happen except in corner cases like
+                    // music being deleted while we were processing
+                    desc = new MediaDescription.Builder().build();
+                }
+                items.add(new MediaSession.QueueItem(desc, position));
+            }
+
+            // only the descriptions of the window are worth keeping
+            mDescriptions = descriptions;
+            return items;
+        }
+
+        @Override
+        protected void onPostExecute(final List<MediaSession.QueueItem> items) {
+            if (isCancelled()) {
+                return;
+            }
+            synchronized (MediaSessionQueuePublisher.this) {
+                mPublishedIds = mIds;
+                mPublishedStart = mStart;
+                mPublishedItems = items;
+            }
+            mSession.setQueue(items);
+        }
+
+        private void queryDescriptions(final long[] ids, final int from, final int to,
+                final LongSparseArray<MediaDescription> descriptions) {
+            final StringBuilder selection = new StringBuilder();
+            selection.append(MediaStore.Audio.Media._ID).append(" IN (");
+            for (int i = from; i < to; i++) {
+                if (i != from) {
+                    selection.append(",");
+                }
+                selection.append(ids[i]);
+            }
+            selection.append(")");
+
+            final Cursor c = mContext.getContentResolver().query(
+                    MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
+                    new String[] { AudioColumns._ID, AudioColumns.TITLE, AudioColumns.ARTIST },
+                    selection.toString(), null, null);
+            if (c == null) {
+                return;
+            }
+
+            try {
+                final int idColumnIndex = c.getColumnIndexOrThrow(AudioColumns._ID);
+                final int titleColumnIndex = c.getColumnIndexOrThrow(AudioColumns.TITLE);
+                final int artistColumnIndex = c.getColumnIndexOrThrow(AudioColumns.ARTIST);
+
+                while (c.moveToNext() && !isCancelled()) {
+                    final MediaDescription desc = new MediaDescription.Builder()
+                            .setTitle(c.getString(titleColumnIndex))
+                            .setSubtitle(c.getString(artistColumnIndex))
+                            .build();
+                    descriptions.put(c.getLong(idColumnIndex), desc);
+                }
+            } finally {
+                c.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,440 @@
+/*
+* Copyright (C) 2015 The CyanogenMod Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.cyanogenmod.eleven.service;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.os.SystemClock;
+
+import java.util.List;
+
+/**
+ * The state of the playback service at one point in time. The service builds
+ * a new one whenever its state changes and swaps it in, so the getters called
+ * over binder can read it without taking the service lock. Nothing in here
+ * changes once it is built.
+ *
+ * The UI gets the whole snapshot in one binder call. The queue itself isn't
+ * parcelled, so {@link #mQueue} and {@link #mQueueIds} are null on that side.
+ */
+public final class PlaybackSnapshot implements Parcelable {
+
+    /**
+     * Snapshot of a service that hasn't published its state yet
+     */
+    public static final PlaybackSnapshot EMPTY = new Builder().build();
+
+    /**
+     * Bumped each time the service publishes its state
+     */
+    public final long mVersion;
+
+    /**
+     * Bumped each time the queue changes
+     */
+    public final long mQueueVersion;
+
+    /**
+     * The queue, don't modify it. Only set in the service process.
+     */
+    public final MusicPlaybackTrack[] mQueue;
+
+    /**
+     * The track ids of the queue, don't modify it. Only set in the service process.
+     */
+    public final long[] mQueueIds;
+
+    public final int mQueueSize;
+    public final int mQueuePosition;
+
+    /**
+     * The queue positions that were played, oldest first, don't modify it
+     */
+    public final int[] mHistory;
+
+    /**
+     * The current track, or null if no track is loaded
+     */
+    public final MusicPlaybackTrack mCurrentTrack;
+
+    public final long mAudioId;
+    public final long mNextAudioId;
+    public final long mPreviousAudioId;
+    public final long mAlbumId;
+    public final long mArtistId;
+
+    public final String mTrackName;
+    public final String mArtistName;
+    public final String mAlbumName;
+    public final String mPath;
+
+    public final int mShuffleMode;
+    public final int mRepeatMode;
+    public final boolean mIsPlaying;
+
+    /**
+     * The playback position, as of {@link #mPositionTime}
+     */
+    public final long mPosition;
+
+    /**
+     * When the position was read, in {@link android.os.SystemClock#elapsedRealtime()} time
+     */
+    public final long mPositionTime;
+
+    public final long mDuration;
+
+    /**
+     * How fast the position moves on from {@link #mPosition}, 0 when it doesn't
+     */
+    public final float mPlaybackRate;
+
+    private PlaybackSnapshot(final Builder builder) {
+        mVersion = builder.mVersion;
+        mQueueVersion = builder.mQueueVersion;
+        mQueue = builder.mQueue;
+        mQueueIds = builder.mQueueIds;
+        mQueueSize = mQueue.length;
+        mHistory = builder.mHistory;
+        mQueuePosition = builder.mQueuePosition;
+        mCurrentTrack = builder.mCurrentTrack;
+        mAudioId = mCurrentTrack != null ? mCurrentTrack.mId : -1;
+        mNextAudioId = builder.mNextAudioId;
+        mPreviousAudioId = builder.mPreviousAudioId;
+        mAlbumId = builder.mAlbumId;
+        mArtistId = builder.mArtistId;
+        mTrackName = builder.mTrackName;
+        mArtistName = builder.mArtistName;
+        mAlbumName = builder.mAlbumName;
+        mPath = builder.mPath;
+        mShuffleMode = builder.mShuffleMode;
+        mRepeatMode = builder.mRepeatMode;
+        mIsPlaying = builder.mIsPlaying;
+        mPosition = builder.mPosition;
+        mPositionTime = builder.mPositionTime;
+        mDuration = builder.mDuration;
+        mPlaybackRate = builder.mPlaybackRate;
+    }
+
+    private PlaybackSnapshot(final Parcel in) {
+        mVersion = in.readLong();
+        mQueueVersion = in.readLong();
+        mQueue = null;
+        mQueueIds = null;
+        mQueueSize = in.readInt();
+        mQueuePosition = in.readInt();
+        mHistory = in.createIntArray();
+        mCurrentTrack = in.readInt() != 0 ? new MusicPlaybackTrack(in) : null;
+        mAudioId = in.readLong();
+        mNextAudioId = in.readLong();
+        mPreviousAudioId = in.readLong();
+        mAlbumId = in.readLong();
+        mArtistId = in.readLong();
+        mTrackName = in.readString();
+        mArtistName = in.readString();
+        mAlbumName = in.readString();
+        mPath = in.readString();
+        mShuffleMode = in.readInt();
+        mRepeatMode = in.readInt();
+        mIsPlaying = in.readInt() != 0;
+        mPosition = in.readLong();
+        mPositionTime = in.readLong();
+        mDuration = in.readLong();
+        mPlaybackRate = in.readFloat();
+    }
+
+    /**
+     * Parcelable creator
+     */
+    public static final Creator<PlaybackSnapshot> CREATOR = new Creator<PlaybackSnapshot>() {
+        @Override
+        public PlaybackSnapshot createFromParcel(Parcel source) {
+            return new PlaybackSnapshot(source);
+        }
+
+        @Override
+        public PlaybackSnapshot[] newArray(int size) {
+            return new PlaybackSnapshot[size];
+        }
+    };
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeLong(mVersion);
+        dest.writeLong(mQueueVersion);
+        dest.writeInt(mQueueSize);
+        dest.writeInt(mQueuePosition);
+        dest.writeIntArray(mHistory);
+        if (mCurrentTrack != null) {
+            dest.writeInt(1);
+            mCurrentTrack.writeToParcel(dest, flags);
+        } else {
+            dest.writeInt(0);
+        }
+        dest.writeLong(mAudioId);
+        dest.writeLong(mNextAudioId);
+        dest.writeLong(mPreviousAudioId);
+        dest.writeLong(mAlbumId);
+        dest.writeLong(mArtistId);
+        dest.writeString(mTrackName);
+        dest.writeString(mArtistName);
+        dest.writeString(mAlbumName);
+        dest.writeString(mPath);
+        dest.writeInt(mShuffleMode);
+        dest.writeInt(mRepeatMode);
+        dest.writeInt(mIsPlaying ? 1 : 0);
+        dest.writeLong(mPosition);
+        dest.writeLong(mPositionTime);
+        dest.writeLong(mDuration);
+        dest.writeFloat(mPlaybackRate);
+    }
+
+    /**
+     * Works out the playback position from the position anchor, so the UI
+     * doesn't need to ask the service for it
+     *
+     * @return the current playback position, or -1 if no track is loaded
+     */
+    public long getPosition() {
+        if (mPosition < 0 || mPlaybackRate == 0) {
+            return mPosition;
+        }
+        final long position = mPosition
+                + (long)((SystemClock.elapsedRealtime() - mPositionTime) * mPlaybackRate);
+        return mDuration > 0 ? Math.min(position, mDuration) : position;
+    }
+
+    /**
+     * @param index position in the queue
+     * @return the track at that position, or null if there is none or no track is loaded.
+     *         Only works in the service process.
+     */
+    public MusicPlaybackTrack getTrack(final int index) {
+        if (mCurrentTrack != null && index >= 0 && index < mQueue.length) {
+            return mQueue[index];
+        }
+        return null;
+    }
+
+    /**
+     * @param position position in the queue
+     * @return the track id at that position, or -1 if there is none. Only works in the
+     *         service process.
+     */
+    public long getQueueItemAtPosition(final int position) {
+        if (position >= 0 && position < mQueueIds.length) {
+            return mQueueIds[position];
+        }
+        return -1;
+    }
+
+    /**
+     * @return the size of the queue
+     */
+    public int getQueueSize() {
+        return mQueueSize;
+    }
+
+    /**
+     * @param position position in the history
+     * @return the queue position played at that point of the history, or -1
+     */
+    public int getQueueHistoryPosition(final int position) {
+        if (position >= 0 && position < mHistory.length) {
+            return mHistory[position];
+        }
+        return -1;
+    }
+
+    /**
+     * @param history the history of the service
+     * @return true if it holds the same positions as the history of this snapshot
+     */
+    public boolean hasSameHistory(final List<Integer> history) {
+        final int size = history.size();
+        if (size != mHistory.length) {
+            return false;
+        }
+        int i = 0;
+        for (final Integer position : history) {
+            if (position.intValue() != mHistory[i++]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param queue the queue of the service
+     * @return true if the queue holds the same tracks as the queue of this
+     *         snapshot, in which case the arrays of this snapshot can be reused
+     */
+    public boolean hasSameQueue(final List<MusicPlaybackTrack> queue) {
+        final int size = queue.size();
+        if (size != mQueue.length) {
+            return false;
+        }
+        for (int i = 0; i < size; i++) {
+            if (queue.get(i) != mQueue[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Builds a {@link PlaybackSnapshot}
+     */
+    public static final class Builder {
+        private long mVersion = 0;
+        private long mQueueVersion = 0;
+        private MusicPlaybackTrack[] mQueue = new MusicPlaybackTrack[0];
+        private long[] mQueueIds = new long[0];
+        private int[] mHistory = new int[0];
+        private int mQueuePosition = -1;
+        private MusicPlaybackTrack mCurrentTrack;
+        private long mNextAudioId = -1;
+        private long mPreviousAudioId = -1;
+        private long mAlbumId = -1;
+        private long mArtistId = -1;
+        private String mTrackName;
+        private String mArtistName;
+        private String mAlbumName;
+        private String mPath;
+        private int mShuffleMode;
+        private int mRepeatMode;
+        private boolean mIsPlaying;
+        private long mPosition = -1;
+        private long mPositionTime;
+        private long mDuration = -1;
+        private float mPlaybackRate;
+
+        public Builder setVersion(final long version) {
+            mVersion = version;
+            return this;
+        }
+
+        /**
+         * @param queue the queue, which isn't copied
+         * @param queueIds the track ids of the queue, which aren't copied
+         * @param version the version of the queue
+         */
+        public Builder setQueue(final MusicPlaybackTrack[] queue, final long[] queueIds,
+                final long version) {
+            mQueue = queue;
+            mQueueIds = queueIds;
+            mQueueVersion = version;
+            return this;
+        }
+
+        /**
+         * @param history the history, which isn't copied
+         */
+        public Builder setHistory(final int[] history) {
+            mHistory = history;
+            return this;
+        }
+
+        public Builder setQueuePosition(final int position) {
+            mQueuePosition = position;
+            return this;
+        }
+
+        public Builder setCurrentTrack(final MusicPlaybackTrack track) {
+            mCurrentTrack = track;
+            return this;
+        }
+
+        public Builder setNextAudioId(final long id) {
+            mNextAudioId = id;
+            return this;
+        }
+
+        public Builder setPreviousAudioId(final long id) {
+            mPreviousAudioId = id;
+            return this;
+        }
+
+        public Builder setAlbumId(final long id) {
+            mAlbumId = id;
+            return this;
+        }
+
+        public Builder setArtistId(final long id) {
+            mArtistId = id;
+            return this;
+        }
+
+        public Builder setTrackName(final String name) {
+            mTrackName = name;
+            return this;
+        }
+
+        public Builder setArtistName(final String name) {
+            mArtistName = name;
+            return this;
+        }
+
+        public Builder setAlbumName(final String name) {
+            mAlbumName = name;
+            return this;
+        }
+
+        public Builder setPath(final String path) {
+            mPath = path;
+            return this;
+        }
+
+        public Builder setShuffleMode(final int mode) {
+            mShuffleMode = mode;
+            return this;
+        }
+
+        public Builder setRepeatMode(final int mode) {
+            mRepeatMode = mode;
+            return this;
+        }
+
+        public Builder setPlaying(final boolean playing) {
+            mIsPlaying = playing;
+            return this;
+        }
+
+        /**
+         * @param position the playback position
+         * @param time when it was read, in elapsed realtime
+         * @param duration the duration of the track, or -1 if it isn't known
+         * @param rate how fast the position moves on, 0 when it doesn't
+         */
+        public Builder setPosition(final long position, final long time, final long duration,
+                final float rate) {
+            mPosition = position;
+            mPositionTime = time;
+            mDuration = duration;
+            mPlaybackRate = rate;
+            return this;
+        }
+
+        public PlaybackSnapshot build() {
+            return new PlaybackSnapshot(this);
+        }
+    }
+}
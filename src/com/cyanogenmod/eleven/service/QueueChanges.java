@@ -0,0 +1,140 @@
+/*
+* Copyright (C) 2015 The CyanogenMod Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.cyanogenmod.eleven.service;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * What changed in the queue between two of its versions. The change is
+ * described as one run of tracks replaced by another, everything before and
+ * after the run being the same in both versions, which covers adding, removing
+ * or moving tracks with a small transfer.
+ */
+public class QueueChanges implements Parcelable {
+
+    /**
+     * The version the changes apply to
+     */
+    public final long mFromVersion;
+
+    /**
+     * The version of the queue once the changes are applied
+     */
+    public final long mToVersion;
+
+    /**
+     * Position of the first track that changed
+     */
+    public final int mStart;
+
+    /**
+     * Number of tracks removed at {@link #mStart}
+     */
+    public final int mRemoveCount;
+
+    /**
+     * The track ids inserted at {@link #mStart} in their place
+     */
+    public final long[] mInsertIds;
+
+    /**
+     * Parcelable creator
+     */
+    public static final Creator<QueueChanges> CREATOR = new Creator<QueueChanges>() {
+        @Override
+        public QueueChanges createFromParcel(Parcel source) {
+            return new QueueChanges(source);
+        }
+
+        @Override
+        public QueueChanges[] newArray(int size) {
+            return new QueueChanges[size];
+        }
+    };
+
+    public QueueChanges(long fromVersion, long toVersion, int start, int removeCount,
+            long[] insertIds) {
+        mFromVersion = fromVersion;
+        mToVersion = toVersion;
+        mStart = start;
+        mRemoveCount = removeCount;
+        mInsertIds = insertIds;
+    }
+
+    public QueueChanges(Parcel in) {
+        mFromVersion = in.readLong();
+        mToVersion = in.readLong();
+        mStart = in.readInt();
+        mRemoveCount = in.readInt();
+        mInsertIds = in.createLongArray();
+    }
+
+    /**
+     * Finds the run of tracks that differs between two versions of the queue
+     *
+     * @param from The track ids of the older version
+     * @param fromVersion The older version
+     * @param to The track ids of the newer version
+     * @param toVersion The newer version
+     * @return The changes that turn the older version into the newer one
+     */
+    public static QueueChanges compute(long[] from, long fromVersion, long[] to,
+            long toVersion) {
+        final int shortest = Math.min(from.length, to.length);
+        int start = 0;
+        while (start < shortest && from[start] == to[start]) {
+            start++;
+        }
+        int end = 0;
+        while (end < shortest - start
+                && from[from.length - 1 - end] == to[to.length - 1 - end]) {
+            end++;
+        }
+
+        final long[] insertIds = new long[to.length - start - end];
+        System.arraycopy(to, start, insertIds, 0, insertIds.length);
+        return new QueueChanges(fromVersion, toVersion, start, from.length - start - end,
+                insertIds);
+    }
+
+    /**
+     * @param queue The track ids of the queue at {@link #mFromVersion}
+     * @return The track ids of the queue at {@link #mToVersion}
+     */
+    public long[] apply(long[] queue) {
+        final long[] result = new long[queue.length - mRemoveCount + mInsertIds.length];
+        System.arraycopy(queue, 0, result, 0, mStart);
+        System.arraycopy(mInsertIds, 0, result, mStart, mInsertIds.length);
+        System.arraycopy(queue, mStart + mRemoveCount, result, mStart + mInsertIds.length,
+                queue.length - mStart - mRemoveCount);
+        return result;
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeLong(mFromVersion);
+        dest.writeLong(mToVersion);
+        dest.writeInt(mStart);
+        dest.writeInt(mRemoveCount);
+        dest.writeLongArray(mInsertIds);
+    }
+}
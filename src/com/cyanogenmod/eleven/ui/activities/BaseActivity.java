@@ -43,6 +43,7 @@ import com.cyanogenmod.eleven.MusicStateListener;
 import com.cyanogenmod.eleven.R;
 import com.cyanogenmod.eleven.cache.ICacheListener;
 import com.cyanogenmod.eleven.cache.ImageFetcher;
+import com.cyanogenmod.eleven.service.PlaybackSnapshot;
 import com.cyanogenmod.eleven.utils.ApolloUtils;
 import com.cyanogenmod.eleven.utils.Lists;
 import com.cyanogenmod.eleven.utils.MusicUtils;
@@ -336,10 +337,11 @@ public abstract class BaseActivity extends FragmentActivity implements ServiceCo
      * Sets the track name, album name, and album art.
      */
     private void updateBottomActionBarInfo() {
+        final PlaybackSnapshot snapshot = MusicUtils.getPlaybackSnapshot();
         // Set the track name
-        mTrackName.setText(MusicUtils.getTrackName());
+        mTrackName.setText(snapshot.mTrackName);
         // Set the artist name
-        mArtistName.setText(MusicUtils.getArtistName());
+        mArtistName.setText(snapshot.mArtistName);
         // Set the album art
         ApolloUtils.getImageFetcher(this).loadCurrentArtwork(mAlbumArt);
     }
@@ -362,9 +364,10 @@ public abstract class BaseActivity extends FragmentActivity implements ServiceCo
          */
         @Override
         public void onClick(final View v) {
-            if (MusicUtils.getCurrentAudioId() != -1) {
-                NavUtils.openAlbumProfile(BaseActivity.this, MusicUtils.getAlbumName(),
-                        MusicUtils.getArtistName(), MusicUtils.getCurrentAlbumId());
+            final PlaybackSnapshot snapshot = MusicUtils.getPlaybackSnapshot();
+            if (snapshot.mAudioId != -1) {
+                NavUtils.openAlbumProfile(BaseActivity.this, snapshot.mAlbumName,
+                        snapshot.mArtistName, snapshot.mAlbumId);
             } else {
                 MusicUtils.shuffleAll(BaseActivity.this);
             }
@@ -39,6 +39,7 @@ import android.view.Window;
 import com.cyanogenmod.eleven.Config;
 import com.cyanogenmod.eleven.R;
 import com.cyanogenmod.eleven.cache.ImageFetcher;
+import com.cyanogenmod.eleven.service.PlaybackSnapshot;
 import com.cyanogenmod.eleven.ui.fragments.AlbumDetailFragment;
 import com.cyanogenmod.eleven.ui.fragments.ArtistDetailFragment;
 import com.cyanogenmod.eleven.ui.fragments.AudioPlayerFragment;
@@ -207,16 +208,16 @@ public class HomeActivity extends SlidingPanelActivity implements
     }
 
     private void updateStatusBarColor() {
-        if (mBrowsePanelActive || MusicUtils.getCurrentAlbumId() < 0) {
+        final PlaybackSnapshot snapshot = MusicUtils.getPlaybackSnapshot();
+        if (mBrowsePanelActive || snapshot.mAlbumId < 0) {
             updateStatusBarColor(Color.TRANSPARENT);
         } else {
             new AsyncTask<Void, Void, BitmapWithColors>() {
                 @Override
                 protected BitmapWithColors doInBackground(Void... params) {
                     ImageFetcher imageFetcher = ImageFetcher.getInstance(HomeActivity.this);
-                    return imageFetcher.getArtwork(
-                            MusicUtils.getAlbumName(), MusicUtils.getCurrentAlbumId(),
-                            MusicUtils.getArtistName(), true);
+                    return imageFetcher.getArtwork(snapshot.mAlbumName, snapshot.mAlbumId,
+                            snapshot.mArtistName, true);
                 }
                 @Override
                 protected void onPostExecute(BitmapWithColors bmc) {
@@ -26,6 +26,7 @@ import com.cyanogenmod.eleven.R;
 import com.cyanogenmod.eleven.adapters.AlbumDetailSongAdapter;
 import com.cyanogenmod.eleven.adapters.DetailSongAdapter;
 import com.cyanogenmod.eleven.adapters.PagerAdapter;
+import com.cyanogenmod.eleven.cache.ImageCache.ImageTier;
 import com.cyanogenmod.eleven.cache.ImageFetcher;
 import com.cyanogenmod.eleven.model.Album;
 import com.cyanogenmod.eleven.model.Song;
@@ -104,7 +105,8 @@ public class AlbumDetailFragment extends DetailFragment implements IChildFragmen
 
         mAlbumArt = (ImageView)mRootView.findViewById(R.id.album_art);
         mAlbumArt.setContentDescription(mAlbumName);
-        ImageFetcher.getInstance(getActivity()).loadAlbumImage(artist, mAlbumName, mAlbumId, mAlbumArt);
+        ImageFetcher.getInstance(getActivity()).loadAlbumImage(artist, mAlbumName, mAlbumId, mAlbumArt,
+                ImageTier.FULL);
 
         TextView title = (TextView)mRootView.findViewById(R.id.title);
         title.setText(mAlbumName);
@@ -193,7 +195,7 @@ public class AlbumDetailFragment extends DetailFragment implements IChildFragmen
     public void restartLoader() {
         getLoaderManager().restartLoader(LOADER_ID, getArguments(), mSongAdapter);
         ImageFetcher.getInstance(getActivity()).loadAlbumImage(mArtistName, mAlbumName, mAlbumId,
-                mAlbumArt);
+                mAlbumArt, ImageTier.FULL);
     }
 
     @Override
@@ -30,6 +30,7 @@ import com.cyanogenmod.eleven.MusicStateListener;
 import com.cyanogenmod.eleven.R;
 import com.cyanogenmod.eleven.adapters.AlbumAdapter;
 import com.cyanogenmod.eleven.adapters.PagerAdapter;
+import com.cyanogenmod.eleven.cache.ScrollPrefetcher;
 import com.cyanogenmod.eleven.loaders.AlbumLoader;
 import com.cyanogenmod.eleven.model.Album;
 import com.cyanogenmod.eleven.recycler.RecycleHolder;
@@ -84,6 +85,11 @@ public class AlbumFragment extends MusicBrowserFragment implements
      */
     private LoadingEmptyContainer mLoadingEmptyContainer;
 
+    /**
+     * Warms the artwork of the albums about to scroll into view
+     */
+    private ScrollPrefetcher mScrollPrefetcher;
+
     @Override
     public int getLoaderId() {
         return PagerAdapter.MusicFragments.ALBUM.ordinal();
@@ -111,6 +117,7 @@ public class AlbumFragment extends MusicBrowserFragment implements
                 mPopupMenuHelper.showPopupMenu(v, position);
             }
         });
+        mScrollPrefetcher = new ScrollPrefetcher(mAdapter);
     }
 
     /**
@@ -162,6 +169,7 @@ public class AlbumFragment extends MusicBrowserFragment implements
      */
     @Override
     public void onScrollStateChanged(final AbsListView view, final int scrollState) {
+        mScrollPrefetcher.onScrollStateChanged(scrollState);
         // Pause disk cache access to ensure smoother scrolling
         if (scrollState == AbsListView.OnScrollListener.SCROLL_STATE_FLING) {
             mAdapter.setPauseDiskCache(true);
@@ -204,6 +212,7 @@ public class AlbumFragment extends MusicBrowserFragment implements
             return;
         }
 
+        mScrollPrefetcher.reset();
         mAdapter.setData(data.mListResults);
     }
 
@@ -263,7 +272,7 @@ public class AlbumFragment extends MusicBrowserFragment implements
     @Override
     public void onScroll(final AbsListView view, final int firstVisibleItem,
             final int visibleItemCount, final int totalItemCount) {
-        // Nothing to do
+        mScrollPrefetcher.onScroll(firstVisibleItem, visibleItemCount, totalItemCount);
     }
 
     /**
@@ -32,6 +32,7 @@ import com.cyanogenmod.eleven.MusicStateListener;
 import com.cyanogenmod.eleven.R;
 import com.cyanogenmod.eleven.adapters.ArtistAdapter;
 import com.cyanogenmod.eleven.adapters.PagerAdapter;
+import com.cyanogenmod.eleven.cache.ScrollPrefetcher;
 import com.cyanogenmod.eleven.loaders.ArtistLoader;
 import com.cyanogenmod.eleven.model.Artist;
 import com.cyanogenmod.eleven.recycler.RecycleHolder;
@@ -83,6 +84,11 @@ public class ArtistFragment extends MusicBrowserFragment implements
      */
     private LoadingEmptyContainer mLoadingEmptyContainer;
 
+    /**
+     * Warms the images of the artists about to scroll into view
+     */
+    private ScrollPrefetcher mScrollPrefetcher;
+
     /**
      * Empty constructor as per the {@link Fragment} documentation
      */
@@ -118,6 +124,21 @@ public class ArtistFragment extends MusicBrowserFragment implements
                 mPopupMenuHelper.showPopupMenu(v, position);
             }
         });
+        mScrollPrefetcher = new ScrollPrefetcher(new ScrollPrefetcher.PrefetchTarget() {
+            @Override
+            public void prefetch(final int position) {
+                // skip the section headers and footers
+                if (!mAdapter.isSection(position)) {
+                    mAdapter.getUnderlyingAdapter().prefetch(
+                            mAdapter.getInternalPosition(position));
+                }
+            }
+
+            @Override
+            public void cancelPrefetches() {
+                mAdapter.getUnderlyingAdapter().cancelPrefetches();
+            }
+        });
     }
 
     /**
@@ -170,6 +191,7 @@ public class ArtistFragment extends MusicBrowserFragment implements
      */
     @Override
     public void onScrollStateChanged(final AbsListView view, final int scrollState) {
+        mScrollPrefetcher.onScrollStateChanged(scrollState);
         // Pause disk cache access to ensure smoother scrolling
         if (scrollState == AbsListView.OnScrollListener.SCROLL_STATE_FLING) {
             mAdapter.getUnderlyingAdapter().setPauseDiskCache(true);
@@ -212,6 +234,7 @@ public class ArtistFragment extends MusicBrowserFragment implements
             return;
         }
 
+        mScrollPrefetcher.reset();
         mAdapter.setData(data);
     }
 
@@ -271,7 +294,7 @@ public class ArtistFragment extends MusicBrowserFragment implements
     @Override
     public void onScroll(final AbsListView view, final int firstVisibleItem,
             final int visibleItemCount, final int totalItemCount) {
-        // Nothing to do
+        mScrollPrefetcher.onScroll(firstVisibleItem, visibleItemCount, totalItemCount);
     }
 
     /**
@@ -55,6 +55,7 @@ import com.cyanogenmod.eleven.loaders.QueueLoader;
 import com.cyanogenmod.eleven.menu.CreateNewPlaylist;
 import com.cyanogenmod.eleven.menu.DeleteDialog;
 import com.cyanogenmod.eleven.menu.FragmentMenuItems;
+import com.cyanogenmod.eleven.service.PlaybackSnapshot;
 import com.cyanogenmod.eleven.ui.activities.HomeActivity;
 import com.cyanogenmod.eleven.utils.ApolloUtils;
 import com.cyanogenmod.eleven.utils.MusicUtils;
@@ -82,6 +83,11 @@ public class AudioPlayerFragment extends Fragment implements ServiceConnection {
      */
     private static final int GROUP_ID = 15;
 
+    /**
+     * Number of upcoming tracks whose artwork is warmed for the album art pager
+     */
+    private static final int PREFETCH_TRACK_COUNT = 3;
+
     // fragment view
     private ViewGroup mRootView;
 
@@ -150,6 +156,9 @@ public class AudioPlayerFragment extends Fragment implements ServiceConnection {
 
     private boolean mIsPaused = false;
 
+    // The position anchor the current time is worked out from
+    private PlaybackSnapshot mPositionAnchor = PlaybackSnapshot.EMPTY;
+
     @Override
     public void onActivityCreated(Bundle savedInstanceState) {
         super.onActivityCreated(savedInstanceState);
@@ -222,6 +231,10 @@ public class AudioPlayerFragment extends Fragment implements ServiceConnection {
         filter.addAction(MusicPlaybackService.REPEATMODE_CHANGED);
         // Track changes
         filter.addAction(MusicPlaybackService.META_CHANGED);
+        // Seeks
+        filter.addAction(MusicPlaybackService.POSITION_CHANGED);
+        // The duration of the track becoming known
+        filter.addAction(MusicPlaybackService.TRACK_PREPARED_CHANGED);
         // Update a list, probably the playlist fragment's
         filter.addAction(MusicPlaybackService.REFRESH);
         // Listen to changes to the entire queue
@@ -233,6 +246,7 @@ public class AudioPlayerFragment extends Fragment implements ServiceConnection {
         // Register the intent filters
         getActivity().registerReceiver(mPlaybackStatus, filter);
         // Refresh the current time
+        mPositionAnchor = MusicUtils.getPlaybackSnapshot();
         final long next = refreshCurrentTime();
         queueNextRefresh(next);
 
@@ -355,13 +369,14 @@ public class AudioPlayerFragment extends Fragment implements ServiceConnection {
             public void onPageSelected(int position) {
                 super.onPageSelected(position);
 
+                final PlaybackSnapshot snapshot = MusicUtils.getPlaybackSnapshot();
                 int currentPosition = 0;
-                if (MusicUtils.getShuffleMode() == MusicPlaybackService.SHUFFLE_NONE) {
+                if (snapshot.mShuffleMode == MusicPlaybackService.SHUFFLE_NONE) {
                     // if we aren't shuffling, base the position on the queue position
-                    currentPosition = MusicUtils.getQueuePosition();
+                    currentPosition = snapshot.mQueuePosition;
                 } else {
                     // if we are shuffling, use the history size as the position
-                    currentPosition = MusicUtils.getQueueHistorySize();
+                    currentPosition = snapshot.mHistory.length;
                 }
 
                 // check if we are going to next or previous track
@@ -403,31 +418,44 @@ public class AudioPlayerFragment extends Fragment implements ServiceConnection {
      * Sets the track name, album name, and album art.
      */
     private void updateNowPlayingInfo() {
+        final PlaybackSnapshot snapshot = MusicUtils.getPlaybackSnapshot();
+        mPositionAnchor = snapshot;
+
         // Set the track name
-        mSongTitle.setText(MusicUtils.getTrackName());
-        mArtistName.setText(MusicUtils.getArtistName());
+        mSongTitle.setText(snapshot.mTrackName);
+        mArtistName.setText(snapshot.mArtistName);
 
         // Set the total time
-        String totalTime = MusicUtils.makeShortTimeString(getActivity(), MusicUtils.duration() / 1000);
-        if (!mTotalTime.getText().equals(totalTime)) {
-            mTotalTime.setText(totalTime);
-        }
+        updateTotalTime(snapshot);
 
-        if (MusicUtils.getRepeatMode() == MusicPlaybackService.REPEAT_CURRENT) {
+        if (snapshot.mRepeatMode == MusicPlaybackService.REPEAT_CURRENT) {
             // we are repeating 1 so just jump to the 1st and only item
             mAlbumArtViewPager.setCurrentItem(0, false);
-        } else if (MusicUtils.getShuffleMode() == MusicPlaybackService.SHUFFLE_NONE) {
+        } else if (snapshot.mShuffleMode == MusicPlaybackService.SHUFFLE_NONE) {
             // we are playing in-order, base the position on the queue position
-            mAlbumArtViewPager.setCurrentItem(MusicUtils.getQueuePosition(), true);
+            mAlbumArtViewPager.setCurrentItem(snapshot.mQueuePosition, true);
         } else {
             // if we are shuffling, just based our index based on the history
-            mAlbumArtViewPager.setCurrentItem(MusicUtils.getQueueHistorySize(), true);
+            mAlbumArtViewPager.setCurrentItem(snapshot.mHistory.length, true);
         }
 
+        // Warm the artwork of the next pages before the user swipes or the track changes
+        mImageFetcher.prefetchUpcomingArtwork(PREFETCH_TRACK_COUNT);
+
         // Update the current time
         queueNextRefresh(1);
     }
 
+    /**
+     * Sets the total time, which is only known once the track is prepared
+     */
+    private void updateTotalTime(final PlaybackSnapshot snapshot) {
+        String totalTime = MusicUtils.makeShortTimeString(getActivity(), snapshot.mDuration / 1000);
+        if (!mTotalTime.getText().equals(totalTime)) {
+            mTotalTime.setText(totalTime);
+        }
+    }
+
     /**
      * This creates the adapter based on the repeat and shuffle configuration and sets it into the
      * page adapter
@@ -435,22 +463,23 @@ public class AudioPlayerFragment extends Fragment implements ServiceConnection {
     private void createAndSetAdapter() {
         mAlbumArtPagerAdapter = new AlbumArtPagerAdapter(getChildFragmentManager());
 
-        int repeatMode = MusicUtils.getRepeatMode();
+        final PlaybackSnapshot snapshot = MusicUtils.getPlaybackSnapshot();
+        int repeatMode = snapshot.mRepeatMode;
         int targetSize = 0;
         int targetIndex = 0;
-        int queueSize = MusicUtils.getQueueSize();
+        int queueSize = snapshot.mQueueSize;
 
         if (repeatMode == MusicPlaybackService.REPEAT_CURRENT) {
             targetSize = 1;
             targetIndex = 0;
-        } else if (MusicUtils.getShuffleMode() == MusicPlaybackService.SHUFFLE_NONE) {
+        } else if (snapshot.mShuffleMode == MusicPlaybackService.SHUFFLE_NONE) {
             // if we aren't shuffling, use the queue to determine where we are
             targetSize = queueSize;
-            targetIndex = MusicUtils.getQueuePosition();
+            targetIndex = snapshot.mQueuePosition;
         } else {
             // otherwise, set it to the max history size
             targetSize = MusicPlaybackService.MAX_HISTORY_SIZE;
-            targetIndex = MusicUtils.getQueueHistorySize();
+            targetIndex = snapshot.mHistory.length;
         }
 
         mAlbumArtPagerAdapter.setPlaylistLength(targetSize);
@@ -514,6 +543,7 @@ public class AudioPlayerFragment extends Fragment implements ServiceConnection {
 
             MusicUtils.seekRelative(forwards ? delta : -delta);
 
+            mPositionAnchor = MusicUtils.getPlaybackSnapshot();
             refreshCurrentTime();
         }
     }
@@ -527,20 +557,23 @@ public class AudioPlayerFragment extends Fragment implements ServiceConnection {
         }
     }
 
-    /* Used to update the current time string */
+    /**
+     * Used to update the current time string. The time is worked out from the
+     * position anchor, so this doesn't call into the service.
+     */
     private long refreshCurrentTime() {
         if (mService == null) {
             return MusicUtils.UPDATE_FREQUENCY_MS;
         }
         try {
-            final long pos = MusicUtils.position();
-            if (pos >= 0 && MusicUtils.duration() > 0) {
+            final long pos = mPositionAnchor.getPosition();
+            if (pos >= 0 && mPositionAnchor.mDuration > 0) {
                 refreshCurrentTimeText(pos);
 
                 if (mPlayPauseProgressButton.isDragging()) {
                     mCurrentTime.setVisibility(View.VISIBLE);
                     return MusicUtils.UPDATE_FREQUENCY_FAST_MS;
-                } else if (MusicUtils.isPlaying()) {
+                } else if (mPositionAnchor.mIsPlaying) {
                     mCurrentTime.setVisibility(View.VISIBLE);
 
                     // calculate the number of milliseconds until the next full second,
@@ -786,9 +819,18 @@ public class AudioPlayerFragment extends Fragment implements ServiceConnection {
                 audioPlayerFragment.updateNowPlayingInfo();
                 audioPlayerFragment.dismissPopupMenu();
             } else if (action.equals(MusicPlaybackService.PLAYSTATE_CHANGED)) {
+                audioPlayerFragment.mPositionAnchor = MusicUtils.getPlaybackSnapshot();
                 // Set the play and pause image
                 audioPlayerFragment.mPlayPauseProgressButton.getPlayPauseButton().updateState();
-                audioPlayerFragment.mVisualizerView.setPlaying(MusicUtils.isPlaying());
+                audioPlayerFragment.mVisualizerView.setPlaying(
+                        audioPlayerFragment.mPositionAnchor.mIsPlaying);
+                audioPlayerFragment.queueNextRefresh(1);
+            } else if (action.equals(MusicPlaybackService.POSITION_CHANGED)
+                    || action.equals(MusicPlaybackService.TRACK_PREPARED_CHANGED)) {
+                // Pick up the new position anchor
+                audioPlayerFragment.mPositionAnchor = MusicUtils.getPlaybackSnapshot();
+                audioPlayerFragment.updateTotalTime(audioPlayerFragment.mPositionAnchor);
+                audioPlayerFragment.queueNextRefresh(1);
             } else if (action.equals(MusicPlaybackService.REPEATMODE_CHANGED)
                     || action.equals(MusicPlaybackService.SHUFFLEMODE_CHANGED)) {
                 // Set the repeat image
@@ -18,24 +18,18 @@ package com.cyanogenmod.eleven.utils;
 import android.graphics.Bitmap;
 import android.graphics.Color;
 import android.os.Looper;
-import android.support.v7.graphics.Palette;
-import android.support.v7.graphics.Target;
 import android.util.LruCache;
 
 public class BitmapWithColors {
-    private static final class BitmapColors {
+    /**
+     * The colors extracted from a bitmap, transparent where the bitmap has no such color
+     */
+    public static final class BitmapColors {
         public final int mVibrantColor;
         public final int mVibrantDarkColor;
         public final int mVibrantLightColor;
         public final int mDominantColor;
 
-        public BitmapColors(Palette palette) {
-            mVibrantColor = determineColor(palette.getVibrantSwatch());
-            mVibrantDarkColor = determineColor(palette.getDarkVibrantSwatch());
-            mVibrantLightColor = determineColor(palette.getLightVibrantSwatch());
-            mDominantColor = determineColor(getDominantSwatch(palette));
-        }
-
         public BitmapColors(int vibrantColor, int vibrantDarkColor) {
             mVibrantColor = vibrantColor;
             mVibrantDarkColor = vibrantDarkColor;
@@ -43,18 +37,12 @@ public class BitmapWithColors {
             mDominantColor = vibrantColor;
         }
 
-        private int determineColor(Palette.Swatch swatch) {
-            return swatch != null ? swatch.getRgb() : Color.TRANSPARENT;
-        }
-
-        private static Palette.Swatch getDominantSwatch(Palette palette) {
-            Palette.Swatch dominant = null;
-            for (Palette.Swatch swatch : palette.getSwatches()) {
-                if (dominant == null || swatch.getPopulation() > dominant.getPopulation()) {
-                    dominant = swatch;
-                }
-            }
-            return dominant;
+        public BitmapColors(int vibrantColor, int vibrantDarkColor, int vibrantLightColor,
+                int dominantColor) {
+            mVibrantColor = vibrantColor;
+            mVibrantDarkColor = vibrantDarkColor;
+            mVibrantLightColor = vibrantLightColor;
+            mDominantColor = dominantColor;
         }
 
         @Override
@@ -67,30 +55,100 @@ public class BitmapWithColors {
     }
 
     private static final int CACHE_SIZE_MAX = 20;
-    private static final LruCache<Integer, BitmapColors> sCachedColors =
-            new LruCache<Integer, BitmapColors>(CACHE_SIZE_MAX);
+    private static final LruCache<String, BitmapColors> sCachedColors =
+            new LruCache<String, BitmapColors>(CACHE_SIZE_MAX);
 
     private Bitmap mBitmap;
-    private int mBitmapKey;
+    private String mBitmapKey;
     private BitmapColors mColors;
 
-    public BitmapWithColors(Bitmap bitmap, int bitmapKey) {
+    public BitmapWithColors(Bitmap bitmap, String bitmapKey) {
         mBitmap = bitmap;
         mBitmapKey = bitmapKey;
 
         if (Thread.currentThread() != Looper.getMainLooper().getThread()) {
             // we're already running in background, so do the
-            // (costly) palette initialization immediately
+            // color extraction immediately
             loadColorsIfNeeded();
         }
     }
 
-    public BitmapWithColors(Bitmap bitmap, int bitmapKey, int vibrantColor, int vibrantDarkColor) {
+    public BitmapWithColors(Bitmap bitmap, String bitmapKey, int vibrantColor,
+            int vibrantDarkColor) {
         mBitmap = bitmap;
         mBitmapKey = bitmapKey;
         mColors = new BitmapColors(vibrantColor, vibrantDarkColor);
     }
 
+    /**
+     * @param bitmap the bitmap
+     * @param bitmapKey the image cache key of the bitmap
+     * @param colors the colors of the bitmap read back from the store, or null to compute them
+     */
+    public BitmapWithColors(Bitmap bitmap, String bitmapKey, BitmapColors colors) {
+        mBitmap = bitmap;
+        mBitmapKey = bitmapKey;
+        mColors = colors;
+        if (mColors != null) {
+            putCachedColors(bitmapKey, colors);
+        } else if (Thread.currentThread() != Looper.getMainLooper().getThread()) {
+            loadColorsIfNeeded();
+        }
+    }
+
+    /**
+     * Extracts the colors of the bitmap from a small grid of its pixels. Don't call it on the
+     * main thread.
+     * @param bitmap the bitmap to extract the colors from
+     * @return the colors, or null if they couldn't be extracted
+     */
+    public static BitmapColors generateColors(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) {
+            return null;
+        }
+        return ColorExtractor.extract(bitmap);
+    }
+
+    /**
+     * @param key the image cache key of a bitmap
+     * @return the colors of the bitmap if they are in the memory cache, null otherwise
+     */
+    public static BitmapColors getCachedColors(String key) {
+        synchronized (sCachedColors) {
+            return sCachedColors.get(key);
+        }
+    }
+
+    /**
+     * Keeps the colors of a bitmap in the memory cache
+     * @param key the image cache key of the bitmap
+     * @param colors the colors of the bitmap
+     */
+    public static void putCachedColors(String key, BitmapColors colors) {
+        synchronized (sCachedColors) {
+            sCachedColors.put(key, colors);
+        }
+    }
+
+    /**
+     * Drops the colors of a bitmap from the memory cache, called when the bitmap changes
+     * @param key the image cache key of the bitmap
+     */
+    public static void removeCachedColors(String key) {
+        synchronized (sCachedColors) {
+            sCachedColors.remove(key);
+        }
+    }
+
+    /**
+     * Drops the colors of every bitmap from the memory cache
+     */
+    public static void evictCachedColors() {
+        synchronized (sCachedColors) {
+            sCachedColors.evictAll();
+        }
+    }
+
     public Bitmap getBitmap() {
         return mBitmap;
     }
@@ -169,22 +227,17 @@ public class BitmapWithColors {
             return;
         }
 
-        synchronized (sCachedColors) {
-            mColors = sCachedColors.get(mBitmapKey);
-        }
+        mColors = getCachedColors(mBitmapKey);
         if (mColors != null) {
             return;
         }
 
-        final Palette p = Palette.from(mBitmap).generate();
-        if (p == null) {
+        mColors = generateColors(mBitmap);
+        if (mColors == null) {
             return;
         }
 
-        mColors = new BitmapColors(p);
-        synchronized (sCachedColors) {
-            sCachedColors.put(mBitmapKey, mColors);
-        }
+        putCachedColors(mBitmapKey, mColors);
     }
 
     @Override
@@ -0,0 +1,187 @@
+/*
+* Copyright (C) 2015 The CyanogenMod Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.cyanogenmod.eleven.utils;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Blurs packed ARGB pixels without RenderScript. Each pass is a separable box
+ * blur, a horizontal run over the rows followed by a vertical run over the
+ * columns, and three passes come close to a gaussian blur with a sigma of
+ * about sqrt(radius * (radius + 1)). The rows, and then the columns, are split
+ * between the threads of the common fork/join pool. The scratch buffer is
+ * kept between calls, so blurring images of the same size doesn't allocate.
+ */
+public final class BoxBlur {
+
+    /**
+     * Number of box passes, three is enough to look like a gaussian
+     */
+    private static final int PASSES = 3;
+
+    /**
+     * Largest radius whose rounded averages still fit in a byte
+     */
+    private static final int MAX_RADIUS = 127;
+
+    /**
+     * Lines are no longer split between threads below this many pixels
+     */
+    private static final int MIN_PIXELS_PER_TASK = 16 * 1024;
+
+    /**
+     * Sums are divided by the window size with a multiply and a shift
+     */
+    private static final int DIVISOR_SHIFT = 16;
+
+    private static final int DIVISOR_ROUNDING = 1 << (DIVISOR_SHIFT - 1);
+
+    /**
+     * Holds the result of the horizontal run, sized for the largest image so far
+     */
+    private int[] mScratch = new int[0];
+
+    /**
+     * Blurs the pixels in place
+     *
+     * @param pixels The packed ARGB pixels, row by row
+     * @param width The width of the image
+     * @param height The height of the image
+     * @param radius The radius of each box pass, 0 leaves the image untouched and
+     *            anything above {@link #MAX_RADIUS} is clamped
+     */
+    public synchronized void blur(final int[] pixels, final int width, final int height,
+            final int radius) {
+        if (width <= 0 || height <= 0 || pixels.length < width * height) {
+            throw new IllegalArgumentException("pixels doesn't hold a " + width + "x" + height
+                    + " image");
+        }
+        if (radius <= 0) {
+            return;
+        }
+
+        if (mScratch.length < width * height) {
+            mScratch = new int[width * height];
+        }
+
+        final int window = Math.min(radius, MAX_RADIUS) * 2 + 1;
+        final int multiplier = ((1 << DIVISOR_SHIFT) + window / 2) / window;
+        final int boxRadius = window / 2;
+        for (int i = 0; i < PASSES; i++) {
+            run(new LineTask(pixels, mScratch, 0, height, width, 1, width, boxRadius,
+                    multiplier));
+            run(new LineTask(mScratch, pixels, 0, width, 1, width, height, boxRadius,
+                    multiplier));
+        }
+    }
+
+    private static void run(final LineTask task) {
+        if ((long)(task.mTo - task.mFrom) * task.mLength <= MIN_PIXELS_PER_TASK) {
+            task.compute();
+        } else {
+            ForkJoinPool.commonPool().invoke(task);
+        }
+    }
+
+    /**
+     * Box blurs a range of lines, either rows or columns, of src into dst
+     */
+    private static final class LineTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int[] mSrc;
+        private final int[] mDst;
+        private final int mFrom;
+        private final int mTo;
+        /** Offset between the first pixels of two neighbouring lines */
+        private final int mLineStride;
+        /** Offset between two neighbouring pixels of a line */
+        private final int mPixelStride;
+        private final int mLength;
+        private final int mRadius;
+        private final int mMultiplier;
+
+        LineTask(final int[] src, final int[] dst, final int from, final int to,
+                final int lineStride, final int pixelStride, final int length, final int radius,
+                final int multiplier) {
+            mSrc = src;
+            mDst = dst;
+            mFrom = from;
+            mTo = to;
+            mLineStride = lineStride;
+            mPixelStride = pixelStride;
+            mLength = length;
+            mRadius = radius;
+            mMultiplier = multiplier;
+        }
+
+        @Override
+        protected void compute() {
+            final int lines = mTo - mFrom;
+            if (lines > 1 && (long)lines * mLength > MIN_PIXELS_PER_TASK) {
+                final int middle = mFrom + lines / 2;
+                invokeAll(new LineTask(mSrc, mDst, mFrom, middle, mLineStride, mPixelStride,
+                                mLength, mRadius, mMultiplier),
+                        new LineTask(mSrc, mDst, middle, mTo, mLineStride, mPixelStride,
+                                mLength, mRadius, mMultiplier));
+                return;
+            }
+            for (int line = mFrom; line < mTo; line++) {
+                blurLine(line * mLineStride);
+            }
+        }
+
+        /**
+         * Slides the window along one line, the pixels past either end repeat
+         * the edge pixel
+         */
+        private void blurLine(final int start) {
+            final int[] src = mSrc;
+            final int[] dst = mDst;
+            final int stride = mPixelStride;
+            final int last = mLength - 1;
+            final int radius = mRadius;
+            final int multiplier = mMultiplier;
+
+            int sumA = 0, sumR = 0, sumG = 0, sumB = 0;
+            for (int i = -radius; i <= radius; i++) {
+                final int p = src[start + Math.min(last, Math.max(i, 0)) * stride];
+                sumA += p >>> 24;
+                sumR += (p >> 16) & 0xff;
+                sumG += (p >> 8) & 0xff;
+                sumB += p & 0xff;
+            }
+
+            int index = start;
+            for (int i = 0; i <= last; i++) {
+                dst[index] = ((sumA * multiplier + DIVISOR_ROUNDING) >>> DIVISOR_SHIFT) << 24
+                        | ((sumR * multiplier + DIVISOR_ROUNDING) >>> DIVISOR_SHIFT) << 16
+                        | ((sumG * multiplier + DIVISOR_ROUNDING) >>> DIVISOR_SHIFT) << 8
+                        | ((sumB * multiplier + DIVISOR_ROUNDING) >>> DIVISOR_SHIFT);
+
+                final int in = src[start + Math.min(last, i + radius + 1) * stride];
+                final int out = src[start + Math.max(0, i - radius) * stride];
+                sumA += (in >>> 24) - (out >>> 24);
+                sumR += ((in >> 16) & 0xff) - ((out >> 16) & 0xff);
+                sumG += ((in >> 8) & 0xff) - ((out >> 8) & 0xff);
+                sumB += (in & 0xff) - (out & 0xff);
+                index += stride;
+            }
+        }
+    }
+}
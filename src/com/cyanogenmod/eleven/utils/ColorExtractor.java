@@ -0,0 +1,446 @@
+/*
+* Copyright (C) 2015 The CyanogenMod Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.cyanogenmod.eleven.utils;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+
+import com.cyanogenmod.eleven.utils.BitmapWithColors.BitmapColors;
+
+/**
+ * Extracts the vibrant, dark vibrant, light vibrant and dominant colors of a
+ * bitmap. Only a {@link #GRID_SIZE} x {@link #GRID_SIZE} grid of pixels is
+ * sampled, no matter how large the bitmap is. The samples are quantized to 5
+ * bits per channel, reduced to at most {@link #MAX_SWATCHES} swatches with a
+ * median cut, and the swatches are scored the same way the default palette
+ * targets score them.
+ * <p>
+ * Each thread keeps its own scratch buffers, so this is thread safe and
+ * doesn't allocate anything but the result once a thread has warmed up.
+ */
+public final class ColorExtractor {
+
+    /**
+     * Number of samples taken along each edge of the bitmap
+     */
+    private static final int GRID_SIZE = 64;
+
+    private static final int MAX_SAMPLES = GRID_SIZE * GRID_SIZE;
+
+    /**
+     * Number of colors the samples are reduced to
+     */
+    private static final int MAX_SWATCHES = 16;
+
+    private static final int QUANTIZE_BITS = 5;
+
+    private static final int QUANTIZE_MAX = (1 << QUANTIZE_BITS) - 1;
+
+    private static final int HISTOGRAM_SIZE = 1 << (QUANTIZE_BITS * 3);
+
+    /**
+     * Samples more transparent than this don't count
+     */
+    private static final int MIN_ALPHA = 0x80;
+
+    /**
+     * Colors this close to black or white don't make good swatches
+     */
+    private static final float BLACK_MAX_LIGHTNESS = 0.05f;
+    private static final float WHITE_MIN_LIGHTNESS = 0.95f;
+
+    private static final float MIN_VIBRANT_SATURATION = 0.35f;
+    private static final float TARGET_VIBRANT_SATURATION = 1f;
+
+    private static final float MIN_LIGHT_LIGHTNESS = 0.55f;
+    private static final float TARGET_LIGHT_LIGHTNESS = 0.74f;
+
+    private static final float MIN_NORMAL_LIGHTNESS = 0.3f;
+    private static final float TARGET_NORMAL_LIGHTNESS = 0.5f;
+    private static final float MAX_NORMAL_LIGHTNESS = 0.7f;
+
+    private static final float TARGET_DARK_LIGHTNESS = 0.26f;
+    private static final float MAX_DARK_LIGHTNESS = 0.45f;
+
+    private static final float WEIGHT_SATURATION = 0.24f;
+    private static final float WEIGHT_LIGHTNESS = 0.52f;
+    private static final float WEIGHT_POPULATION = 0.24f;
+
+    private static final int RED = 0;
+    private static final int GREEN = 1;
+    private static final int BLUE = 2;
+
+    /**
+     * Everything a single extraction works with, kept per thread
+     */
+    private static final class Scratch {
+        /** One row of the bitmap, grows with the widest bitmap seen */
+        int[] mRow = new int[0];
+        final int[] mSamples = new int[MAX_SAMPLES];
+        /** Population of each quantized color */
+        final int[] mHistogram = new int[HISTOGRAM_SIZE];
+        /** The distinct quantized colors, reordered by the median cut */
+        final int[] mColors = new int[MAX_SAMPLES];
+        final int[] mComponentCounts = new int[QUANTIZE_MAX + 1];
+
+        final int[] mBoxLower = new int[MAX_SWATCHES];
+        final int[] mBoxUpper = new int[MAX_SWATCHES];
+        final int[] mBoxMin = new int[MAX_SWATCHES * 3];
+        final int[] mBoxMax = new int[MAX_SWATCHES * 3];
+
+        final int[] mSwatchRgb = new int[MAX_SWATCHES];
+        final int[] mSwatchPopulation = new int[MAX_SWATCHES];
+        final float[] mSwatchSaturation = new float[MAX_SWATCHES];
+        final float[] mSwatchLightness = new float[MAX_SWATCHES];
+        final boolean[] mSwatchUsed = new boolean[MAX_SWATCHES];
+    }
+
+    private static final ThreadLocal<Scratch> sScratch = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+
+    /** This class is never instantiated */
+    private ColorExtractor() {
+    }
+
+    /**
+     * Extracts the colors of a bitmap. This reads at most {@link #GRID_SIZE}
+     * rows of the bitmap, but don't call it on the main thread regardless.
+     *
+     * @param bitmap The {@link Bitmap} to extract the colors of
+     * @return The colors, transparent where the bitmap has no such color
+     */
+    public static BitmapColors extract(final Bitmap bitmap) {
+        final Scratch scratch = sScratch.get();
+        final int width = bitmap.getWidth();
+        final int height = bitmap.getHeight();
+        final int columns = Math.min(GRID_SIZE, width);
+        final int rows = Math.min(GRID_SIZE, height);
+        if (scratch.mRow.length < width) {
+            scratch.mRow = new int[width];
+        }
+
+        int count = 0;
+        for (int gy = 0; gy < rows; gy++) {
+            // sample the middle of each grid cell
+            final int y = (int)((2L * gy + 1) * height / (2 * rows));
+            bitmap.getPixels(scratch.mRow, 0, width, 0, y, width, 1);
+            for (int gx = 0; gx < columns; gx++) {
+                scratch.mSamples[count++] = scratch.mRow[(int)((2L * gx + 1) * width
+                        / (2 * columns))];
+            }
+        }
+        return extract(scratch, scratch.mSamples, count);
+    }
+
+    /**
+     * Extracts the colors of already sampled pixels
+     *
+     * @param pixels Packed ARGB pixels
+     * @param count The number of pixels to use, anything above the
+     *            {@link #GRID_SIZE} squared is skipped evenly
+     * @return The colors, transparent where the pixels have no such color
+     */
+    public static BitmapColors extract(final int[] pixels, final int count) {
+        final Scratch scratch = sScratch.get();
+        if (count <= MAX_SAMPLES) {
+            return extract(scratch, pixels, count);
+        }
+        for (int i = 0; i < MAX_SAMPLES; i++) {
+            scratch.mSamples[i] = pixels[(int)((long)i * count / MAX_SAMPLES)];
+        }
+        return extract(scratch, scratch.mSamples, MAX_SAMPLES);
+    }
+
+    private static BitmapColors extract(final Scratch scratch, final int[] samples,
+            final int count) {
+        final int[] histogram = scratch.mHistogram;
+        final int[] colors = scratch.mColors;
+
+        // build the histogram and the list of distinct colors
+        int distinct = 0;
+        for (int i = 0; i < count; i++) {
+            final int pixel = samples[i];
+            if ((pixel >>> 24) < MIN_ALPHA) {
+                continue;
+            }
+            final int quantized = ((pixel >> (16 + 8 - QUANTIZE_BITS)) & QUANTIZE_MAX)
+                    << (QUANTIZE_BITS * 2)
+                    | ((pixel >> (8 + 8 - QUANTIZE_BITS)) & QUANTIZE_MAX) << QUANTIZE_BITS
+                    | ((pixel >> (8 - QUANTIZE_BITS)) & QUANTIZE_MAX);
+            if (histogram[quantized]++ == 0) {
+                colors[distinct++] = quantized;
+            }
+        }
+
+        // drop the colors close to black and white
+        int kept = 0;
+        for (int i = 0; i < distinct; i++) {
+            final int color = colors[i];
+            final float lightness = lightness(expand(component(color, RED)),
+                    expand(component(color, GREEN)), expand(component(color, BLUE)));
+            if (lightness <= BLACK_MAX_LIGHTNESS || lightness >= WHITE_MIN_LIGHTNESS) {
+                histogram[color] = 0;
+            } else {
+                colors[kept++] = color;
+            }
+        }
+
+        final int swatches = medianCut(scratch, kept);
+        for (int i = 0; i < swatches; i++) {
+            createSwatch(scratch, i);
+        }
+
+        // the histogram is cleared as we go so the next call starts from zero
+        for (int i = 0; i < kept; i++) {
+            histogram[colors[i]] = 0;
+        }
+
+        int maxPopulation = 0;
+        int dominant = -1;
+        for (int i = 0; i < swatches; i++) {
+            scratch.mSwatchUsed[i] = false;
+            if (scratch.mSwatchPopulation[i] > maxPopulation) {
+                maxPopulation = scratch.mSwatchPopulation[i];
+                dominant = i;
+            }
+        }
+
+        final int light = findSwatch(scratch, swatches, maxPopulation, MIN_LIGHT_LIGHTNESS,
+                TARGET_LIGHT_LIGHTNESS, 1f);
+        final int vibrant = findSwatch(scratch, swatches, maxPopulation, MIN_NORMAL_LIGHTNESS,
+                TARGET_NORMAL_LIGHTNESS, MAX_NORMAL_LIGHTNESS);
+        final int dark = findSwatch(scratch, swatches, maxPopulation, 0f,
+                TARGET_DARK_LIGHTNESS, MAX_DARK_LIGHTNESS);
+
+        return new BitmapColors(rgbOf(scratch, vibrant), rgbOf(scratch, dark),
+                rgbOf(scratch, light), rgbOf(scratch, dominant));
+    }
+
+    /**
+     * Splits the distinct colors into boxes until there are
+     * {@link #MAX_SWATCHES} of them or none can be split any further
+     *
+     * @return The number of boxes
+     */
+    private static int medianCut(final Scratch scratch, final int distinct) {
+        if (distinct == 0) {
+            return 0;
+        }
+        scratch.mBoxLower[0] = 0;
+        scratch.mBoxUpper[0] = distinct - 1;
+        fitBox(scratch, 0);
+        int boxes = 1;
+
+        while (boxes < MAX_SWATCHES) {
+            // split the box spanning the largest volume of the color space
+            int box = -1;
+            int largestVolume = 1;
+            for (int i = 0; i < boxes; i++) {
+                final int volume = volume(scratch, i);
+                if (volume > largestVolume) {
+                    largestVolume = volume;
+                    box = i;
+                }
+            }
+            if (box < 0) {
+                break;
+            }
+
+            final int dimension = longestDimension(scratch, box);
+            final int splitValue = findSplitValue(scratch, box, dimension);
+
+            // move the colors up to the split value to the front of the box
+            final int[] colors = scratch.mColors;
+            int left = scratch.mBoxLower[box];
+            int right = scratch.mBoxUpper[box];
+            while (left <= right) {
+                if (component(colors[left], dimension) <= splitValue) {
+                    left++;
+                } else {
+                    final int swap = colors[left];
+                    colors[left] = colors[right];
+                    colors[right--] = swap;
+                }
+            }
+
+            scratch.mBoxLower[boxes] = left;
+            scratch.mBoxUpper[boxes] = scratch.mBoxUpper[box];
+            scratch.mBoxUpper[box] = left - 1;
+            fitBox(scratch, box);
+            fitBox(scratch, boxes);
+            boxes++;
+        }
+        return boxes;
+    }
+
+    /**
+     * Computes the bounds of the colors in a box
+     */
+    private static void fitBox(final Scratch scratch, final int box) {
+        final int base = box * 3;
+        for (int d = RED; d <= BLUE; d++) {
+            scratch.mBoxMin[base + d] = QUANTIZE_MAX;
+            scratch.mBoxMax[base + d] = 0;
+        }
+        for (int i = scratch.mBoxLower[box]; i <= scratch.mBoxUpper[box]; i++) {
+            final int color = scratch.mColors[i];
+            for (int d = RED; d <= BLUE; d++) {
+                final int value = component(color, d);
+                if (value < scratch.mBoxMin[base + d]) {
+                    scratch.mBoxMin[base + d] = value;
+                }
+                if (value > scratch.mBoxMax[base + d]) {
+                    scratch.mBoxMax[base + d] = value;
+                }
+            }
+        }
+    }
+
+    private static int volume(final Scratch scratch, final int box) {
+        final int base = box * 3;
+        return (scratch.mBoxMax[base + RED] - scratch.mBoxMin[base + RED] + 1)
+                * (scratch.mBoxMax[base + GREEN] - scratch.mBoxMin[base + GREEN] + 1)
+                * (scratch.mBoxMax[base + BLUE] - scratch.mBoxMin[base + BLUE] + 1);
+    }
+
+    private static int longestDimension(final Scratch scratch, final int box) {
+        final int base = box * 3;
+        int longest = RED;
+        for (int d = GREEN; d <= BLUE; d++) {
+            if (scratch.mBoxMax[base + d] - scratch.mBoxMin[base + d]
+                    > scratch.mBoxMax[base + longest] - scratch.mBoxMin[base + longest]) {
+                longest = d;
+            }
+        }
+        return longest;
+    }
+
+    /**
+     * @return The value along the dimension that splits the population of the
+     *         box in half, short of the maximum so neither half is empty
+     */
+    private static int findSplitValue(final Scratch scratch, final int box, final int dimension) {
+        final int[] counts = scratch.mComponentCounts;
+        final int min = scratch.mBoxMin[box * 3 + dimension];
+        final int max = scratch.mBoxMax[box * 3 + dimension];
+        for (int v = min; v <= max; v++) {
+            counts[v] = 0;
+        }
+        int population = 0;
+        for (int i = scratch.mBoxLower[box]; i <= scratch.mBoxUpper[box]; i++) {
+            final int color = scratch.mColors[i];
+            final int weight = scratch.mHistogram[color];
+            counts[component(color, dimension)] += weight;
+            population += weight;
+        }
+
+        final int half = population / 2;
+        int sum = 0;
+        for (int v = min; v < max; v++) {
+            sum += counts[v];
+            if (sum >= half) {
+                return v;
+            }
+        }
+        return max - 1;
+    }
+
+    /**
+     * Averages the colors of a box, weighted by their population
+     */
+    private static void createSwatch(final Scratch scratch, final int box) {
+        long red = 0, green = 0, blue = 0;
+        int population = 0;
+        for (int i = scratch.mBoxLower[box]; i <= scratch.mBoxUpper[box]; i++) {
+            final int color = scratch.mColors[i];
+            final int weight = scratch.mHistogram[color];
+            red += (long)component(color, RED) * weight;
+            green += (long)component(color, GREEN) * weight;
+            blue += (long)component(color, BLUE) * weight;
+            population += weight;
+        }
+
+        final int r = Math.round(red * 255f / (population * (float)QUANTIZE_MAX));
+        final int g = Math.round(green * 255f / (population * (float)QUANTIZE_MAX));
+        final int b = Math.round(blue * 255f / (population * (float)QUANTIZE_MAX));
+
+        final int max = Math.max(r, Math.max(g, b));
+        final int min = Math.min(r, Math.min(g, b));
+        final float lightness = (max + min) / (2f * 255f);
+        final float saturation = max == min ? 0f
+                : (max - min) / (255f * (1f - Math.abs(2f * lightness - 1f)));
+
+        scratch.mSwatchRgb[box] = Color.rgb(r, g, b);
+        scratch.mSwatchPopulation[box] = population;
+        scratch.mSwatchSaturation[box] = Math.min(1f, saturation);
+        scratch.mSwatchLightness[box] = lightness;
+    }
+
+    /**
+     * Picks the unused vibrant swatch that scores best for the lightness range
+     *
+     * @return The index of the swatch, or -1 if none fits
+     */
+    private static int findSwatch(final Scratch scratch, final int swatches,
+            final int maxPopulation, final float minLightness, final float targetLightness,
+            final float maxLightness) {
+        int best = -1;
+        float bestScore = 0f;
+        for (int i = 0; i < swatches; i++) {
+            final float saturation = scratch.mSwatchSaturation[i];
+            final float lightness = scratch.mSwatchLightness[i];
+            if (scratch.mSwatchUsed[i] || saturation < MIN_VIBRANT_SATURATION
+                    || lightness < minLightness || lightness > maxLightness) {
+                continue;
+            }
+            final float score = WEIGHT_SATURATION
+                    * (1f - Math.abs(saturation - TARGET_VIBRANT_SATURATION))
+                    + WEIGHT_LIGHTNESS * (1f - Math.abs(lightness - targetLightness))
+                    + WEIGHT_POPULATION * scratch.mSwatchPopulation[i] / maxPopulation;
+            if (best < 0 || score > bestScore) {
+                best = i;
+                bestScore = score;
+            }
+        }
+        if (best >= 0) {
+            scratch.mSwatchUsed[best] = true;
+        }
+        return best;
+    }
+
+    private static int rgbOf(final Scratch scratch, final int swatch) {
+        return swatch >= 0 ? scratch.mSwatchRgb[swatch] : Color.TRANSPARENT;
+    }
+
+    private static int component(final int quantized, final int dimension) {
+        return (quantized >> (QUANTIZE_BITS * (BLUE - dimension))) & QUANTIZE_MAX;
+    }
+
+    /**
+     * @return The 8 bit value of a quantized component
+     */
+    private static int expand(final int value) {
+        return (value << (8 - QUANTIZE_BITS)) | (value >> (QUANTIZE_BITS * 2 - 8));
+    }
+
+    private static float lightness(final int r, final int g, final int b) {
+        return (Math.max(r, Math.max(g, b)) + Math.min(r, Math.min(g, b))) / (2f * 255f);
+    }
+}
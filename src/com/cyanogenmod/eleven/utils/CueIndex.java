@@ -0,0 +1,242 @@
+/*
+* Copyright (C) 2015 The CyanogenMod Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.cyanogenmod.eleven.utils;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * The timed text cues of a subtitle or lyrics file, sorted by start time.
+ * Only the times and where each text sits in the file are kept in memory,
+ * the text is read from the file when it is needed, so files with thousands
+ * of cues stay small and can be searched by time in O(log n).
+ */
+public class CueIndex {
+    private static final String TAG = CueIndex.class.getSimpleName();
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File mFile;
+    private final int mSize;
+    private final long[] mStartTimes;
+    private final long[] mEndTimes;
+    private final long[] mTextOffsets;
+    private final int[] mTextLengths;
+
+    /* The last text read, cues usually come one at a time */
+    private int mCachedIndex = -1;
+    private String mCachedText;
+
+    private CueIndex(final Builder builder) {
+        mFile = builder.mFile;
+        mSize = builder.mSize;
+        mStartTimes = builder.mStartTimes;
+        mEndTimes = builder.mEndTimes;
+        mTextOffsets = builder.mTextOffsets;
+        mTextLengths = builder.mTextLengths;
+    }
+
+    /**
+     * @return The number of cues
+     */
+    public int size() {
+        return mSize;
+    }
+
+    public long getStartTime(final int index) {
+        return mStartTimes[index];
+    }
+
+    public long getEndTime(final int index) {
+        return mEndTimes[index];
+    }
+
+    /**
+     * @param timeMs A time in the track, in ms
+     * @return The index of the last cue that starts at or before that time, or
+     *         -1 if none does. The cue may have ended already.
+     */
+    public int findCue(final long timeMs) {
+        int low = 0;
+        int high = mSize - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            if (mStartTimes[mid] <= timeMs) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return high;
+    }
+
+    /**
+     * Reads the text of a cue from the file. This hits the disk unless it is
+     * the same cue as last time, so call it off the main thread.
+     *
+     * @param index The index of the cue
+     * @return The text of the cue, with lines separated by \n, or null if it
+     *         couldn't be read
+     */
+    public synchronized String getText(final int index) {
+        if (index == mCachedIndex) {
+            return mCachedText;
+        }
+
+        String text = null;
+        RandomAccessFile file = null;
+        try {
+            final byte[] bytes = new byte[mTextLengths[index]];
+            file = new RandomAccessFile(mFile, "r");
+            file.seek(mTextOffsets[index]);
+            file.readFully(bytes);
+            text = new String(bytes, UTF_8).replace("\r", "");
+        } catch (final IOException e) {
+            Log.e(TAG, "getText - " + e);
+        } finally {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (final IOException e) {
+                    Log.e(TAG, "getText - " + e);
+                }
+            }
+        }
+
+        mCachedIndex = index;
+        mCachedText = text;
+        return text;
+    }
+
+    /**
+     * Collects the cues while a file is parsed
+     */
+    static final class Builder {
+        private final File mFile;
+        private int mSize = 0;
+        private long[] mStartTimes = new long[64];
+        private long[] mEndTimes = new long[64];
+        private long[] mTextOffsets = new long[64];
+        private int[] mTextLengths = new int[64];
+
+        Builder(final File file) {
+            mFile = file;
+        }
+
+        int size() {
+            return mSize;
+        }
+
+        /**
+         * @param endTimeMs The end of the cue, or -1 to end it where the next
+         *            one starts
+         */
+        void add(final long startTimeMs, final long endTimeMs, final long textOffset,
+                final int textLength) {
+            if (mSize == mStartTimes.length) {
+                final int capacity = mSize * 2;
+                mStartTimes = Arrays.copyOf(mStartTimes, capacity);
+                mEndTimes = Arrays.copyOf(mEndTimes, capacity);
+                mTextOffsets = Arrays.copyOf(mTextOffsets, capacity);
+                mTextLengths = Arrays.copyOf(mTextLengths, capacity);
+            }
+            mStartTimes[mSize] = startTimeMs;
+            mEndTimes[mSize] = endTimeMs;
+            mTextOffsets[mSize] = textOffset;
+            mTextLengths[mSize] = textLength;
+            mSize++;
+        }
+
+        /**
+         * Shifts every cue, for the offset tag of lrc files
+         */
+        void shift(final long deltaMs) {
+            for (int i = 0; i < mSize; i++) {
+                mStartTimes[i] = Math.max(0, mStartTimes[i] + deltaMs);
+                if (mEndTimes[i] >= 0) {
+                    mEndTimes[i] = Math.max(0, mEndTimes[i] + deltaMs);
+                }
+            }
+        }
+
+        CueIndex build() {
+            sortIfNeeded();
+
+            // open ended cues last until the next cue that starts later, or forever
+            long later = Long.MAX_VALUE;
+            for (int i = mSize - 1; i >= 0; i--) {
+                if (i + 1 < mSize && mStartTimes[i + 1] > mStartTimes[i]) {
+                    later = mStartTimes[i + 1];
+                }
+                if (mEndTimes[i] < 0) {
+                    mEndTimes[i] = later;
+                }
+            }
+            return new CueIndex(this);
+        }
+
+        /**
+         * Sorts the cues by start time. Files are usually in order already, lrc
+         * files with a line sung more than once aren't.
+         */
+        private void sortIfNeeded() {
+            boolean sorted = true;
+            for (int i = 1; i < mSize && sorted; i++) {
+                sorted = mStartTimes[i - 1] <= mStartTimes[i];
+            }
+            if (sorted) {
+                return;
+            }
+
+            final Integer[] order = new Integer[mSize];
+            for (int i = 0; i < mSize; i++) {
+                order[i] = i;
+            }
+            final long[] startTimes = mStartTimes;
+            // stable, so cues starting together keep the order of the file
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(final Integer lhs, final Integer rhs) {
+                    final long left = startTimes[lhs];
+                    final long right = startTimes[rhs];
+                    return left < right ? -1 : (left == right ? 0 : 1);
+                }
+            });
+
+            final long[] sortedStarts = new long[mSize];
+            final long[] sortedEnds = new long[mSize];
+            final long[] sortedOffsets = new long[mSize];
+            final int[] sortedLengths = new int[mSize];
+            for (int i = 0; i < mSize; i++) {
+                final int from = order[i];
+                sortedStarts[i] = mStartTimes[from];
+                sortedEnds[i] = mEndTimes[from];
+                sortedOffsets[i] = mTextOffsets[from];
+                sortedLengths[i] = mTextLengths[from];
+            }
+            mStartTimes = sortedStarts;
+            mEndTimes = sortedEnds;
+            mTextOffsets = sortedOffsets;
+            mTextLengths = sortedLengths;
+        }
+    }
+}
@@ -21,30 +21,39 @@ import android.graphics.BitmapFactory;
 import android.widget.ImageView;
 
 import com.cyanogenmod.eleven.cache.ImageCache;
+import com.cyanogenmod.eleven.cache.ImageCache.ImageTier;
 import com.cyanogenmod.eleven.cache.ImageWorker;
 import com.cyanogenmod.eleven.lastfm.ImageSize;
 import com.cyanogenmod.eleven.lastfm.MusicEntry;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
 
 public class ImageUtils {
-    private static final String DEFAULT_HTTP_CACHE_DIR = "http"; //$NON-NLS-1$
-
-    public static final int IO_BUFFER_SIZE_BYTES = 1024;
-
     private static final int DEFAULT_MAX_IMAGE_HEIGHT = 1024;
 
     private static final int DEFAULT_MAX_IMAGE_WIDTH = 1024;
 
-    private static AtomicInteger sInteger = new AtomicInteger(0);
+    private static final int CONNECT_TIMEOUT_MS = 15 * 1000;
+
+    private static final int READ_TIMEOUT_MS = 30 * 1000;
+
+    /* Size of a new download buffer when the response doesn't announce its length */
+    private static final int INITIAL_DOWNLOAD_BUFFER_SIZE = 64 * 1024;
+
+    /* Responses larger than this aren't artwork we want to keep */
+    private static final int MAX_DOWNLOAD_SIZE = 8 * 1024 * 1024;
+
+    /* Buffers that grew larger than this aren't put back in the pool */
+    private static final int MAX_POOLED_BUFFER_SIZE = 1024 * 1024;
+
+    /* Download buffers reused between downloads, one per concurrent download is plenty */
+    private static final ArrayBlockingQueue<byte[]> sBufferPool =
+            new ArrayBlockingQueue<byte[]>(2);
 
     /**
      * Gets the image url based on the imageType
@@ -91,53 +100,130 @@ public class ImageUtils {
     }
 
     /**
-     * Downloads the bitmap from the url and returns it after some processing
+     * Downloads the bitmap from the url into a pooled buffer, decodes it from that buffer and
+     * adds it to the cache. When the image didn't have to be sampled down, the downloaded bytes
+     * are written to the disk cache as they are instead of encoding the bitmap again.
+     * If the host doesn't have the image, it is remembered as missing in the cache; network
+     * errors and timeouts aren't, so the image is downloaded again next time.
      *
-     * @param key The key to identify which image to process, as provided by
-     *            {@link ImageWorker#loadImage(mKey, android.widget.ImageView)}
-     * @return The processed {@link Bitmap}.
+     * @param url The url of the image
+     * @param imageCache The cache to add the image to, may be null
+     * @param key The key to store the image under
+     * @param tier The tier the caller is going to display
+     * @return The processed {@link Bitmap}, sized for the tier if it was cached
      */
-    public static Bitmap processBitmap(final Context context, final String url) {
+    public static Bitmap processBitmap(final String url, final ImageCache imageCache,
+                                       final String key, final ImageTier tier) {
         if (url == null) {
             return null;
         }
-        final File file = downloadBitmapToFile(context, url, DEFAULT_HTTP_CACHE_DIR);
-        if (file != null) {
-            // Return a sampled down version
-            final Bitmap bitmap = decodeSampledBitmapFromFile(file.toString());
-            file.delete();
-            if (bitmap != null) {
+
+        byte[] buffer = acquireBuffer(INITIAL_DOWNLOAD_BUFFER_SIZE);
+        HttpURLConnection urlConnection = null;
+        InputStream in = null;
+        // a fully read response leaves the connection in the pool for the next download, it is
+        // only dropped when something went wrong
+        boolean keepConnection = false;
+        try {
+            urlConnection = (HttpURLConnection)new URL(url).openConnection();
+            urlConnection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+            urlConnection.setReadTimeout(READ_TIMEOUT_MS);
+            final int responseCode = urlConnection.getResponseCode();
+            if (responseCode != HttpURLConnection.HTTP_OK) {
+                if ((responseCode == HttpURLConnection.HTTP_NOT_FOUND
+                        || responseCode == HttpURLConnection.HTTP_GONE)
+                        && key != null && imageCache != null) {
+                    imageCache.setRemoteArtworkMissing(key);
+                }
+                return null;
+            }
+
+            final int contentLength = urlConnection.getContentLength();
+            if (contentLength > MAX_DOWNLOAD_SIZE) {
+                return null;
+            }
+            if (contentLength > buffer.length) {
+                buffer = Arrays.copyOf(buffer, contentLength);
+            }
+
+            in = urlConnection.getInputStream();
+            int length = 0;
+            int numBytes;
+            while ((numBytes = in.read(buffer, length, buffer.length - length)) != -1) {
+                length += numBytes;
+                if (length == buffer.length) {
+                    if (length == contentLength) {
+                        // everything announced has arrived
+                        break;
+                    }
+                    if (length >= MAX_DOWNLOAD_SIZE) {
+                        return null;
+                    }
+                    buffer = Arrays.copyOf(buffer, Math.min(length * 2, MAX_DOWNLOAD_SIZE));
+                }
+            }
+
+            // valid values for contentLength are either -ve (meaning it wasn't set) or the
+            // number of bytes we read, anything else means the download was cut short
+            if (contentLength >= 0 && length != contentLength) {
+                return null;
+            }
+            keepConnection = true;
+
+            // decode the bounds and the pixels from the same bytes
+            final BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeByteArray(buffer, 0, length, options);
+            if (options.outWidth <= 0 || options.outHeight <= 0) {
+                return null;
+            }
+            options.inSampleSize = calculateInSampleSize(options, DEFAULT_MAX_IMAGE_WIDTH,
+                    DEFAULT_MAX_IMAGE_HEIGHT);
+            options.inJustDecodeBounds = false;
+            final Bitmap bitmap = BitmapFactory.decodeByteArray(buffer, 0, length, options);
+
+            if (bitmap == null || key == null || imageCache == null) {
                 return bitmap;
             }
+            if (options.inSampleSize == 1) {
+                return imageCache.addBitmapToCache(key, bitmap, buffer, length, tier);
+            }
+            return imageCache.addBitmapToCache(key, bitmap, false, tier);
+        } catch (final IOException ignored) {
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (final IOException ignored) {
+                }
+            }
+            if (urlConnection != null && !keepConnection) {
+                urlConnection.disconnect();
+            }
+            releaseBuffer(buffer);
         }
         return null;
     }
 
     /**
-     * Decode and sample down a {@link Bitmap} from a file to the requested
-     * width and height.
-     *
-     * @param filename The full path of the file to decode
-     * @param reqWidth The requested width of the resulting bitmap
-     * @param reqHeight The requested height of the resulting bitmap
-     * @return A {@link Bitmap} sampled down from the original with the same
-     *         aspect ratio and dimensions that are equal to or greater than the
-     *         requested width and height
+     * @param minSize The size the buffer has to have at least
+     * @return A buffer from the pool, or a new one if the pool is empty
      */
-    public static Bitmap decodeSampledBitmapFromFile(final String filename) {
-
-        // First decode with inJustDecodeBounds=true to check dimensions
-        final BitmapFactory.Options options = new BitmapFactory.Options();
-        options.inJustDecodeBounds = true;
-        BitmapFactory.decodeFile(filename, options);
-
-        // Calculate inSampleSize
-        options.inSampleSize = calculateInSampleSize(options, DEFAULT_MAX_IMAGE_WIDTH,
-                DEFAULT_MAX_IMAGE_HEIGHT);
+    private static byte[] acquireBuffer(final int minSize) {
+        final byte[] buffer = sBufferPool.poll();
+        if (buffer != null && buffer.length >= minSize) {
+            return buffer;
+        }
+        return new byte[minSize];
+    }
 
-        // Decode bitmap with inSampleSize set
-        options.inJustDecodeBounds = false;
-        return BitmapFactory.decodeFile(filename, options);
+    /**
+     * Puts a buffer back in the pool unless it grew too large or the pool is full
+     */
+    private static void releaseBuffer(final byte[] buffer) {
+        if (buffer.length <= MAX_POOLED_BUFFER_SIZE) {
+            sBufferPool.offer(buffer);
+        }
     }
 
     /**
@@ -202,71 +288,6 @@ public class ImageUtils {
         return null;
     }
 
-    /**
-     * Download a {@link Bitmap} from a URL, write it to a disk and return the
-     * File pointer. This implementation uses a simple disk cache.
-     *
-     * @param context The context to use
-     * @param urlString The URL to fetch
-     * @return A {@link File} pointing to the fetched bitmap
-     */
-    public static final File downloadBitmapToFile(final Context context, final String urlString,
-                                                  final String uniqueName) {
-        final File cacheDir = ImageCache.getDiskCacheDir(context, uniqueName);
-
-        if (!cacheDir.exists()) {
-            cacheDir.mkdir();
-        }
-
-        HttpURLConnection urlConnection = null;
-        BufferedOutputStream out = null;
-
-        try {
-            // increment the number to not collisions on the temp file name.  A collision can
-            // potentially cause up to 50s on the first creation of the temp file but not on
-            // subsequent ones for some reason.
-            int number = sInteger.getAndIncrement() % 10;
-            final File tempFile = File.createTempFile("bitmap" + number, null, cacheDir); //$NON-NLS-1$
-
-            final URL url = new URL(urlString);
-            urlConnection = (HttpURLConnection)url.openConnection();
-            if (urlConnection.getResponseCode() != HttpURLConnection.HTTP_OK) {
-                return null;
-            }
-            int contentLength = urlConnection.getContentLength();
-            final InputStream in = new BufferedInputStream(urlConnection.getInputStream(),
-                    IO_BUFFER_SIZE_BYTES);
-            out = new BufferedOutputStream(new FileOutputStream(tempFile), IO_BUFFER_SIZE_BYTES);
-
-            final byte[] buffer = new byte[IO_BUFFER_SIZE_BYTES];
-            int numBytes;
-            while ((numBytes = in.read(buffer)) != -1) {
-                out.write(buffer, 0, numBytes);
-                contentLength -= numBytes;
-            }
-
-            // valid values for contentLength are either -ve (meaning it wasn't set) or 0
-            // if it is  > 0 that means we got a value but didn't fully download the content
-            if (contentLength > 0) {
-                return null;
-            }
-
-            return tempFile;
-        } catch (final IOException ignored) {
-        } finally {
-            if (urlConnection != null) {
-                urlConnection.disconnect();
-            }
-            if (out != null) {
-                try {
-                    out.close();
-                } catch (final IOException ignored) {
-                }
-            }
-        }
-        return null;
-    }
-
     /**
      * Scale the bitmap to an image view. The bitmap will fill the image view bounds. The bitmap will be scaled
      * while maintaining the aspect ratio and cropped if it exceeds the image-view bounds.
@@ -61,6 +61,8 @@ import com.cyanogenmod.eleven.model.Song;
 import com.cyanogenmod.eleven.provider.RecentStore;
 import com.cyanogenmod.eleven.provider.SongPlayCount;
 import com.cyanogenmod.eleven.service.MusicPlaybackTrack;
+import com.cyanogenmod.eleven.service.PlaybackSnapshot;
+import com.cyanogenmod.eleven.service.QueueChanges;
 
 import java.io.File;
 import java.util.Arrays;
@@ -83,6 +85,13 @@ public final class MusicUtils {
 
     private static ContentValues[] mContentValuesCache = null;
 
+    /* The last snapshot fetched from the service, only fetched again once it changed */
+    private static volatile PlaybackSnapshot sPlaybackSnapshot = PlaybackSnapshot.EMPTY;
+
+    /* A copy of the queue, kept up to date with the changes since its version */
+    private static long[] sQueue = new long[0];
+    private static long sQueueVersion = -1;
+
     private static final int MIN_VALID_YEAR = 1900; // used to remove invalid years from metadata
 
     public static final String MUSIC_ONLY_SELECTION = MediaStore.Audio.AudioColumns.IS_MUSIC + "=1"
@@ -137,6 +146,7 @@ public final class MusicUtils {
         mContextWrapper.unbindService(mBinder);
         if (mConnectionMap.isEmpty()) {
             mService = null;
+            resetServiceCaches();
         }
     }
 
@@ -155,6 +165,8 @@ public final class MusicUtils {
         @Override
         public void onServiceConnected(final ComponentName className, final IBinder service) {
             mService = IElevenService.Stub.asInterface(service);
+            // a new service counts its versions from scratch
+            resetServiceCaches();
             if (mCallback != null) {
                 mCallback.onServiceConnected(className, service);
             }
@@ -166,6 +178,7 @@ public final class MusicUtils {
                 mCallback.onServiceDisconnected(className);
             }
             mService = null;
+            resetServiceCaches();
         }
     }
 
@@ -399,6 +412,37 @@ public final class MusicUtils {
         }
     }
 
+    /**
+     * Forgets what was cached from the service
+     */
+    private static synchronized void resetServiceCaches() {
+        sPlaybackSnapshot = PlaybackSnapshot.EMPTY;
+        sQueue = sEmptyList;
+        sQueueVersion = -1;
+    }
+
+    /**
+     * Gets most of the playback state in a single binder call, use it rather
+     * than the single getters when more than one or two values are needed.
+     * The snapshot is only sent over again when it changed.
+     *
+     * @return The state of the service, which is empty if it isn't connected.
+     */
+    public static final PlaybackSnapshot getPlaybackSnapshot() {
+        final PlaybackSnapshot cached = sPlaybackSnapshot;
+        if (mService != null) {
+            try {
+                final PlaybackSnapshot snapshot = mService.getPlaybackSnapshot(cached.mVersion);
+                if (snapshot != null) {
+                    sPlaybackSnapshot = snapshot;
+                    return snapshot;
+                }
+            } catch (final RemoteException ignored) {
+            }
+        }
+        return cached;
+    }
+
     /**
      * @return True if we're playing music, false otherwise.
      */
@@ -582,13 +626,79 @@ public final class MusicUtils {
     }
 
     /**
-     * @return The queue.
+     * Gets the queue without sending all of it over binder each time: once the
+     * queue is known only what changed since is sent, and when it has to be
+     * read again it is read in parts.
+     *
+     * @return The queue, a copy the caller may modify.
      */
-    public static final long[] getQueue() {
+    public static final synchronized long[] getQueue() {
         try {
             if (mService != null) {
-                return mService.getQueue();
+                updateQueue();
+                return sQueue.clone();
+            }
+        } catch (final RemoteException ignored) {
+        }
+        return sEmptyList;
+    }
+
+    /**
+     * Brings the cached queue up to date with the service
+     */
+    private static void updateQueue() throws RemoteException {
+        final long version = mService.getQueueVersion();
+        if (version != sQueueVersion) {
+            final QueueChanges changes = sQueueVersion >= 0
+                    ? mService.getQueueChangesSince(sQueueVersion) : null;
+            if (changes != null) {
+                sQueue = changes.apply(sQueue);
+                sQueueVersion = changes.mToVersion;
             } else {
+                loadQueue();
+            }
+        }
+    }
+
+    /**
+     * Reads the whole queue again, a part at a time
+     */
+    private static void loadQueue() throws RemoteException {
+        // a change in between the parts means starting over, give up after a few
+        for (int attempt = 0; attempt < 3; attempt++) {
+            final long version = mService.getQueueVersion();
+            final long[] queue = new long[mService.getQueueSize()];
+            int loaded = 0;
+            while (loaded < queue.length) {
+                final long[] range = mService.getQueueRange(loaded,
+                        MusicPlaybackService.MAX_QUEUE_TRANSFER);
+                if (range.length == 0) {
+                    break;
+                }
+                final int length = Math.min(range.length, queue.length - loaded);
+                System.arraycopy(range, 0, queue, loaded, length);
+                loaded += length;
+            }
+            if (loaded == queue.length && mService.getQueueVersion() == version) {
+                sQueue = queue;
+                sQueueVersion = version;
+                return;
+            }
+        }
+        // not worth keeping, it will be read again next time
+        sQueue = sEmptyList;
+        sQueueVersion = -1;
+    }
+
+    /**
+     * @param start The position of the first track
+     * @param count The number of tracks
+     * @return The track ids of that part of the queue, which may be shorter than count
+     */
+    public static final long[] getQueueRange(final int start, final int count) {
+        try {
+            if (mService != null) {
+                return mService.getQueueRange(start, count);
             }
         } catch (final RemoteException ignored) {
         }
@@ -610,6 +720,51 @@ public final class MusicUtils {
         return -1;
     }
 
+    /**
+     * @param count The maximum number of tracks to return
+     * @return The ids of the tracks that are likely to play after the current
+     *         one, the next one first. When shuffling only the next pick is known.
+     */
+    public static final long[] getUpcomingAudioIds(final int count) {
+        if (mService == null || count <= 0) {
+            return sEmptyList;
+        }
+
+        // the modes and the position are read together, from one snapshot
+        final PlaybackSnapshot snapshot = getPlaybackSnapshot();
+        if (snapshot.mRepeatMode == MusicPlaybackService.REPEAT_CURRENT) {
+            return sEmptyList;
+        }
+        if (snapshot.mShuffleMode != MusicPlaybackService.SHUFFLE_NONE) {
+            return snapshot.mNextAudioId >= 0 ? new long[] { snapshot.mNextAudioId }
+                    : sEmptyList;
+        }
+
+        synchronized (MusicUtils.class) {
+            try {
+                updateQueue();
+            } catch (final RemoteException ignored) {
+                return sEmptyList;
+            }
+            // the position only means something in the queue of the snapshot, it
+            // changed in between so there is nothing reliable to return
+            if (sQueueVersion != snapshot.mQueueVersion) {
+                return sEmptyList;
+            }
+
+            final int queueSize = sQueue.length;
+            final int position = snapshot.mQueuePosition;
+            final int remaining = snapshot.mRepeatMode == MusicPlaybackService.REPEAT_ALL
+                    ? queueSize - 1 : queueSize - position - 1;
+            final int length = Math.max(0, Math.min(count, remaining));
+            final long[] ids = new long[length];
+            for (int i = 0; i < length; i++) {
+                ids[i] = sQueue[(position + 1 + i) % queueSize];
+            }
+            return ids;
+        }
+    }
+
     /**
      * @return the current queue size
      */
@@ -1278,6 +1433,10 @@ public final class MusicUtils {
             }, selection, null, null
         );
 
+        if (cursor == null) {
+            return null;
+        }
+
         if (!cursor.moveToFirst()) {
             cursor.close();
             return null;
@@ -0,0 +1,299 @@
+/*
+* Copyright (C) 2015 The CyanogenMod Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.cyanogenmod.eleven.utils;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.provider.MediaStore;
+import android.text.TextUtils;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Knows which tracks have a subtitle or lyrics file next to them. The
+ * directories of the tracks are listed in the background and kept in memory
+ * along with the file paths of the content uris, so a lookup never queries
+ * the provider or touches the disk. A directory is listed again when its last
+ * modified time changes, which is checked in the background at most every
+ * {@link #REVALIDATE_INTERVAL_MS}.
+ */
+public class SidecarFileIndex {
+    private static final String TAG = SidecarFileIndex.class.getSimpleName();
+
+    /* The sidecar extensions, the first one wins if a track has both */
+    private static final String[] EXTENSIONS = { ".srt", ".lrc" };
+
+    private static final long REVALIDATE_INTERVAL_MS = 30 * 1000;
+
+    private static final int MAX_DIRECTORIES = 256;
+
+    private static final int MAX_FILE_PATHS = 1024;
+
+    /**
+     * Told about the sidecar of a track that wasn't known when it was looked up
+     */
+    public interface Callback {
+        /**
+         * Called on a background thread
+         *
+         * @param trackPath The path the track was looked up with
+         * @param sidecar The subtitle or lyrics file of the track
+         */
+        void onSidecarFound(String trackPath, File sidecar);
+    }
+
+    private final Context mContext;
+
+    private final Callback mCallback;
+
+    /* The file paths of content uris, the empty string when there is none */
+    private final LruCache<String, String> mFilePaths =
+            new LruCache<String, String>(MAX_FILE_PATHS);
+
+    /* The listed directories, by path */
+    private final LruCache<String, Directory> mDirectories =
+            new LruCache<String, Directory>(MAX_DIRECTORIES);
+
+    /* The disk and the provider are only touched from here, one lookup at a time */
+    private final ThreadPoolExecutor mExecutor = new ThreadPoolExecutor(0, 1,
+            60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+
+    /**
+     * Constructor of <code>SidecarFileIndex</code>
+     *
+     * @param context The {@link Context} to use
+     * @param callback Told about the sidecars found in the background
+     */
+    public SidecarFileIndex(final Context context, final Callback callback) {
+        mContext = context.getApplicationContext();
+        mCallback = callback;
+    }
+
+    /**
+     * Looks up the sidecar of a track in memory. If the track's directory
+     * isn't known yet, or is due a check, it is looked at in the background
+     * and the callback is told if a sidecar turns up.
+     *
+     * @param trackPath The path of the track, a file path or a content uri
+     * @return The subtitle or lyrics file of the track, or null if none is known
+     */
+    public File getSidecar(final String trackPath) {
+        final String filePath = getCachedFilePath(trackPath);
+        final Directory directory = filePath != null
+                ? mDirectories.get(getParent(filePath)) : null;
+        final String sidecar = directory != null ? directory.getSidecar(filePath) : null;
+
+        if (filePath == null || directory == null || directory.needsCheck()) {
+            mExecutor.execute(new Lookup(trackPath, sidecar, true));
+        }
+        return sidecar != null ? new File(sidecar) : null;
+    }
+
+    /**
+     * Gets the directory of a track listed ahead of time, for the upcoming tracks
+     *
+     * @param trackPath The path of the track, a file path or a content uri
+     */
+    public void prefetch(final String trackPath) {
+        final String filePath = getCachedFilePath(trackPath);
+        final Directory directory = filePath != null
+                ? mDirectories.get(getParent(filePath)) : null;
+        if (directory == null || directory.needsCheck()) {
+            mExecutor.execute(new Lookup(trackPath, null, false));
+        }
+    }
+
+    /**
+     * @return The file path of the track if it is known without a query, or null
+     */
+    private String getCachedFilePath(final String trackPath) {
+        if (trackPath.startsWith("content://")) {
+            final String filePath = mFilePaths.get(trackPath);
+            return TextUtils.isEmpty(filePath) ? null : filePath;
+        }
+        return Uri.parse(trackPath).getPath();
+    }
+
+    private static String getParent(final String filePath) {
+        final int slash = filePath.lastIndexOf('/');
+        return slash > 0 ? filePath.substring(0, slash) : "/";
+    }
+
+    private static String getBaseName(final String filePath) {
+        final int slash = filePath.lastIndexOf('/');
+        final int dot = filePath.lastIndexOf('.');
+        return filePath.substring(slash + 1, dot > slash ? dot : filePath.length());
+    }
+
+    /**
+     * Resolves the file path of a track and lists its directory if needed
+     */
+    private final class Lookup implements Runnable {
+        private final String mTrackPath;
+        private final String mKnownSidecar;
+        private final boolean mNotify;
+
+        public Lookup(final String trackPath, final String knownSidecar, final boolean notify) {
+            mTrackPath = trackPath;
+            mKnownSidecar = knownSidecar;
+            mNotify = notify;
+        }
+
+        @Override
+        public void run() {
+            final String filePath = resolveFilePath(mTrackPath);
+            if (TextUtils.isEmpty(filePath)) {
+                return;
+            }
+
+            final String parent = getParent(filePath);
+            Directory directory = mDirectories.get(parent);
+            if (directory == null || directory.needsCheck()) {
+                final long lastModified = new File(parent).lastModified();
+                if (directory == null || directory.mLastModified != lastModified) {
+                    directory = Directory.list(parent, lastModified);
+                    mDirectories.put(parent, directory);
+                } else {
+                    directory.mCheckedTime = SystemClock.elapsedRealtime();
+                }
+            }
+
+            final String sidecar = directory.getSidecar(filePath);
+            if (mNotify && sidecar != null && !sidecar.equals(mKnownSidecar)) {
+                mCallback.onSidecarFound(mTrackPath, new File(sidecar));
+            }
+        }
+
+        private String resolveFilePath(final String trackPath) {
+            if (!trackPath.startsWith("content://")) {
+                return Uri.parse(trackPath).getPath();
+            }
+
+            String filePath = mFilePaths.get(trackPath);
+            if (filePath != null) {
+                return filePath;
+            }
+
+            Cursor cursor = null;
+            try {
+                final String[] proj = { MediaStore.Audio.Media.DATA };
+                cursor = mContext.getContentResolver().query(Uri.parse(trackPath), proj,
+                        null, null, null);
+                if (cursor != null && cursor.moveToFirst()) {
+                    filePath = cursor.getString(0);
+                }
+            } catch (final Exception e) {
+                Log.e(TAG, "resolveFilePath - " + e);
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                    cursor = null;
+                }
+            }
+
+            // remember the misses too so they aren't queried on every lookup
+            mFilePaths.put(trackPath, filePath != null ? filePath : "");
+            return filePath;
+        }
+    }
+
+    /**
+     * The sidecars of a directory as of its last modified time
+     */
+    private static final class Directory {
+        private final String mPath;
+        private final long mLastModified;
+        private volatile long mCheckedTime;
+
+        /* Sidecar file names, by the base name of the track they go with */
+        private final Map<String, String> mSidecars;
+
+        private Directory(final String path, final long lastModified,
+                final Map<String, String> sidecars) {
+            mPath = path;
+            mLastModified = lastModified;
+            mCheckedTime = SystemClock.elapsedRealtime();
+            mSidecars = sidecars;
+        }
+
+        /**
+         * Lists a directory, this hits the disk
+         */
+        public static Directory list(final String path, final long lastModified) {
+            final String[] names = new File(path).list();
+            Map<String, String> sidecars = null;
+            if (names != null) {
+                for (final String name : names) {
+                    for (int i = 0; i < EXTENSIONS.length; i++) {
+                        final String extension = EXTENSIONS[i];
+                        final int baseLength = name.length() - extension.length();
+                        if (baseLength <= 0 || !name.regionMatches(true, baseLength, extension,
+                                0, extension.length())) {
+                            continue;
+                        }
+                        if (sidecars == null) {
+                            sidecars = new HashMap<String, String>();
+                        }
+                        final String base = name.substring(0, baseLength);
+                        final String existing = sidecars.get(base);
+                        if (existing == null || hasPriority(name, existing)) {
+                            sidecars.put(base, name);
+                        }
+                        break;
+                    }
+                }
+            }
+            return new Directory(path, lastModified, sidecars != null ? sidecars
+                    : Collections.<String, String>emptyMap());
+        }
+
+        private static boolean hasPriority(final String name, final String other) {
+            return getExtensionIndex(name) < getExtensionIndex(other);
+        }
+
+        private static int getExtensionIndex(final String name) {
+            for (int i = 0; i < EXTENSIONS.length; i++) {
+                if (name.regionMatches(true, name.length() - EXTENSIONS[i].length(),
+                        EXTENSIONS[i], 0, EXTENSIONS[i].length())) {
+                    return i;
+                }
+            }
+            return EXTENSIONS.length;
+        }
+
+        /**
+         * @return The path of the sidecar of a track in this directory, or null
+         */
+        public String getSidecar(final String filePath) {
+            final String name = mSidecars.get(getBaseName(filePath));
+            return name != null ? mPath + "/" + name : null;
+        }
+
+        public boolean needsCheck() {
+            return SystemClock.elapsedRealtime() - mCheckedTime > REVALIDATE_INTERVAL_MS;
+        }
+    }
+}
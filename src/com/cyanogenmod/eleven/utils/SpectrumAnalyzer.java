@@ -0,0 +1,349 @@
+/*
+* Copyright (C) 2015 The CyanogenMod Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.cyanogenmod.eleven.utils;
+
+/**
+ * Turns a capture of 8-bit pcm into bar levels: the capture is windowed and
+ * run through an fft, the bins are grouped into log spaced bands so each
+ * octave gets about the same number of bars, and the levels are held at their
+ * peaks for a little while before falling back. The levels come from a
+ * table indexed by the bits of the power, so there is no sqrt or log per bar.
+ *
+ * This is plain Java so it can be fed synthetic signals off the device. All
+ * the buffers are allocated up front, so analyzing doesn't allocate. An
+ * instance isn't thread safe, it is meant to be used from one thread.
+ */
+public class SpectrumAnalyzer {
+    /* The capture is used as is */
+    public static final int WINDOW_NONE = 0;
+
+    /* The capture is faded in and out, which keeps a tone from leaking into the other bands */
+    public static final int WINDOW_HANN = 1;
+
+    /* The mantissa bits of the power that index the level table, 128 steps per 3 dB */
+    private static final int LEVEL_TABLE_MANTISSA_BITS = 7;
+    private static final int LEVEL_TABLE_SHIFT = 23 - LEVEL_TABLE_MANTISSA_BITS;
+
+    /* The dB range has to fit a normal float power */
+    private static final float MIN_DB_LIMIT = -300f;
+    private static final float MAX_DB_LIMIT = 300f;
+
+    private final int mCaptureSize;
+    private final int mBarCount;
+    private final float mMinFrequency;
+    private final float mMaxFrequency;
+    private final float mMinDb;
+    private final float mMaxDb;
+    private final int mPeakHoldCaptures;
+    private final float mPeakFall;
+
+    private final float[] mWindow;
+    private final float[] mCos;
+    private final float[] mSin;
+    private final int[] mBitReverse;
+    private final float[] mReal;
+    private final float[] mImag;
+
+    /* Scales the power of a bin so a full scale tone comes out at 1 */
+    private final float mPowerScale;
+
+    /*
+     * The level of each power between the dB range, indexed by the bits of the
+     * float power less the base. Powers outside the range are empty or full.
+     */
+    private final float mMinPower;
+    private final float mMaxPower;
+    private final int mLevelTableBase;
+    private final float[] mLevelTable;
+
+    /* The first bin of each band, the last entry is the end of the last band */
+    private final int[] mBandStarts;
+    private int mBandSamplingRate = -1;
+
+    private final float[] mPeaks;
+    private final int[] mPeakAges;
+
+    private SpectrumAnalyzer(final Builder builder) {
+        mCaptureSize = builder.mCaptureSize;
+        mBarCount = builder.mBarCount;
+        mMinFrequency = builder.mMinFrequency;
+        mMaxFrequency = builder.mMaxFrequency;
+        mMinDb = builder.mMinDb;
+        mMaxDb = builder.mMaxDb;
+        mPeakHoldCaptures = builder.mPeakHoldCaptures;
+        mPeakFall = builder.mPeakFall;
+
+        final int n = mCaptureSize;
+        mWindow = new float[n];
+        float windowSum = 0;
+        for (int i = 0; i < n; i++) {
+            mWindow[i] = builder.mWindowType == WINDOW_HANN
+                    ? (float) (0.5 - 0.5 * Math.cos(2 * Math.PI * i / (n - 1))) : 1f;
+            windowSum += mWindow[i];
+        }
+        // a full scale tone has an amplitude of 128 and ends up split between
+        // the positive and negative frequencies
+        final float magnitudeScale = 2f / (windowSum * 128f);
+        mPowerScale = magnitudeScale * magnitudeScale;
+
+        mMinPower = (float) Math.pow(10, mMinDb / 10);
+        mMaxPower = (float) Math.pow(10, mMaxDb / 10);
+        mLevelTableBase = Float.floatToRawIntBits(mMinPower) >> LEVEL_TABLE_SHIFT;
+        final int top = Float.floatToRawIntBits(mMaxPower) >> LEVEL_TABLE_SHIFT;
+        mLevelTable = new float[top - mLevelTableBase + 1];
+        for (int i = 0; i < mLevelTable.length; i++) {
+            // the geometric middle of the powers that share the entry
+            final double low = Float.intBitsToFloat((mLevelTableBase + i) << LEVEL_TABLE_SHIFT);
+            final double high = Float.intBitsToFloat((mLevelTableBase + i + 1)
+                    << LEVEL_TABLE_SHIFT);
+            final double db = 5 * Math.log10(low * high);
+            mLevelTable[i] = (float) Math.max(0, Math.min(1, (db - mMinDb) / (mMaxDb - mMinDb)));
+        }
+
+        mCos = new float[n / 2];
+        mSin = new float[n / 2];
+        for (int k = 0; k < n / 2; k++) {
+            mCos[k] = (float) Math.cos(2 * Math.PI * k / n);
+            mSin[k] = (float) Math.sin(2 * Math.PI * k / n);
+        }
+
+        final int bits = Integer.numberOfTrailingZeros(n);
+        mBitReverse = new int[n];
+        for (int i = 0; i < n; i++) {
+            mBitReverse[i] = Integer.reverse(i) >>> (32 - bits);
+        }
+
+        mReal = new float[n];
+        mImag = new float[n];
+        mBandStarts = new int[mBarCount + 1];
+        mPeaks = new float[mBarCount];
+        mPeakAges = new int[mBarCount];
+    }
+
+    /**
+     * @return The number of samples to capture
+     */
+    public int getCaptureSize() {
+        return mCaptureSize;
+    }
+
+    /**
+     * @return The number of levels {@link #analyze} puts out
+     */
+    public int getBarCount() {
+        return mBarCount;
+    }
+
+    /**
+     * Forgets the held peaks, for when the capture restarts
+     */
+    public void reset() {
+        for (int i = 0; i < mBarCount; i++) {
+            mPeaks[i] = 0;
+            mPeakAges[i] = 0;
+        }
+    }
+
+    /**
+     * Analyzes one capture
+     *
+     * @param waveform The unsigned 8-bit pcm samples. If there are fewer than
+     *            the capture size the rest is taken as silence, extra ones
+     *            are ignored.
+     * @param samplingRate The sampling rate of the capture, in Hz
+     * @param bars Receives the level of each bar, from 0 to 1
+     */
+    public void analyze(final byte[] waveform, final int samplingRate, final float[] bars) {
+        final int n = mCaptureSize;
+        final int length = Math.min(n, waveform.length);
+        for (int i = 0; i < n; i++) {
+            mReal[mBitReverse[i]] = i < length ? ((waveform[i] & 0xff) - 128) * mWindow[i] : 0;
+            mImag[i] = 0;
+        }
+        fft();
+
+        if (samplingRate != mBandSamplingRate) {
+            computeBands(samplingRate);
+        }
+
+        for (int band = 0; band < mBarCount; band++) {
+            // the loudest bin of the band, summing would favour the wide high bands
+            float power = 0;
+            for (int bin = mBandStarts[band]; bin < mBandStarts[band + 1]; bin++) {
+                power = Math.max(power, mReal[bin] * mReal[bin] + mImag[bin] * mImag[bin]);
+            }
+
+            final float level = powerToLevel(power * mPowerScale);
+
+            if (level >= mPeaks[band]) {
+                mPeaks[band] = level;
+                mPeakAges[band] = 0;
+            } else if (++mPeakAges[band] > mPeakHoldCaptures) {
+                mPeaks[band] = Math.max(level, mPeaks[band] - mPeakFall);
+            }
+            bars[band] = mPeaks[band];
+        }
+    }
+
+    /**
+     * @param power The power of a bin, scaled so a full scale tone is 1
+     * @return The level of the power in the dB range, from 0 to 1
+     */
+    private float powerToLevel(final float power) {
+        if (power <= mMinPower) {
+            return 0f;
+        }
+        if (power >= mMaxPower) {
+            return 1f;
+        }
+        return mLevelTable[(Float.floatToRawIntBits(power) >> LEVEL_TABLE_SHIFT)
+                - mLevelTableBase];
+    }
+
+    /**
+     * In place radix-2 fft of {@link #mReal} and {@link #mImag}, whose input
+     * is expected in bit reversed order
+     */
+    private void fft() {
+        final int n = mCaptureSize;
+        for (int size = 2; size <= n; size <<= 1) {
+            final int half = size >> 1;
+            final int step = n / size;
+            for (int start = 0; start < n; start += size) {
+                for (int k = 0; k < half; k++) {
+                    final float cos = mCos[k * step];
+                    final float sin = mSin[k * step];
+                    final int a = start + k;
+                    final int b = a + half;
+                    final float real = mReal[b] * cos + mImag[b] * sin;
+                    final float imag = mImag[b] * cos - mReal[b] * sin;
+                    mReal[b] = mReal[a] - real;
+                    mImag[b] = mImag[a] - imag;
+                    mReal[a] += real;
+                    mImag[a] += imag;
+                }
+            }
+        }
+    }
+
+    /**
+     * Spreads the bins between the bands, log spaced between the min and max
+     * frequencies. Every band gets at least one bin as long as there are bins
+     * left, so the low bands don't come out empty.
+     */
+    private void computeBands(final int samplingRate) {
+        final int bins = mCaptureSize / 2;
+        final float binWidth = (float) samplingRate / mCaptureSize;
+        final float maxFrequency = Math.min(mMaxFrequency, samplingRate / 2f);
+        final float minFrequency = Math.min(mMinFrequency, maxFrequency);
+        final double ratio = maxFrequency / minFrequency;
+
+        // skip the dc bin
+        mBandStarts[0] = Math.max(1, Math.min(bins, Math.round(minFrequency / binWidth)));
+        int previous = mBandStarts[0];
+        for (int band = 1; band <= mBarCount; band++) {
+            final double frequency = minFrequency * Math.pow(ratio, (double) band / mBarCount);
+            final int bin = (int) Math.round(frequency / binWidth);
+            previous = Math.min(bins, Math.max(previous + 1, bin));
+            mBandStarts[band] = previous;
+        }
+        mBandSamplingRate = samplingRate;
+    }
+
+    /**
+     * Builds a {@link SpectrumAnalyzer}
+     */
+    public static final class Builder {
+        private int mCaptureSize = 1024;
+        private int mBarCount = 32;
+        private int mWindowType = WINDOW_HANN;
+        private float mMinFrequency = 40f;
+        private float mMaxFrequency = 16000f;
+        private float mMinDb = -60f;
+        private float mMaxDb = 0f;
+        private int mPeakHoldCaptures = 2;
+        private float mPeakFall = 0.05f;
+
+        /**
+         * @param size The number of samples per capture, a power of 2
+         */
+        public Builder setCaptureSize(final int size) {
+            if (size < 2 || Integer.bitCount(size) != 1) {
+                throw new IllegalArgumentException("capture size must be a power of 2: " + size);
+            }
+            mCaptureSize = size;
+            return this;
+        }
+
+        public Builder setBarCount(final int count) {
+            if (count < 1) {
+                throw new IllegalArgumentException("bar count must be positive: " + count);
+            }
+            mBarCount = count;
+            return this;
+        }
+
+        /**
+         * @param type {@link #WINDOW_NONE} or {@link #WINDOW_HANN}
+         */
+        public Builder setWindowType(final int type) {
+            mWindowType = type;
+            return this;
+        }
+
+        /**
+         * @param min The lowest frequency shown, in Hz
+         * @param max The highest frequency shown, in Hz. It is capped at half
+         *            the sampling rate.
+         */
+        public Builder setFrequencyRange(final float min, final float max) {
+            if (min <= 0 || max <= min) {
+                throw new IllegalArgumentException("bad frequency range: " + min + "-" + max);
+            }
+            mMinFrequency = min;
+            mMaxFrequency = max;
+            return this;
+        }
+
+        /**
+         * @param min The level shown as an empty bar, in dB of full scale
+         * @param max The level shown as a full bar, in dB of full scale. Both
+         *            are within -300 and 300 dB.
+         */
+        public Builder setDbRange(final float min, final float max) {
+            if (max <= min || min < MIN_DB_LIMIT || max > MAX_DB_LIMIT) {
+                throw new IllegalArgumentException("bad dB range: " + min + "-" + max);
+            }
+            mMinDb = min;
+            mMaxDb = max;
+            return this;
+        }
+
+        /**
+         * @param holdCaptures The number of captures a peak is held for
+         * @param fall How much a peak falls per capture after that, from 0 to 1
+         */
+        public Builder setPeakHold(final int holdCaptures, final float fall) {
+            mPeakHoldCaptures = holdCaptures;
+            mPeakFall = fall;
+            return this;
+        }
+
+        public SpectrumAnalyzer build() {
+            return new SpectrumAnalyzer(this);
+        }
+    }
+}
@@ -22,24 +22,24 @@ import android.os.Message;
 import android.util.Log;
 
 import java.io.File;
-import java.util.ArrayList;
 
 /**
- * Class that helps signal when srt text comes and goes
+ * Class that helps signal when srt or lrc text comes and goes. The cues are
+ * found by binary search in a {@link CueIndex}, so seeking stays cheap for
+ * files with thousands of them.
  */
 public abstract class SrtManager implements Handler.Callback {
     private static final String TAG = SrtManager.class.getSimpleName();
     private static final boolean DEBUG = false;
     private static final int POST_TEXT_MSG = 0;
 
-    private ArrayList<SrtParser.SrtEntry> mEntries;
+    private CueIndex mCues;
     private Handler mHandler;
     private HandlerThread mHandlerThread;
 
     private Runnable mLoader;
 
     private MediaPlayer mMediaPlayer;
-    private int mNextIndex;
 
     public SrtManager() {
         mHandlerThread = new HandlerThread("SrtManager",
@@ -51,10 +51,9 @@ public abstract class SrtManager implements Handler.Callback {
     public synchronized void reset() {
         mHandler.removeMessages(POST_TEXT_MSG);
         mHandler.removeCallbacks(mLoader);
-        mEntries = null;
+        mCues = null;
         mLoader = null;
         mMediaPlayer = null;
-        mNextIndex = -1;
 
         // post a null timed text to clear
         onTimedText(null);
@@ -77,16 +76,13 @@ public abstract class SrtManager implements Handler.Callback {
 
         reset();
 
-        if (!f.exists()) {
-            return;
-        }
-
         mMediaPlayer = player;
 
+        // the file is only looked at on the loader thread
         mLoader = new Runnable() {
             @Override
             public void run() {
-                onLoaded(this, SrtParser.getSrtEntries(f));
+                onLoaded(this, f.exists() ? SrtParser.parse(f) : null);
             }
         };
 
@@ -96,22 +92,13 @@ public abstract class SrtManager implements Handler.Callback {
     public synchronized void seekTo(long timeMs) {
         mHandler.removeMessages(POST_TEXT_MSG);
 
-        mNextIndex = 0;
-
-        if (mEntries != null) {
+        if (mCues != null) {
             if (DEBUG) {
                 Log.d(TAG, "Seeking to: " + timeMs);
             }
 
-            // find the first entry after the current time and set mNextIndex to the one before that
-            for (int i = 0; i < mEntries.size(); i++) {
-                mNextIndex = i;
-                if (i + 1 < mEntries.size() && mEntries.get(i + 1).mStartTimeMs > timeMs) {
-                    break;
-                }
-            }
-
-            postNextTimedText();
+            // the cue is looked up from the player position, nothing to keep track of
+            sendNextTimedText();
         }
     }
 
@@ -120,16 +107,29 @@ public abstract class SrtManager implements Handler.Callback {
     }
 
     public synchronized void play() {
-        postNextTimedText();
+        mHandler.removeMessages(POST_TEXT_MSG);
+
+        if (mCues != null) {
+            sendNextTimedText();
+        }
+    }
+
+    /**
+     * Has the handler thread post the text right away. The text is read from
+     * the file, so it is never done on the thread of the caller, which may be
+     * the main thread or hold the locks of the player.
+     */
+    private void sendNextTimedText() {
+        mHandler.sendEmptyMessage(POST_TEXT_MSG);
     }
 
-    private synchronized void onLoaded(Runnable r, ArrayList<SrtParser.SrtEntry> entries) {
+    private synchronized void onLoaded(Runnable r, CueIndex cues) {
         // if this is the same loader
         if (r == mLoader) {
-            mEntries = entries;
-            if (mEntries != null) {
+            mCues = cues;
+            if (mCues != null) {
                 if (DEBUG) {
-                    Log.d(TAG, "Loaded: " + entries.size() + " number of entries");
+                    Log.d(TAG, "Loaded: " + cues.size() + " number of entries");
                 }
 
                 try {
@@ -142,9 +142,19 @@ public abstract class SrtManager implements Handler.Callback {
         }
     }
 
-    private synchronized void postNextTimedText() {
-        if (mEntries != null) {
-            long timeMs = 0;
+    /**
+     * Posts the text of the player position and queues up the next change.
+     * Only called on the handler thread, the text is read without holding the
+     * lock so seeking doesn't wait for the disk.
+     */
+    private void postNextTimedText() {
+        final CueIndex cues;
+        final long timeMs;
+        synchronized (this) {
+            if (mCues == null) {
+                return;
+            }
+            cues = mCues;
             try {
                 timeMs = mMediaPlayer.getCurrentPosition();
             } catch (IllegalStateException e) {
@@ -152,38 +162,55 @@ public abstract class SrtManager implements Handler.Callback {
                         "stopped/released. failing silently");
                 return;
             }
+        }
 
-            String currentMessage = null;
-            long targetTime = -1;
+        String currentMessage = null;
+        long targetTime = -1;
 
-            // shift mNextIndex until it hits the next item we want
-            while (mNextIndex < mEntries.size() && mEntries.get(mNextIndex).mStartTimeMs < timeMs) {
-                mNextIndex++;
-            }
+        // the last cue that started, and the one after it
+        final int current = cues.findCue(timeMs);
+        final int next = current + 1;
 
-            // if the previous entry is valid, set the message and target time
-            if (mNextIndex > 0 && entrySurroundsTime(mEntries.get(mNextIndex - 1), timeMs)) {
-                currentMessage = mEntries.get(mNextIndex - 1).mLine;
-                targetTime = mEntries.get(mNextIndex - 1).mEndTimeMs;
+        // if that cue is still on, set the message and target time
+        if (current >= 0 && cues.getEndTime(current) >= timeMs) {
+            currentMessage = cues.getText(current);
+            if (currentMessage != null && currentMessage.isEmpty()) {
+                // lrc files clear the lyrics with an empty line
+                currentMessage = null;
             }
+            targetTime = cues.getEndTime(current);
+        }
 
-            onTimedText(currentMessage);
+        // the next cue may start before the current one ends
+        if (next < cues.size()
+                && (targetTime == -1 || cues.getStartTime(next) < targetTime)) {
+            targetTime = cues.getStartTime(next);
+        }
 
-            // if our next index is valid, and we don't have a target time, set it
-            if (mNextIndex < mEntries.size() && targetTime == -1) {
-                targetTime = mEntries.get(mNextIndex).mStartTimeMs;
+        synchronized (this) {
+            // the track changed or a seek came in while the text was read, the
+            // message queued for it takes over
+            if (cues != mCues || mHandler == null || mHandler.hasMessages(POST_TEXT_MSG)) {
+                return;
             }
 
-            // if we have a targeted time entry and we are playing, then queue up a delayed message
-            if (targetTime >= 0 && mMediaPlayer.isPlaying()) {
-                mHandler.removeMessages(POST_TEXT_MSG);
+            onTimedText(currentMessage);
 
+            // if we have a targeted time entry and we are playing, then queue up a delayed message
+            // the last lyric of an lrc file never ends, so there is nothing to wait for
+            boolean playing = false;
+            try {
+                playing = mMediaPlayer.isPlaying();
+            } catch (IllegalStateException e) {
+                Log.d(TAG, "illegal state but failing silently");
+            }
+            if (targetTime >= 0 && targetTime != Long.MAX_VALUE && playing) {
                 long delay = targetTime - timeMs;
                 mHandler.sendEmptyMessageDelayed(POST_TEXT_MSG, delay);
 
-                if (DEBUG && mNextIndex < mEntries.size()) {
-                    Log.d(TAG, "Preparing next message: " + delay + "ms from now with msg: " +
-                            mEntries.get(mNextIndex).mLine);
+                if (DEBUG && next < cues.size()) {
+                    Log.d(TAG, "Preparing next message: " + delay + "ms from now at: " +
+                            cues.getStartTime(next));
                 }
             }
         }
@@ -200,9 +227,5 @@ public abstract class SrtManager implements Handler.Callback {
         return false;
     }
 
-    private static boolean entrySurroundsTime(SrtParser.SrtEntry entry, long time) {
-        return entry.mStartTimeMs <= time && entry.mEndTimeMs >= time;
-    }
-
     public abstract void onTimedText(String txt);
 }
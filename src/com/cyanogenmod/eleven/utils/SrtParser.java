@@ -15,22 +15,34 @@
 */
 package com.cyanogenmod.eleven.utils;
 
-import android.text.TextUtils;
 import android.util.Log;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.io.InputStream;
+import java.util.Arrays;
 
+/**
+ * Streams subtitle and synced lyrics files into a {@link CueIndex}. The files
+ * are read a line at a time as bytes, the times are parsed in place and only
+ * the position of each text in the file is kept.
+ */
 public class SrtParser {
     private static final String TAG = SrtParser.class.getSimpleName();
+    private static final boolean DEBUG = false;
 
-    public static class SrtEntry {
-        public long mStartTimeMs;
-        public long mEndTimeMs;
-        String mLine;
+    /**
+     * @param f A SubRip (.srt) or synced lyrics (.lrc) file
+     * @return The cues of the file, or null if it couldn't be read or has none
+     */
+    public static CueIndex parse(File f) {
+        final String name = f.getName();
+        final int lastIndex = name.lastIndexOf('.');
+        if (lastIndex != -1 && name.substring(lastIndex + 1).equalsIgnoreCase("lrc")) {
+            return getLrcEntries(f);
+        }
+        return getSrtEntries(f);
     }
 
     /**
@@ -44,94 +56,368 @@ public class SrtParser {
      *
      * The timecode format should be hours:minutes:seconds,milliseconds with time units fixed to two
      * zero-padded digits and fractions fixed to three zero-padded digits (00:00:00,000).
+     * Entries with a malformed time are skipped.
      */
-    public static ArrayList<SrtEntry> getSrtEntries(File f) {
-        ArrayList<SrtEntry> ret = null;
-        FileReader reader = null;
-        BufferedReader br = null;
+    public static CueIndex getSrtEntries(File f) {
+        final CueIndex.Builder builder = new CueIndex.Builder(f);
+        LineReader reader = null;
 
         try {
-            reader = new FileReader(f);
-            br = new BufferedReader(reader);
-
-            String header;
-            // since we don't really care about the 1st line of each entry (the # val) then read
-            // and discard it
-            while ((header = br.readLine()) != null) {
-                // discard subtitle number
-                header = br.readLine();
-                if (header == null) {
-                    break;
-                }
+            reader = new LineReader(new FileInputStream(f));
 
-                SrtEntry entry = new SrtEntry();
+            final long[] fields = new long[4];
+            while (reader.readLine()) {
+                if (reader.isBlank()) {
+                    continue;
+                }
 
-                String[] startEnd = header.split("-->");
-                entry.mStartTimeMs = parseMs(startEnd[0]);
-                entry.mEndTimeMs = parseMs(startEnd[1]);
+                // the counter is optional in practice, don't take the timing line for it
+                if (reader.indexOf('-', '-', '>') < 0 && !reader.readLine()) {
+                    break;
+                }
 
-                StringBuilder subtitleBuilder = new StringBuilder("");
-                String s = br.readLine();
+                final int arrow = reader.indexOf('-', '-', '>');
+                final long start = arrow >= 0
+                        ? parseSrtTime(reader.mLine, 0, arrow, fields) : -1;
+                final long end = arrow >= 0
+                        ? parseSrtTime(reader.mLine, arrow + 3, reader.mLength, fields) : -1;
 
-                if (!TextUtils.isEmpty(s)) {
-                    subtitleBuilder.append(s);
+                // the text runs until a blank line
+                long textStart = -1;
+                long textEnd = -1;
+                while (reader.readLine() && !reader.isBlank()) {
+                    if (textStart < 0) {
+                        textStart = reader.mOffset;
+                    }
+                    textEnd = reader.mOffset + reader.mLength;
+                }
 
-                    while (!((s = br.readLine()) == null || s.trim().equals(""))) {
-                        subtitleBuilder.append("\n").append(s);
+                if (start < 0 || end < 0) {
+                    if (DEBUG) {
+                        Log.d(TAG, "Skipping malformed entry at " + textStart);
                     }
+                    continue;
                 }
+                builder.add(start, end, Math.max(textStart, 0),
+                        (int) (textStart >= 0 ? textEnd - textStart : 0));
+            }
+        } catch (IOException ioe) {
+            // shouldn't happen
+            Log.e(TAG, "getSrtEntries - " + ioe);
+            return null;
+        } finally {
+            if (reader != null) {
+                reader.close();
+            }
+        }
 
-                entry.mLine = subtitleBuilder.toString();
+        return builder.size() > 0 ? builder.build() : null;
+    }
 
-                if (ret == null) {
-                    ret = new ArrayList<SrtEntry>();
+    /**
+     * The synced lyrics file format has a line per lyric, which starts with
+     * one or more [minutes:seconds.hundredths] tags for the times it is sung.
+     * Other tags, like [ar:artist], are ignored except for [offset:ms], which
+     * shifts the whole file. A lyric lasts until the next one.
+     */
+    public static CueIndex getLrcEntries(File f) {
+        final CueIndex.Builder builder = new CueIndex.Builder(f);
+        LineReader reader = null;
+        long offset = 0;
+
+        try {
+            reader = new LineReader(new FileInputStream(f));
+
+            final long[] times = new long[16];
+            while (reader.readLine()) {
+                final byte[] line = reader.mLine;
+                int pos = 0;
+                int count = 0;
+
+                // read the tags in front of the text
+                while (pos < reader.mLength && line[pos] == '[') {
+                    int close = pos + 1;
+                    while (close < reader.mLength && line[close] != ']') {
+                        close++;
+                    }
+                    if (close == reader.mLength) {
+                        break;
+                    }
+
+                    final long time = parseLrcTime(line, pos + 1, close);
+                    if (time >= 0) {
+                        if (count < times.length) {
+                            times[count++] = time;
+                        }
+                    } else if (startsWith(line, pos + 1, close, "offset:")) {
+                        final long value = parseSignedNumber(line, pos + 8, close);
+                        if (value != Long.MIN_VALUE) {
+                            offset = value;
+                        }
+                    }
+                    pos = close + 1;
                 }
 
-                ret.add(entry);
+                for (int i = 0; i < count; i++) {
+                    builder.add(times[i], -1, reader.mOffset + pos, reader.mLength - pos);
+                }
             }
-        } catch (NumberFormatException nfe) {
-            // The file isn't a valid srt format
-            Log.e(TAG, nfe.getMessage(), nfe);
-            ret = null;
         } catch (IOException ioe) {
             // shouldn't happen
-            Log.e(TAG, ioe.getMessage(), ioe);
-            ret = null;
-        } catch (ArrayIndexOutOfBoundsException e) {
-            // if the time is malformed
-            Log.e(TAG, e.getMessage());
-            ret = null;
+            Log.e(TAG, "getLrcEntries - " + ioe);
+            return null;
         } finally {
-            if (br != null) {
-                try {
-                    br.close();
-                } catch (IOException e) {
-                    Log.e(TAG, e.getMessage());
+            if (reader != null) {
+                reader.close();
+            }
+        }
+
+        if (builder.size() == 0) {
+            return null;
+        }
+        // a positive offset makes the lyrics come sooner
+        builder.shift(-offset);
+        return builder.build();
+    }
+
+    /**
+     * Parses hours:minutes:seconds,milliseconds, the fraction can be separated
+     * by a . as well
+     *
+     * @param fields Scratch space for the 4 fields
+     * @return The time in ms, or -1 if it is malformed
+     */
+    private static long parseSrtTime(final byte[] line, final int from, final int to,
+            final long[] fields) {
+        final int count = parseFields(line, from, to, fields);
+        if (count != 4) {
+            return -1;
+        }
+        return fields[0] * 60 * 60 * 1000 + fields[1] * 60 * 1000 + fields[2] * 1000
+                + fields[3];
+    }
+
+    /**
+     * Parses minutes:seconds, optionally followed by .hundredths, .milliseconds
+     * or :hundredths
+     *
+     * @return The time in ms, or -1 if it isn't a time tag
+     */
+    private static long parseLrcTime(final byte[] line, final int from, final int to) {
+        long minutes = 0;
+        long seconds = 0;
+        long fraction = 0;
+        int fractionDigits = 0;
+        int field = 0;
+        boolean hasDigit = false;
+
+        for (int i = from; i < to; i++) {
+            final byte b = line[i];
+            if (b >= '0' && b <= '9') {
+                hasDigit = true;
+                if (field == 0) {
+                    minutes = minutes * 10 + (b - '0');
+                } else if (field == 1) {
+                    seconds = seconds * 10 + (b - '0');
+                } else if (fractionDigits < 3) {
+                    fraction = fraction * 10 + (b - '0');
+                    fractionDigits++;
+                }
+            } else if ((b == ':' && field < 2) || (b == '.' && field == 1)) {
+                if (!hasDigit) {
+                    return -1;
                 }
+                field++;
+                hasDigit = false;
+            } else if (b != ' ') {
+                return -1;
             }
+        }
+        if (field == 0 || (field == 1 && !hasDigit)) {
+            return -1;
+        }
 
-            if (reader != null) {
-                try {
-                    reader.close();
-                } catch (IOException e) {
-                    Log.e(TAG, e.getMessage());
+        while (fractionDigits < 3 && fractionDigits > 0) {
+            fraction *= 10;
+            fractionDigits++;
+        }
+        return minutes * 60 * 1000 + seconds * 1000 + fraction;
+    }
+
+    /**
+     * Reads the numbers separated by : , or . into fields
+     *
+     * @return The number of fields read, or -1 if something else is in the way
+     */
+    private static int parseFields(final byte[] line, final int from, final int to,
+            final long[] fields) {
+        int count = 0;
+        boolean inNumber = false;
+        for (int i = from; i < to; i++) {
+            final byte b = line[i];
+            if (b >= '0' && b <= '9') {
+                if (!inNumber) {
+                    if (count == fields.length) {
+                        return -1;
+                    }
+                    fields[count++] = 0;
+                    inNumber = true;
+                }
+                fields[count - 1] = fields[count - 1] * 10 + (b - '0');
+            } else if (b == ':' || b == ',' || b == '.') {
+                if (!inNumber) {
+                    return -1;
                 }
+                inNumber = false;
+            } else if (b == ' ' || b == '\t') {
+                if (inNumber && count < fields.length) {
+                    // the numbers of a time aren't split by spaces
+                    return -1;
+                }
+            } else if (count == fields.length) {
+                // srt allows position hints after the end time
+                break;
+            } else {
+                return -1;
             }
         }
+        return count;
+    }
 
-        return ret;
+    /**
+     * @return The number, or Long.MIN_VALUE if it isn't one
+     */
+    private static long parseSignedNumber(final byte[] line, int from, final int to) {
+        boolean negative = false;
+        while (from < to && line[from] == ' ') {
+            from++;
+        }
+        if (from < to && (line[from] == '-' || line[from] == '+')) {
+            negative = line[from] == '-';
+            from++;
+        }
+        if (from == to) {
+            return Long.MIN_VALUE;
+        }
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            final byte b = line[i];
+            if (b < '0' || b > '9') {
+                return Long.MIN_VALUE;
+            }
+            value = value * 10 + (b - '0');
+        }
+        return negative ? -value : value;
+    }
+
+    private static boolean startsWith(final byte[] line, final int from, final int to,
+            final String prefix) {
+        if (to - from < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (Character.toLowerCase(line[from + i]) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
     }
 
-    private static long parseMs(String in) {
-        String[] timeArray = in.split(":");
-        long hours = Long.parseLong(timeArray[0].trim());
-        long minutes = Long.parseLong(timeArray[1].trim());
+    /**
+     * Reads a stream a line at a time into a reused buffer, keeping track of
+     * where each line starts in the file
+     */
+    private static final class LineReader {
+        private final InputStream mStream;
+        private final byte[] mBuffer = new byte[8192];
+        private int mPosition = 0;
+        private int mLimit = 0;
+        private long mBufferOffset = 0;
+
+        /* The current line, without its line break */
+        byte[] mLine = new byte[256];
+        int mLength = 0;
+        long mOffset = 0;
+
+        LineReader(final InputStream stream) {
+            mStream = stream;
+        }
 
-        String[] secondTimeArray = timeArray[2].split(",");
+        /**
+         * @return False at the end of the stream
+         */
+        boolean readLine() throws IOException {
+            if (!fill()) {
+                return false;
+            }
 
-        long seconds = Long.parseLong(secondTimeArray[0].trim());
-        long millies = Long.parseLong(secondTimeArray[1].trim());
+            mOffset = mBufferOffset + mPosition;
+            mLength = 0;
+            boolean skipBom = mOffset == 0;
+            while (fill()) {
+                final byte b = mBuffer[mPosition++];
+                if (b == '\n') {
+                    break;
+                }
+                if (mLength == mLine.length) {
+                    mLine = Arrays.copyOf(mLine, mLength * 2);
+                }
+                mLine[mLength++] = b;
 
-        return hours * 60 * 60 * 1000 + minutes * 60 * 1000 + seconds * 1000 + millies;
+                if (skipBom && mLength == 3) {
+                    skipBom = false;
+                    if ((mLine[0] & 0xff) == 0xef && (mLine[1] & 0xff) == 0xbb
+                            && (mLine[2] & 0xff) == 0xbf) {
+                        mLength = 0;
+                        mOffset = 3;
+                    }
+                }
+            }
+
+            // the text is decoded later, only the \r in front of the \n goes
+            if (mLength > 0 && mLine[mLength - 1] == '\r') {
+                mLength--;
+            }
+            return true;
+        }
+
+        boolean isBlank() {
+            for (int i = 0; i < mLength; i++) {
+                if (mLine[i] != ' ' && mLine[i] != '\t') {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * @return The position of the three bytes in the line, or -1
+         */
+        int indexOf(final char a, final char b, final char c) {
+            for (int i = 0; i + 2 < mLength; i++) {
+                if (mLine[i] == a && mLine[i + 1] == b && mLine[i + 2] == c) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private boolean fill() throws IOException {
+            if (mPosition < mLimit) {
+                return true;
+            }
+            mBufferOffset += mLimit;
+            mPosition = 0;
+            mLimit = Math.max(0, mStream.read(mBuffer));
+            return mLimit > 0;
+        }
+
+        void close() {
+            try {
+                mStream.close();
+            } catch (IOException e) {
+                Log.e(TAG, "close - " + e);
+            }
+        }
     }
 }
@@ -29,6 +29,7 @@ import android.graphics.Rect;
 import android.graphics.Typeface;
 import android.graphics.drawable.Drawable;
 import android.text.TextUtils;
+import android.util.LruCache;
 
 import junit.framework.Assert;
 
@@ -63,10 +64,34 @@ public class LetterTileDrawable extends Drawable {
     /** Reusable components to avoid new allocations */
     private static final Paint sPaint = new Paint();
     private static final Rect sRect = new Rect();
-    private static final char[] sChars = new char[2];
+    private static final Rect sTileRect = new Rect();
+    private static final Paint sTileBitmapPaint = new Paint(Paint.FILTER_BITMAP_FLAG
+            | Paint.DITHER_FLAG);
+
+    /** Tiles larger than this on either edge are drawn directly instead of being cached */
+    private static final int MAX_CACHED_TILE_SIZE = 1023;
+
+    /** Budget of the rendered tile cache in bytes */
+    private static final int TILE_CACHE_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * Rendered tiles keyed by {@link #getTileKey}. Only a few dozen distinct tiles exist for
+     * any given cell size, so a fling through a library without artwork draws bitmaps instead
+     * of shapes and text. Only accessed from the main thread.
+     */
+    private static final LruCache<Long, Bitmap> sTileCache =
+            new LruCache<Long, Bitmap>(TILE_CACHE_SIZE) {
+        @Override
+        protected int sizeOf(final Long key, final Bitmap value) {
+            return value.getByteCount();
+        }
+    };
 
     private String mDisplayName;
     private String mIdentifier;
+    /** Up to two letters taken from the display name, worked out once per bind */
+    private final char[] mLetters = new char[2];
+    private int mNumLetters;
     private float mScale = 1.0f;
     private float mOffset = 0.0f;
     private Resources res;
@@ -111,8 +136,52 @@ public class LetterTileDrawable extends Drawable {
         if (!isVisible() || bounds.isEmpty()) {
             return;
         }
-        // Draw letter tile.
-        drawLetterTile(canvas);
+
+        final Bitmap tile = getTileBitmap(bounds.width(), bounds.height());
+        if (tile != null) {
+            canvas.drawBitmap(tile, bounds.left, bounds.top, mPaint);
+        } else {
+            // Draw letter tile.
+            drawLetterTile(canvas, bounds, mPaint.getAlpha(), mPaint);
+        }
+    }
+
+    /**
+     * Returns the rendered tile for the current details, rendering it if it isn't cached yet
+     * @return the tile, or null if the tile is too large to be cached
+     */
+    private Bitmap getTileBitmap(final int width, final int height) {
+        if (width > MAX_CACHED_TILE_SIZE || height > MAX_CACHED_TILE_SIZE
+                || mScale != 1.0f || mOffset != 0.0f) {
+            return null;
+        }
+
+        final Long key = getTileKey(width, height);
+        Bitmap tile = sTileCache.get(key);
+        if (tile == null) {
+            tile = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            sTileRect.set(0, 0, width, height);
+            drawLetterTile(new Canvas(tile), sTileRect, 0xff, sTileBitmapPaint);
+            sTileCache.put(key, tile);
+        }
+        return tile;
+    }
+
+    /**
+     * Packs everything that changes the look of the tile in a key: the color, the letters or
+     * the image type when there are none, the size and the shape
+     */
+    private long getTileKey(final int width, final int height) {
+        long key = getColorIndex(mIdentifier) + 1;
+        if (mNumLetters > 0) {
+            key = key << 7 | mLetters[0];
+            key = key << 7 | (mNumLetters > 1 ? mLetters[1] : 0);
+        } else {
+            key = key << 14 | mImageType.ordinal();
+        }
+        key = key << 10 | width;
+        key = key << 10 | height;
+        return key << 1 | (mIsCircle ? 1 : 0);
     }
 
     @Override
@@ -120,12 +189,12 @@ public class LetterTileDrawable extends Drawable {
         super.setBounds(bounds);
     }
 
-    private void drawLetterTile(final Canvas canvas) {
+    private void drawLetterTile(final Canvas canvas, final Rect bounds, final int alpha,
+            final Paint bitmapPaint) {
         // Draw background color.
         sPaint.setColor(pickColor(mIdentifier));
 
-        sPaint.setAlpha(mPaint.getAlpha());
-        final Rect bounds = getBounds();
+        sPaint.setAlpha(alpha);
         final int minDimension = Math.min(bounds.width(), bounds.height());
 
         if (mIsCircle) {
@@ -135,27 +204,16 @@ public class LetterTileDrawable extends Drawable {
         }
 
         // Draw letter/digit only if the first character is an english letter
-        if (mDisplayName != null && !mDisplayName.isEmpty()
-                && isEnglishLetter(mDisplayName.charAt(0))) {
-            int numChars = 1;
-
-            // Draw letter or digit.
-            sChars[0] = Character.toUpperCase(mDisplayName.charAt(0));
-
-            if (mDisplayName.length() > 1 && isEnglishLetter(mDisplayName.charAt(1))) {
-                sChars[1] = Character.toLowerCase(mDisplayName.charAt(1));
-                numChars = 2;
-            }
-
+        if (mNumLetters > 0) {
             // Scale text by canvas bounds and user selected scaling factor
             sPaint.setTextSize(mScale * sLetterToTileRatio * minDimension);
             //sPaint.setTextSize(sTileLetterFontSize);
-            sPaint.getTextBounds(sChars, 0, numChars, sRect);
+            sPaint.getTextBounds(mLetters, 0, mNumLetters, sRect);
             sPaint.setColor(sTileFontColor);
 
             // Draw the letter in the canvas, vertically shifted up or down by the user-defined
             // offset
-            canvas.drawText(sChars, 0, numChars, bounds.centerX(),
+            canvas.drawText(mLetters, 0, mNumLetters, bounds.centerX(),
                     bounds.centerY() + mOffset * bounds.height() + sRect.height() / 2,
                     sPaint);
         } else {
@@ -164,10 +222,10 @@ public class LetterTileDrawable extends Drawable {
 
             // The bitmap should be drawn in the middle of the canvas without changing its width to
             // height ratio.
-            final Rect destRect = copyBounds();
+            final Rect destRect = new Rect(bounds);
 
             drawBitmap(bitmap, bitmap.getWidth(), bitmap.getHeight(), canvas, destRect, mScale,
-                    mOffset, mPaint);
+                    mOffset, bitmapPaint);
         }
     }
 
@@ -296,6 +354,19 @@ public class LetterTileDrawable extends Drawable {
         mDisplayName = MusicUtils.getTrimmedName(displayName);
         mIdentifier = MusicUtils.getTrimmedName(identifier);
         mImageType = type;
+
+        mNumLetters = 0;
+        if (mDisplayName != null && !mDisplayName.isEmpty()
+                && isEnglishLetter(mDisplayName.charAt(0))) {
+            // Draw letter or digit.
+            mLetters[0] = Character.toUpperCase(mDisplayName.charAt(0));
+            mNumLetters = 1;
+
+            if (mDisplayName.length() > 1 && isEnglishLetter(mDisplayName.charAt(1))) {
+                mLetters[1] = Character.toLowerCase(mDisplayName.charAt(1));
+                mNumLetters = 2;
+            }
+        }
         invalidateSelf();
     }
 
@@ -303,6 +374,13 @@ public class LetterTileDrawable extends Drawable {
         mIsCircle = isCircle;
     }
 
+    /**
+     * Drops the rendered tiles, call when memory is low
+     */
+    public static void evictTileCache() {
+        sTileCache.evictAll();
+    }
+
     /**
      * Draw the bitmap onto the canvas at the current bounds taking into account the current scale.
      */
@@ -366,6 +444,6 @@ public class LetterTileDrawable extends Drawable {
         drawBitmap(defaultBitmap, defaultBitmap.getWidth(), defaultBitmap.getHeight(), canvas,
                 bounds, 1, 0, paint);
 
-        return new BitmapWithColors(createdBitmap, identifier.hashCode(), color, vibrantDarkColor);
+        return new BitmapWithColors(createdBitmap, identifier, color, vibrantDarkColor);
     }
 }
@@ -16,7 +16,10 @@
 */
 package com.cyanogenmod.eleven.widgets;
 
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.MotionEvent;
@@ -24,14 +27,18 @@ import android.view.ViewConfiguration;
 import android.widget.FrameLayout;
 import android.widget.ProgressBar;
 
+import com.cyanogenmod.eleven.MusicPlaybackService;
 import com.cyanogenmod.eleven.R;
+import com.cyanogenmod.eleven.service.PlaybackSnapshot;
 import com.cyanogenmod.eleven.utils.MusicUtils;
 
 /**
  * This class handles the playpause button as well as the circular progress bar
  * it self-updates the progress bar but the containing activity/fragment
  * needs to add code to pause/resume this button to prevent unnecessary
- * updates while the activity/fragment is not visible
+ * updates while the activity/fragment is not visible.
+ * The progress is worked out from the position anchor of the service, which is
+ * only fetched again when the playback state or position changes.
  */
 public class PlayPauseProgressButton extends FrameLayout {
     private static String TAG = PlayPauseProgressButton.class.getSimpleName();
@@ -55,6 +62,16 @@ public class PlayPauseProgressButton extends FrameLayout {
     private int mWidth;
     private long mCurrentSongDuration;
     private long mCurrentSongProgress;
+    private PlaybackSnapshot mSnapshot = PlaybackSnapshot.EMPTY;
+    private boolean mReceiverRegistered = false;
+
+    private final BroadcastReceiver mPlaybackReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            syncWithService();
+            postUpdate();
+        }
+    };
 
     public PlayPauseProgressButton(Context context, AttributeSet attrs) {
         super(context, attrs);
@@ -186,23 +203,48 @@ public class PlayPauseProgressButton extends FrameLayout {
     private void onStateChanged() {
         // if we are enabled and not paused
         if (isEnabled() && !mPaused) {
+            // listen for the changes that move the position anchor
+            if (!mReceiverRegistered) {
+                final IntentFilter filter = new IntentFilter();
+                filter.addAction(MusicPlaybackService.PLAYSTATE_CHANGED);
+                filter.addAction(MusicPlaybackService.META_CHANGED);
+                filter.addAction(MusicPlaybackService.POSITION_CHANGED);
+                filter.addAction(MusicPlaybackService.TRACK_PREPARED_CHANGED);
+                getContext().registerReceiver(mPlaybackReceiver, filter);
+                mReceiverRegistered = true;
+            }
+
             // update the state of the progress bar and play/pause button
-            updateState();
+            syncWithService();
 
             // kick off update states
             postUpdate();
         } else {
             // otherwise remove our update
             removeUpdate();
+
+            if (mReceiverRegistered) {
+                getContext().unregisterReceiver(mPlaybackReceiver);
+                mReceiverRegistered = false;
+            }
         }
     }
 
     /**
-     * Updates the state of the progress bar and the play pause button
+     * Picks up the position anchor and play state from the service
+     */
+    private void syncWithService() {
+        mSnapshot = MusicUtils.getPlaybackSnapshot();
+        updateState();
+        mPlayPauseButton.updateState();
+    }
+
+    /**
+     * Updates the state of the progress bar
      */
     private void updateState() {
-        mCurrentSongDuration = MusicUtils.duration();
-        mCurrentSongProgress = MusicUtils.position();
+        mCurrentSongDuration = mSnapshot.mDuration;
+        mCurrentSongProgress = mSnapshot.getPosition();
 
         int progress = 0;
         if (isDragging()) {
@@ -212,7 +254,6 @@ public class PlayPauseProgressButton extends FrameLayout {
         }
 
         mProgressBar.setProgress(progress);
-        mPlayPauseButton.updateState();
     }
 
     /**
@@ -224,8 +265,12 @@ public class PlayPauseProgressButton extends FrameLayout {
                 @Override
                 public void run() {
                     updateState();
-                    postDelayed(mUpdateProgress, isDragging() ? MusicUtils.UPDATE_FREQUENCY_FAST_MS
-                            : MusicUtils.UPDATE_FREQUENCY_MS);
+                    if (isDragging()) {
+                        postDelayed(mUpdateProgress, MusicUtils.UPDATE_FREQUENCY_FAST_MS);
+                    } else if (mSnapshot.mPlaybackRate > 0) {
+                        postDelayed(mUpdateProgress, MusicUtils.UPDATE_FREQUENCY_MS);
+                    }
+                    // otherwise the progress doesn't move until the service says so
                 }
             };
         }
@@ -310,8 +355,12 @@ public class PlayPauseProgressButton extends FrameLayout {
                 // if we were dragging, seek to where we dragged to
                 if (mDragging) {
                     MusicUtils.seek((long)(mDragPercentage * mCurrentSongDuration));
+                    mDragging = false;
+
+                    // the seek moved the position anchor
+                    syncWithService();
+                    postUpdate();
                 }
-                mDragging = false;
             default:
                 break;
         }
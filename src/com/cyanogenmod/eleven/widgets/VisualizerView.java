@@ -16,25 +16,90 @@
 package com.cyanogenmod.eleven.widgets;
 
 import android.animation.ObjectAnimator;
-import android.animation.ValueAnimator;
 import android.content.Context;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
 import android.media.audiofx.Visualizer;
-import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
+import android.os.Trace;
 import android.util.AttributeSet;
+import android.util.Log;
+import android.view.Choreographer;
 import android.view.View;
 
 import com.cyanogenmod.eleven.R;
-
+import com.cyanogenmod.eleven.utils.SpectrumAnalyzer;
+
+/**
+ * Draws the spectrum of the playing audio as bars. The captures are analyzed
+ * on a background thread by a {@link SpectrumAnalyzer}, whose bar levels land
+ * in a ring, and the bars are moved towards them on each vsync. Nothing is
+ * allocated while the visualizer runs and the view is only invalidated when a
+ * bar moved.
+ */
 public class VisualizerView extends View {
+    private static final String TAG = VisualizerView.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    /* Number of captures kept, a frame interpolates between the last two */
+    private static final int RING_SIZE = 4;
+
+    /* Time it takes a falling bar to cover ~63% of the way to its target, in ms */
+    private static final float DECAY_TIME_MS = 64f;
+
+    /* A bar that moves less than this since it was drawn isn't redrawn, in px */
+    private static final float REDRAW_THRESHOLD = 0.5f;
+
+    /* How often the frame stats are logged, in ms */
+    private static final long STATS_INTERVAL_MS = 5000;
+
+    private static final long NANOS_PER_MS = 1000000;
+
+    private static final int MSG_LINK = 0;
+    private static final int MSG_UNLINK = 1;
+
     private Paint mPaint;
-    private Visualizer mVisualizer;
     private ObjectAnimator mVisualizerColorAnimator;
 
-    private ValueAnimator[] mValueAnimators = new ValueAnimator[32];
-    private float[] mFFTPoints = new float[128];
+    /* The analyzer set by the app, it is picked up the next time the visualizer starts */
+    private SpectrumAnalyzer mAnalyzer;
+
+    /* The analyzer in use and its output, set before the analysis thread starts */
+    private volatile SpectrumAnalyzer mActiveAnalyzer;
+    private volatile float[] mAnalyzedBars;
+
+    /* Lives while the view is attached, so linking and unlinking run in order */
+    private HandlerThread mAnalysisThread;
+    private AnalysisHandler mAnalysisHandler;
+
+    /* Whether the visualizer is linked, as far as the ui thread is concerned */
+    private boolean mLinked = false;
+
+    private int mBarCount;
+    private float[] mFFTPoints;
+
+    /* The bar levels of the captures, RING_SIZE rows of mBarCount, and when they came in */
+    private float[] mCaptures;
+    private final long[] mCaptureTimes = new long[RING_SIZE];
+    private int mCaptureCount = 0;
+    private final Object mCaptureLock = new Object();
+
+    /* The bar heights as of the last frame, in px */
+    private float[] mBarHeights;
+
+    private boolean mFramesRunning = false;
+    private long mLastFrameTimeNanos = 0;
+
+    /* Frame stats, only kept when DEBUG is on */
+    private long mStatsStartNanos = 0;
+    private int mStatsFrames = 0;
+    private int mStatsDraws = 0;
+    private long mStatsMaxFrameNanos = 0;
+    private long mStatsDrawNanos = 0;
 
     private boolean mVisible = false;
     private boolean mPlaying = false;
@@ -43,56 +108,111 @@ public class VisualizerView extends View {
 
     private Visualizer.OnDataCaptureListener mVisualizerListener =
             new Visualizer.OnDataCaptureListener() {
-        byte rfk, ifk;
-        int dbValue;
-        float magnitude;
-
         @Override
         public void onWaveFormDataCapture(Visualizer visualizer, byte[] bytes, int samplingRate) {
+            // this runs on the analysis thread, only the levels are handed to the ui thread
+            final SpectrumAnalyzer analyzer = mActiveAnalyzer;
+            final float[] bars = mAnalyzedBars;
+            if (bars.length != analyzer.getBarCount()) {
+                // the analyzer is being swapped
+                return;
+            }
+            // the thread of a detached view may still be winding down, the
+            // analyzer isn't thread safe
+            synchronized (analyzer) {
+                analyzer.analyze(bytes, samplingRate / 1000, bars);
+            }
+            synchronized (mCaptureLock) {
+                if (mCaptures.length != RING_SIZE * bars.length) {
+                    return;
+                }
+                final int slot = mCaptureCount % RING_SIZE;
+                System.arraycopy(bars, 0, mCaptures, slot * bars.length, bars.length);
+                mCaptureTimes[slot] = System.nanoTime();
+                mCaptureCount++;
+            }
         }
 
         @Override
         public void onFftDataCapture(Visualizer visualizer, byte[] fft, int samplingRate) {
-            for (int i = 0; i < 32; i++) {
-                mValueAnimators[i].cancel();
-
-                rfk = fft[i * 2 + 2];
-                ifk = fft[i * 2 + 3];
-                magnitude = rfk * rfk + ifk * ifk;
-                dbValue = magnitude > 0 ? (int) (10 * Math.log10(magnitude)) : 0;
+        }
+    };
 
-                mValueAnimators[i].setFloatValues(mFFTPoints[i * 4 + 1],
-                        mFFTPoints[3] - (dbValue * 16f));
-                mValueAnimators[i].start();
+    private final Choreographer.FrameCallback mFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            if (!mFramesRunning) {
+                return;
+            }
+            Trace.beginSection("VisualizerView#doFrame");
+            try {
+                updateBars(frameTimeNanos);
+            } finally {
+                Trace.endSection();
             }
+            Choreographer.getInstance().postFrameCallback(this);
         }
     };
 
-    private final Runnable mLinkVisualizer = new Runnable() {
+    /**
+     * Links and unlinks the visualizer on the analysis thread, so the captures
+     * are delivered there. Each handler owns its visualizer, which is never
+     * touched from another thread.
+     */
+    private final class AnalysisHandler extends Handler {
+        private Visualizer mVisualizer;
+
+        public AnalysisHandler(final HandlerThread thread) {
+            super(thread.getLooper());
+        }
+
         @Override
-        public void run() {
+        public void handleMessage(final Message msg) {
+            switch (msg.what) {
+                case MSG_LINK:
+                    link((SpectrumAnalyzer) msg.obj);
+                    break;
+                case MSG_UNLINK:
+                    unlink();
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private void link(final SpectrumAnalyzer analyzer) {
+            if (mVisualizer != null) {
+                return;
+            }
             try {
                 mVisualizer = new Visualizer(0);
             } catch (Exception e) {
+                Log.e(TAG, "link - " + e);
                 return;
             }
 
+            final int[] range = Visualizer.getCaptureSizeRange();
+            final int captureSize = Math.max(range[0],
+                    Math.min(range[1], analyzer.getCaptureSize()));
+            synchronized (analyzer) {
+                analyzer.reset();
+            }
+
             mVisualizer.setEnabled(false);
-            mVisualizer.setCaptureSize(66);
+            mVisualizer.setCaptureSize(captureSize);
             mVisualizer.setDataCaptureListener(mVisualizerListener, Visualizer.getMaxCaptureRate(),
-                    false, true);
+                    true, false);
             mVisualizer.setEnabled(true);
         }
-    };
 
-    private final Runnable mUnlinkVisualizer = new Runnable() {
-        @Override
-        public void run() {
-            mVisualizer.setEnabled(false);
-            mVisualizer.release();
-            mVisualizer = null;
+        private void unlink() {
+            if (mVisualizer != null) {
+                mVisualizer.setEnabled(false);
+                mVisualizer.release();
+                mVisualizer = null;
+            }
         }
-    };
+    }
 
     public VisualizerView(Context context, AttributeSet attrs, int defStyle) {
         super(context, attrs, defStyle);
@@ -117,15 +237,20 @@ public class VisualizerView extends View {
     @Override
     protected void onSizeChanged(int w, int h, int oldw, int oldh) {
         super.onSizeChanged(w, h, oldw, oldh);
+        layoutBars(w, h);
+    }
 
-        float barUnit = w / 32f;
+    private void layoutBars(int w, int h) {
+        float barUnit = w / (float) mBarCount;
         float barWidth = barUnit * 8f / 9f;
-        barUnit = barWidth + (barUnit - barWidth) * 32f / 31f;
+        if (mBarCount > 1) {
+            barUnit = barWidth + (barUnit - barWidth) * mBarCount / (mBarCount - 1f);
+        }
         mPaint.setStrokeWidth(barWidth);
 
-        for (int i = 0; i < 32; i++) {
+        for (int i = 0; i < mBarCount; i++) {
             mFFTPoints[i * 4] = mFFTPoints[i * 4 + 2] = i * barUnit + (barWidth / 2);
-            mFFTPoints[i * 4 + 3] = h;
+            mFFTPoints[i * 4 + 1] = mFFTPoints[i * 4 + 3] = h;
         }
     }
 
@@ -133,8 +258,36 @@ public class VisualizerView extends View {
     protected void onDraw(Canvas canvas) {
         super.onDraw(canvas);
 
-        if (mVisualizer != null) {
+        if (mLinked) {
+            final long start = DEBUG ? System.nanoTime() : 0;
+            Trace.beginSection("VisualizerView#onDraw");
             canvas.drawLines(mFFTPoints, mPaint);
+            Trace.endSection();
+            if (DEBUG) {
+                mStatsDrawNanos += System.nanoTime() - start;
+                mStatsDraws++;
+            }
+        }
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        if (mPaint != null) {
+            checkStateChanged();
+        }
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        stopFrames();
+        unlinkVisualizer();
+        if (mAnalysisThread != null) {
+            // the unlink still runs, the thread goes once it is done
+            mAnalysisThread.quitSafely();
+            mAnalysisThread = null;
+            mAnalysisHandler = null;
         }
     }
 
@@ -145,24 +298,151 @@ public class VisualizerView extends View {
         mPaint.setAntiAlias(true);
         mPaint.setColor(mColor);
 
-        for (int i = 0; i < 32; i++) {
-            final int j = i * 4 + 1;
-            mValueAnimators[i] = new ValueAnimator();
-            mValueAnimators[i].setDuration(128);
-            mValueAnimators[i].addUpdateListener(new ValueAnimator.AnimatorUpdateListener() {
-                @Override
-                public void onAnimationUpdate(ValueAnimator animation) {
-                    mFFTPoints[j] = (float) animation.getAnimatedValue();
+        setSpectrumAnalyzer(new SpectrumAnalyzer.Builder().build());
+    }
+
+    /**
+     * Sets how the captures are turned into bars. It is picked up the next
+     * time the visualizer starts.
+     *
+     * @param analyzer The analyzer to use, it shouldn't be shared with another view
+     */
+    public void setSpectrumAnalyzer(SpectrumAnalyzer analyzer) {
+        mAnalyzer = analyzer;
+        if (!mLinked) {
+            applySpectrumAnalyzer();
+        }
+    }
+
+    /**
+     * Sizes the bars for the analyzer, only while the visualizer isn't running
+     */
+    private void applySpectrumAnalyzer() {
+        if (mActiveAnalyzer == mAnalyzer) {
+            return;
+        }
+        mActiveAnalyzer = mAnalyzer;
+        mBarCount = mAnalyzer.getBarCount();
+        mAnalyzedBars = new float[mBarCount];
+        mFFTPoints = new float[mBarCount * 4];
+        mBarHeights = new float[mBarCount];
+        synchronized (mCaptureLock) {
+            mCaptures = new float[RING_SIZE * mBarCount];
+            mCaptureCount = 0;
+        }
+        layoutBars(getWidth(), getHeight());
+        invalidate();
+    }
+
+    /**
+     * Moves the bars towards the captured levels, interpolating between the
+     * last two captures, and invalidates the view if any of them moved
+     *
+     * @param frameTimeNanos The time of the frame, in {@link System#nanoTime()} time
+     */
+    private void updateBars(final long frameTimeNanos) {
+        final long frameNanos = mLastFrameTimeNanos > 0
+                ? frameTimeNanos - mLastFrameTimeNanos : 0;
+        mLastFrameTimeNanos = frameTimeNanos;
+        if (DEBUG) {
+            updateFrameStats(frameTimeNanos, frameNanos);
+        }
+
+        // one exp per frame rather than one per bar
+        final float decay = (float) Math.exp(-(frameNanos / (float) NANOS_PER_MS)
+                / DECAY_TIME_MS);
+        final float bottom = mFFTPoints[3];
+        boolean changed = false;
+
+        synchronized (mCaptureLock) {
+            if (mCaptureCount == 0) {
+                return;
+            }
+
+            final int latest = ((mCaptureCount - 1) % RING_SIZE) * mBarCount;
+            int previous = latest;
+            float fraction = 1f;
+            if (mCaptureCount > 1) {
+                // trail the captures by one so a frame always has two to go between
+                final int previousSlot = (mCaptureCount - 2) % RING_SIZE;
+                final long latestTime = mCaptureTimes[(mCaptureCount - 1) % RING_SIZE];
+                final long interval = latestTime - mCaptureTimes[previousSlot];
+                if (interval > 0) {
+                    previous = previousSlot * mBarCount;
+                    fraction = Math.max(0f, Math.min(1f,
+                            (frameTimeNanos - latestTime) / (float) interval));
                 }
-            });
+            }
+
+            for (int i = 0; i < mBarCount; i++) {
+                final float from = mCaptures[previous + i];
+                final float target = (from + (mCaptures[latest + i] - from) * fraction) * bottom;
+                float height = mBarHeights[i];
+                if (target >= height) {
+                    // bars jump up and fall back slowly
+                    height = target;
+                } else {
+                    height = target + (height - target) * decay;
+                }
+                mBarHeights[i] = height;
+
+                final float y = bottom - height;
+                if (Math.abs(mFFTPoints[i * 4 + 1] - y) >= REDRAW_THRESHOLD) {
+                    mFFTPoints[i * 4 + 1] = y;
+                    changed = true;
+                }
+            }
+        }
+
+        if (changed) {
+            invalidate();
+        }
+    }
+
+    /**
+     * Keeps track of the frame times and logs them every {@link #STATS_INTERVAL_MS}
+     */
+    private void updateFrameStats(final long frameTimeNanos, final long frameNanos) {
+        if (mStatsStartNanos == 0) {
+            mStatsStartNanos = frameTimeNanos;
+        }
+        mStatsFrames++;
+        mStatsMaxFrameNanos = Math.max(mStatsMaxFrameNanos, frameNanos);
+
+        final long elapsed = frameTimeNanos - mStatsStartNanos;
+        if (elapsed >= STATS_INTERVAL_MS * NANOS_PER_MS) {
+            Log.d(TAG, "frames: " + mStatsFrames
+                    + ", avg frame: " + (elapsed / mStatsFrames / 1000) + "us"
+                    + ", max frame: " + (mStatsMaxFrameNanos / 1000) + "us"
+                    + ", draws: " + mStatsDraws
+                    + ", avg draw: " + (mStatsDraws > 0 ? mStatsDrawNanos / mStatsDraws / 1000
+                            : 0) + "us");
+            mStatsStartNanos = frameTimeNanos;
+            mStatsFrames = 0;
+            mStatsDraws = 0;
+            mStatsMaxFrameNanos = 0;
+            mStatsDrawNanos = 0;
         }
+    }
 
-        mValueAnimators[31].addUpdateListener(new ValueAnimator.AnimatorUpdateListener() {
-            @Override
-            public void onAnimationUpdate(ValueAnimator animation) {
-                postInvalidate();
+    private void startFrames() {
+        if (!mFramesRunning) {
+            mFramesRunning = true;
+            mLastFrameTimeNanos = 0;
+            mStatsStartNanos = 0;
+            synchronized (mCaptureLock) {
+                // the captures of the last run are stale
+                mCaptureCount = 0;
             }
-        });
+            Choreographer.getInstance().postFrameCallback(mFrameCallback);
+        }
+    }
+
+    private void stopFrames() {
+        if (mFramesRunning) {
+            mFramesRunning = false;
+            Choreographer.getInstance().removeFrameCallback(mFrameCallback);
+        }
     }
 
     public void setVisible(boolean visible) {
@@ -192,7 +472,7 @@ public class VisualizerView extends View {
         if (mColor != color) {
             mColor = color;
 
-            if (mVisualizer != null) {
+            if (mLinked) {
                 if (mVisualizerColorAnimator != null) {
                     mVisualizerColorAnimator.cancel();
                 }
@@ -210,15 +490,41 @@ public class VisualizerView extends View {
 
     private void checkStateChanged() {
         if (mVisible && mPlaying && !mPowerSaveMode) {
-            if (mVisualizer == null) {
-                AsyncTask.execute(mLinkVisualizer);
+            if (!mLinked) {
+                linkVisualizer();
                 animate().alpha(1f).setDuration(300);
             }
+            startFrames();
         } else {
-            if (mVisualizer != null) {
+            stopFrames();
+            if (mLinked) {
                 animate().alpha(0f).setDuration(0);
-                AsyncTask.execute(mUnlinkVisualizer);
+                unlinkVisualizer();
             }
         }
     }
+
+    /**
+     * Links the visualizer on the analysis thread, starting the thread if needed
+     */
+    private void linkVisualizer() {
+        applySpectrumAnalyzer();
+        if (mAnalysisThread == null) {
+            mAnalysisThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_DISPLAY);
+            mAnalysisThread.start();
+            mAnalysisHandler = new AnalysisHandler(mAnalysisThread);
+        }
+        mAnalysisHandler.obtainMessage(MSG_LINK, mActiveAnalyzer).sendToTarget();
+        mLinked = true;
+    }
+
+    /**
+     * Unlinks the visualizer, after any link still waiting on the analysis thread
+     */
+    private void unlinkVisualizer() {
+        if (mLinked) {
+            mAnalysisHandler.sendEmptyMessage(MSG_UNLINK);
+            mLinked = false;
+        }
+    }
 }